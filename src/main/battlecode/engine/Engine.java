@@ -1,13 +1,15 @@
 package battlecode.engine;
 
+import battlecode.engine.instrumenter.BytecodeProfiler;
 import battlecode.engine.instrumenter.IndividualClassLoader;
-import battlecode.engine.instrumenter.RobotMonitor;
-import battlecode.engine.instrumenter.lang.RoboRandom;
 import battlecode.engine.scheduler.Scheduler;
 import battlecode.engine.signal.Signal;
+import battlecode.serial.TimingStats;
 import battlecode.server.Config;
 import battlecode.world.GameWorldFactory;
 
+import java.io.File;
+
 //~ import java.lang.Thread;
 /*
 TODO:
@@ -20,21 +22,25 @@ public class Engine {
     private final boolean garbageCollectEnabled;
     private final int garbageCollectRounds;
     private final boolean breakpointsEnabled;
-    private static Engine theInstance = null;
+    private final EngineContext context;
+    private final WorldSnapshots snapshots;
     private Runnable ioCallback;
 
     public Engine(String teamA, String teamB, String mapName, String mapPath, long[][] archonMemory) {
-        theInstance = this;
         Config options = Config.getGlobalConfig();
         this.garbageCollectEnabled = options.getBoolean("bc.engine.gc");
         this.garbageCollectRounds = options.getInt("bc.engine.gc-rounds");
         this.breakpointsEnabled = options.getBoolean("bc.engine.breakpoints");
+        int snapshotRounds = options.getInt("bc.engine.snapshot-rounds");
+        this.snapshots = snapshotRounds > 0 ? new WorldSnapshots(new File(options.get("bc.engine.snapshot-dir")),
+                teamA + "-vs-" + teamB + "-" + mapName, snapshotRounds) : null;
         GenericWorld tempGameWorld = null;
         //InternalObject.resetIDs();
-        IndividualClassLoader.reset();
-        Scheduler.reset();
-        RobotMonitor.reset();
+        context = new EngineContext();
+        context.bind();
         PlayerFactory.checkOptions();
+        if (options.getBoolean("bc.engine.preinstrument"))
+            PlayerFactory.preinstrument(teamA, teamB);
         try {
             try {
                 tempGameWorld = GameWorldFactory.createGameWorld(teamA, teamB, mapName, mapPath, archonMemory);
@@ -49,9 +55,29 @@ public class Engine {
             gameWorld = tempGameWorld;
         }
         gameWorld.resetStatic();
-        RobotMonitor.setGameWorld(gameWorld);
-        RoboRandom.setMapSeed(gameWorld.getMapSeed());
-        Scheduler.start();
+        context.setGameWorld(gameWorld);
+        context.setMapSeed(gameWorld.getMapSeed());
+        context.getScheduler().start();
+    }
+
+    /**
+     * Creates an engine that runs on a world read back from a snapshot.  The
+     * world has no players, so its robots don't do anything.
+     *
+     * @see WorldSnapshots
+     */
+    public Engine(GenericWorld world) {
+        Config options = Config.getGlobalConfig();
+        this.garbageCollectEnabled = options.getBoolean("bc.engine.gc");
+        this.garbageCollectRounds = options.getInt("bc.engine.gc-rounds");
+        this.breakpointsEnabled = options.getBoolean("bc.engine.breakpoints");
+        context = new EngineContext();
+        context.bind();
+        gameWorld = world;
+        snapshots = null;
+        context.setGameWorld(gameWorld);
+        context.setMapSeed(gameWorld.getMapSeed());
+        context.getScheduler().start();
     }
 
     public GameWorldViewer getGameWorldViewer() {
@@ -60,23 +86,53 @@ public class Engine {
 
     public GameState runRound() {
         if (gameWorld == null) {
-            return GameState.DONE;
+            return done();
         }
         if (!gameWorld.isRunning()) {
-            return GameState.DONE;
+            return done();
         }
+        // rounds may be run from a different thread than the one that created the engine
+        context.bind();
+        context.getScheduler().start();
         try {
             if (gameWorld.getCurrentRound() != -1) {
                 gameWorld.clearAllSignals();
             }
+            TimingStats timings = context.getRoundTimings();
+            if (timings != null)
+                timings.clear();
+            long start = System.nanoTime();
             gameWorld.processBeginningOfRound();
+            long robotsStart = System.nanoTime();
             if (getRoundNum() % 500 == 0) {
                 System.out.println("Round: " + getRoundNum());
             }
             Scheduler.startNextThread();
             ioCallback.run();
+            long ioEnd = System.nanoTime();
             Scheduler.endTurn();
+            long robotsEnd = System.nanoTime();
             gameWorld.processEndOfRound();
+            if (timings != null) {
+                // recorded here rather than as each phase ends so that only one
+                // thread writes to timings at a time
+                timings.addPhase(TimingStats.Phase.BEGINNING_OF_ROUND, robotsStart - start);
+                // the robots run while the engine thread writes the previous
+                // round, so IO_CALLBACK is part of ROBOTS rather than before it
+                timings.addPhase(TimingStats.Phase.IO_CALLBACK, ioEnd - robotsStart);
+                timings.addPhase(TimingStats.Phase.ROBOTS, robotsEnd - robotsStart);
+                timings.addPhase(TimingStats.Phase.END_OF_ROUND, System.nanoTime() - robotsEnd);
+                context.getScheduler().collectRobotTimes();
+                timings.addRound();
+                context.getTimings().add(timings);
+            }
+            if (context.getProfiler() != null)
+                context.getProfiler().endRound(getRoundNum());
+            if (snapshots != null) {
+                snapshots.endRound(gameWorld);
+                if (!gameWorld.isRunning())
+                    finish();
+            }
             if (!gameWorld.isRunning()) {
                 // Let all of the threads return so we don't leak
                 // memory.  GameWorld has already told RobotMonitor
@@ -87,7 +143,7 @@ public class Engine {
             }
         } catch (Exception e) {
             ErrorReporter.report(e);
-            return GameState.DONE;
+            return done();
         }
         if (garbageCollectEnabled && getRoundNum() % garbageCollectRounds == 0) {
             java.lang.System.gc();
@@ -95,12 +151,20 @@ public class Engine {
         return ((breakpointsEnabled && gameWorld.wasBreakpointHit()) ? GameState.BREAKPOINT : GameState.RUNNING);
     }
 
+    // every way that runRound reports the end of the match, including the
+    // map failing to load and exceptions, goes through here
+    private GameState done() {
+        finish();
+        return GameState.DONE;
+    }
+
     /**
      * TODO: update this, since energon change signal breaks this
      *
      * @return true if the gamestate may have changed, false if the gamestate did not change
      */
     public boolean receiveSignal(Signal s) {
+        context.bind();
         gameWorld.clearAllSignals();
         try {
             s.accept(gameWorld);
@@ -114,8 +178,11 @@ public class Engine {
         return (gameWorld != null) && gameWorld.isRunning();
     }
 
+    /**
+     * Returns the current round of the match that the calling thread belongs to.
+     */
     public static int getRoundNum() {
-        return theInstance.gameWorld.getCurrentRound();
+        return EngineContext.current().getGameWorld().getCurrentRound();
     }
 
     public long[][] getArchonMemory() {
@@ -125,4 +192,46 @@ public class Engine {
     public void setIOCallback(Runnable callback) {
         ioCallback = callback;
     }
+
+    /**
+     * Returns the timings of the last round run, or null if bc.engine.timings
+     * is not set.  The returned object is reused for the next round.
+     */
+    public TimingStats getRoundTimings() {
+        return context.getRoundTimings();
+    }
+
+    /**
+     * Returns the timings of every round run so far, or null if
+     * bc.engine.timings is not set.
+     */
+    public TimingStats getTimings() {
+        return context.getTimings();
+    }
+
+    /**
+     * Returns the instrumented classes loaded for this match, along with
+     * what the PersistentClassCache did for it.
+     */
+    public IndividualClassLoader.Cache getClassCache() {
+        return context.getClassCache();
+    }
+
+    /**
+     * Returns the profile of the robots' bytecodes, or null if
+     * bc.engine.profiler is not set.
+     */
+    public BytecodeProfiler getProfiler() {
+        return context.getProfiler();
+    }
+
+    /**
+     * Waits for the snapshots taken so far to be written and stops the
+     * thread that writes them.  This happens by itself when the match ends;
+     * it should also be called when an engine is abandoned before then.
+     */
+    public void finish() {
+        if (snapshots != null)
+            snapshots.close();
+    }
 }
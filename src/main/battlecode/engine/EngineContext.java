@@ -0,0 +1,158 @@
+package battlecode.engine;
+
+import battlecode.engine.instrumenter.BytecodeProfiler;
+import battlecode.engine.instrumenter.IndividualClassLoader;
+import battlecode.engine.instrumenter.RobotMonitor;
+import battlecode.engine.scheduler.Scheduler;
+import battlecode.serial.TimingStats;
+import battlecode.server.Config;
+
+/**
+ * Holds all of the state that belongs to a single running match: the
+ * scheduler, the robot monitor, the instrumented class cache and the game
+ * world.  Several Engines can run side by side in one JVM because each one
+ * owns its own EngineContext.
+ * <p/>
+ * The static entry points of Scheduler, RobotMonitor, Clock, etc. find the
+ * context of the match they belong to through the current thread.  Robot
+ * threads are ContextThreads, which carry their context directly; engine
+ * threads are bound with bind().
+ */
+public class EngineContext {
+
+    private static final ThreadLocal<EngineContext> boundContext = new ThreadLocal<EngineContext>();
+
+    /**
+     * A thread that belongs to exactly one match for its whole lifetime.
+     * Used for robot threads so that looking up the context of the running
+     * robot is as cheap as a field read.
+     */
+    public static class ContextThread extends Thread {
+        private final EngineContext context;
+
+        public ContextThread(EngineContext context, Runnable r, String name) {
+            super(r, name);
+            this.context = context;
+        }
+
+        /**
+         * Creates a ContextThread with the given stack size in bytes, or the
+         * JVM's default stack size if stackSize is zero.
+         */
+        public ContextThread(EngineContext context, Runnable r, String name, long stackSize) {
+            super(null, r, name, stackSize);
+            this.context = context;
+        }
+
+        public EngineContext getContext() {
+            return context;
+        }
+    }
+
+    private final Scheduler scheduler;
+    private final RobotMonitor robotMonitor;
+    private final IndividualClassLoader.Cache classCache;
+    private final TimingStats timings, roundTimings;
+    private final BytecodeProfiler profiler;
+    private GenericWorld gameWorld;
+    private long mapSeed;
+
+    public EngineContext() {
+        scheduler = new Scheduler();
+        robotMonitor = new RobotMonitor();
+        classCache = new IndividualClassLoader.Cache();
+        if (Config.getGlobalConfig().getBoolean("bc.engine.timings")) {
+            timings = new TimingStats();
+            roundTimings = new TimingStats();
+            scheduler.setTimings(roundTimings);
+            robotMonitor.setTimings(roundTimings);
+        } else {
+            timings = roundTimings = null;
+        }
+        if (Config.getGlobalConfig().getBoolean("bc.engine.profiler")) {
+            profiler = new BytecodeProfiler(Config.getGlobalConfig().getInt("bc.engine.profiler-top"));
+            robotMonitor.setProfiler(profiler);
+        } else {
+            profiler = null;
+        }
+    }
+
+    /**
+     * Returns the context of the match that the current thread belongs to,
+     * or null if the thread is not part of any match.
+     */
+    public static EngineContext current() {
+        Thread t = Thread.currentThread();
+        if (t instanceof ContextThread)
+            return ((ContextThread) t).context;
+        else
+            return boundContext.get();
+    }
+
+    /**
+     * Makes this the context of the current (engine) thread.
+     */
+    public void bind() {
+        boundContext.set(this);
+    }
+
+    /**
+     * Detaches the current thread from whatever match it was bound to.
+     */
+    public static void unbind() {
+        boundContext.remove();
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    public RobotMonitor getRobotMonitor() {
+        return robotMonitor;
+    }
+
+    public IndividualClassLoader.Cache getClassCache() {
+        return classCache;
+    }
+
+    /**
+     * Returns the timings of the match so far, not including the current
+     * round, or null if bc.engine.timings is not set.
+     */
+    public TimingStats getTimings() {
+        return timings;
+    }
+
+    /**
+     * Returns the timings being collected for the current round, or null if
+     * bc.engine.timings is not set.
+     */
+    public TimingStats getRoundTimings() {
+        return roundTimings;
+    }
+
+    /**
+     * Returns the profile of the robots' bytecodes, or null if
+     * bc.engine.profiler is not set.
+     */
+    public BytecodeProfiler getProfiler() {
+        return profiler;
+    }
+
+    public GenericWorld getGameWorld() {
+        return gameWorld;
+    }
+
+    public void setGameWorld(GenericWorld gw) {
+        gameWorld = gw;
+        robotMonitor.setGameWorld(gw);
+    }
+
+    public long getMapSeed() {
+        return mapSeed;
+    }
+
+    public void setMapSeed(long seed) {
+        mapSeed = seed;
+    }
+}
@@ -5,6 +5,12 @@ import battlecode.engine.instrumenter.InstrumentationException;
 import battlecode.engine.scheduler.ScheduledRunnable;
 import battlecode.server.Config;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /*
 TODO:
  - better error reporting
@@ -21,14 +27,54 @@ public class PlayerFactory {
         _debugMethodsEnabled = options.getBoolean("bc.engine.debug-methods");
     }
 
+    /**
+     * Instruments the given teams' classes on one thread per processor
+     * before the match starts, so that robots don't have to do it in their
+     * first turns.  See IndividualClassLoader.preinstrument.
+     */
+    public static void preinstrument(String... teamNames) {
+        long start = System.nanoTime();
+        int count = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        // with one processor a pool would only add overhead
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        Executor executor = pool != null ? pool : new Executor() {
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+        try {
+            Set<String> done = new HashSet<String>();
+            for (String teamName : teamNames) {
+                if (!done.add(teamName))
+                    continue;
+                try {
+                    count += new IndividualClassLoader(teamName, _debugMethodsEnabled, false, false, EngineContext.current().getClassCache()).preinstrument(executor);
+                } catch (InstrumentationException ie) {
+                    // loadPlayer will run into this again
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+        if (Config.getGlobalConfig().getBoolean("bc.engine.timings"))
+            System.out.println(String.format("[Engine] Pre-instrumented %d classes in %.1f ms", count, (System.nanoTime() - start) / 1e6));
+    }
+
     public static void loadPlayer(GenericController rc, String teamName) {
 
         // now, we instantiate and instrument the player's class
         Class playerClass;
         try {
             // The classloaders ignore silenced now - RobotMonitor takes care of it
-            ClassLoader icl = new IndividualClassLoader(teamName, _debugMethodsEnabled, false, true);
+            long start = System.nanoTime();
+            IndividualClassLoader.Cache cache = EngineContext.current().getClassCache();
+            ClassLoader icl = IndividualClassLoader.forRobot(teamName, _debugMethodsEnabled, cache);
             playerClass = icl.loadClass(teamName + ".RobotPlayer");
+            cache.addRobotLoad(System.nanoTime() - start);
             //~ System.out.println("PF done loading");
         } catch (InstrumentationException ie) {
             // if we get an InstrumentationException, then the error should have been reported, so we just kill the robot
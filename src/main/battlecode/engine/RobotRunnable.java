@@ -2,6 +2,7 @@ package battlecode.engine;
 
 import battlecode.common.Clock;
 import battlecode.common.RobotController;
+import battlecode.engine.instrumenter.IndividualClassLoader;
 import battlecode.engine.instrumenter.RobotDeathException;
 import battlecode.engine.scheduler.Scheduler;
 
@@ -62,6 +63,7 @@ class RobotRunnable implements Runnable {
                 break runbot;
             }
 
+            IndividualClassLoader.initialize(myPlayerClass);
             m.invoke(null, myRobotController);
 
             System.out.println("[Engine] Robot " + myRobotController.getRobot() + " died on round "+Clock.getRoundNum()+" because its run method returned");
@@ -0,0 +1,181 @@
+package battlecode.engine;
+
+import battlecode.common.Team;
+import battlecode.server.Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the game world every few rounds, when bc.engine.snapshot-rounds is set, so that a match can be looked at or
+ * run on from the middle instead of being replayed from the start.
+ * <p/>
+ * A snapshot is the whole game world -- the map and its cows, the robots, each team's radio, map memory and
+ * research, the random number generator, the archon memory and so on -- written with Java serialization and
+ * gzipped.  The engine thread serializes the world into memory at the end of a round, which is the only time it is
+ * consistent, and a background thread compresses the copy and writes it to disk, so the engine only waits for the
+ * copy.
+ * <p/>
+ * The robots' players can't be saved, so a world read back from a snapshot has no players.  An Engine resumed from
+ * one runs the world on by itself -- cows grow and are milked, robots sit still -- which is for replaying and
+ * analysing what the engine does, not for finishing the match.
+ */
+public class WorldSnapshots {
+
+    private final File dir;
+    private final String prefix;
+    private final int rounds;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "snapshot writer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private boolean failed;
+
+    /**
+     * @param dir    the directory to write snapshots to
+     * @param prefix the start of the snapshots' file names
+     * @param rounds how many rounds apart to take snapshots
+     */
+    public WorldSnapshots(File dir, String prefix, int rounds) {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Returns the file that the snapshot taken after the given number of rounds is written to.
+     */
+    public static File file(File dir, String prefix, int roundsRun) {
+        return new File(dir, prefix + "." + roundsRun + ".snapshot");
+    }
+
+    /**
+     * Takes a snapshot if enough rounds have been run since the last one.  Should be called by the engine thread
+     * after every round.
+     */
+    public void endRound(GenericWorld world) {
+        final int roundsRun = world.getCurrentRound() + 1;
+        if (failed || roundsRun % rounds != 0 || writer.isShutdown())
+            return;
+        final byte[] image;
+        try {
+            image = serialize(world);
+        } catch (IOException e) {
+            // most likely something in the world isn't Serializable, so the next snapshot won't work either
+            ErrorReporter.report(e, true);
+            failed = true;
+            return;
+        }
+        writer.execute(new Runnable() {
+            public void run() {
+                File file = file(dir, prefix, roundsRun);
+                try {
+                    if (!dir.isDirectory() && !dir.mkdirs())
+                        throw new IOException("couldn't create " + dir);
+                    OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                    try {
+                        out.write(image);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Server.warn("couldn't write snapshot " + file + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the snapshots that have been taken to be written.  No more
+     * snapshots are taken after this; calling it again does nothing.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the serialized form of the given world, which must be Serializable.
+     */
+    public static byte[] serialize(GenericWorld world) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(world);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the world back from a snapshot.
+     */
+    public static GenericWorld read(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+        try {
+            return (GenericWorld) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("snapshot " + file + " needs a class that isn't here: " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Times how long it takes to seek to each of the given snapshots, and, with <code>-rounds n</code>, to resume
+     * the world from it and run it on for n rounds.
+     */
+    public static void main(String[] args) throws IOException {
+        int runRounds = 0;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("-rounds")) {
+            runRounds = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first >= args.length) {
+            System.out.println("usage: WorldSnapshots [-rounds n] snapshot...");
+            return;
+        }
+        for (int i = first; i < args.length; i++) {
+            File file = new File(args[i]);
+            long start = System.nanoTime();
+            GenericWorld world = read(file);
+            long seekNanos = System.nanoTime() - start;
+            System.out.printf("%s: %s vs %s, round %d, %d bytes, seek %.1f ms%n", file, world.getTeamName(Team.A),
+                    world.getTeamName(Team.B), world.getCurrentRound(), file.length(), seekNanos / 1e6);
+            if (runRounds <= 0)
+                continue;
+            Engine engine = new Engine(world);
+            engine.setIOCallback(new Runnable() {
+                public void run() {
+                }
+            });
+            int run = 0;
+            start = System.nanoTime();
+            while (run < runRounds && engine.runRound() != GameState.DONE)
+                run++;
+            long runNanos = System.nanoTime() - start;
+            System.out.printf("  ran %d rounds in %.1f ms, to round %d%s%n", run, runNanos / 1e6,
+                    world.getCurrentRound(), world.getWinner() == null ? "" : ", winner " + world.getWinner());
+        }
+    }
+}
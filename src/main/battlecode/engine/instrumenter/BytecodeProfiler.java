@@ -0,0 +1,230 @@
+package battlecode.engine.instrumenter;
+
+import battlecode.common.Team;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Attributes the bytecodes that robots use to the methods of their players, when bc.engine.profiler is set.
+ * <p/>
+ * Team classes instrumented for profiling call RobotMonitor.enterMethod when each method starts and
+ * RobotMonitor.exitMethod when it returns or throws, and charge their basic blocks with
+ * RobotMonitor.incrementProfiledBytecodes instead of incrementBytecodes.  Each robot keeps a tree of the call stacks
+ * it has been in, with a counter for each one, so charging a block is just adding to the counter of the robot's
+ * current stack.  Bytecodes charged by instrumented library code count towards the player method that called it.
+ * <p/>
+ * At the end of each round, the methods that each team spent the most bytecodes in that round are noted down, and
+ * at the end of the match each team's robots' trees are merged and written out in the collapsed stack format that
+ * flame graph tools read: one line per stack, with the methods separated by semicolons, followed by a space and the
+ * number of bytecodes used in that stack's last method.
+ *
+ * @see RoboMethodTree
+ */
+public class BytecodeProfiler {
+
+    /**
+     * One call stack: a method, and the stack that called it.
+     */
+    static class Frame {
+        final String method;
+        final Frame parent;
+        Frame[] children = NO_FRAMES;
+        int numChildren;
+        // bytecodes used in this method (and not in the methods it called) while the stack was this one
+        long bytecodes;
+        // the part of bytecodes that was used this round
+        int roundBytecodes;
+
+        Frame(String method, Frame parent) {
+            this.method = method;
+            this.parent = parent;
+        }
+
+        Frame child(String method) {
+            for (int i = 0; i < numChildren; i++) {
+                // the names are string constants, so they are usually the same object
+                if (children[i].method == method || children[i].method.equals(method))
+                    return children[i];
+            }
+            if (numChildren == children.length)
+                children = Arrays.copyOf(children, Math.max(4, 2 * numChildren));
+            return children[numChildren++] = new Frame(method, this);
+        }
+
+        void merge(Frame f) {
+            bytecodes += f.bytecodes;
+            for (int i = 0; i < f.numChildren; i++)
+                child(f.children[i].method).merge(f.children[i]);
+        }
+    }
+
+    private static final Frame[] NO_FRAMES = new Frame[0];
+
+    /**
+     * The call stacks of one robot.
+     */
+    public static class Profile {
+        private final Frame root = new Frame(null, null);
+        private Frame current = root;
+        // the stacks whose roundBytecodes aren't zero
+        private Frame[] charged = new Frame[16];
+        private int numCharged;
+
+        void enter(String method) {
+            current = current.child(method);
+        }
+
+        void exit() {
+            if (current != root)
+                current = current.parent;
+        }
+
+        void charge(int numBytecodes) {
+            Frame f = current;
+            if (f.roundBytecodes == 0) {
+                if (numCharged == charged.length)
+                    charged = Arrays.copyOf(charged, 2 * numCharged);
+                charged[numCharged++] = f;
+            }
+            f.bytecodes += numBytecodes;
+            f.roundBytecodes += numBytecodes;
+        }
+    }
+
+    private final int topMethods;
+
+    private final List<List<Profile>> profiles = new ArrayList<List<Profile>>();
+
+    // one line for each round and team
+    private final List<String> roundSummary = new ArrayList<String>();
+
+    /**
+     * @param topMethods how many methods to list for each team in each round's summary
+     */
+    public BytecodeProfiler(int topMethods) {
+        this.topMethods = topMethods;
+        for (int i = 0; i < Team.values().length; i++)
+            profiles.add(new ArrayList<Profile>());
+    }
+
+    /**
+     * Creates the profile of a new robot on the given team.
+     */
+    public Profile newProfile(Team team) {
+        Profile p = new Profile();
+        profiles.get(team.ordinal()).add(p);
+        return p;
+    }
+
+    /**
+     * Notes down which methods each team used the most bytecodes in this round.  Should be called by the engine
+     * thread after every round.
+     */
+    public void endRound(int round) {
+        for (Team team : Team.values()) {
+            Map<String, long[]> totals = new HashMap<String, long[]>();
+            for (Profile p : profiles.get(team.ordinal())) {
+                for (int i = 0; i < p.numCharged; i++) {
+                    Frame f = p.charged[i];
+                    long[] total = totals.get(f.method);
+                    if (total == null)
+                        totals.put(f.method, total = new long[1]);
+                    total[0] += f.roundBytecodes;
+                    f.roundBytecodes = 0;
+                    p.charged[i] = null;
+                }
+                p.numCharged = 0;
+            }
+            if (totals.isEmpty())
+                continue;
+            List<Map.Entry<String, long[]>> methods = new ArrayList<Map.Entry<String, long[]>>(totals.entrySet());
+            Collections.sort(methods, new Comparator<Map.Entry<String, long[]>>() {
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    if (a.getValue()[0] != b.getValue()[0])
+                        return a.getValue()[0] > b.getValue()[0] ? -1 : 1;
+                    return methodName(a.getKey()).compareTo(methodName(b.getKey()));
+                }
+            });
+            StringBuilder line = new StringBuilder();
+            line.append(round).append(' ').append(team);
+            for (int i = 0; i < methods.size() && i < topMethods; i++)
+                line.append(' ').append(methodName(methods.get(i).getKey())).append('=').append(methods.get(i).getValue()[0]);
+            roundSummary.add(line.toString());
+        }
+    }
+
+    /**
+     * Returns the call stacks of all of the given team's robots, merged together.
+     */
+    Frame merged(Team team) {
+        Frame root = new Frame(null, null);
+        for (Profile p : profiles.get(team.ordinal()))
+            root.merge(p.root);
+        return root;
+    }
+
+    /**
+     * Writes each team's call stacks to <code>prefix.A.collapsed</code> and <code>prefix.B.collapsed</code>, and the
+     * round summaries to <code>prefix.rounds.txt</code>, in the given directory.
+     *
+     * @return a description of what was written
+     */
+    public String write(File dir, String prefix) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("couldn't create " + dir);
+        StringBuilder report = new StringBuilder("bytecode profile:");
+        for (Team team : Team.values()) {
+            if (profiles.get(team.ordinal()).isEmpty() || team == Team.NEUTRAL)
+                continue;
+            Frame root = merged(team);
+            File file = new File(dir, prefix + "." + team + ".collapsed");
+            PrintWriter out = new PrintWriter(new FileWriter(file));
+            try {
+                writeCollapsed(out, root, new StringBuilder());
+            } finally {
+                out.close();
+            }
+            report.append(String.format("%n  team %s: %d bytecodes in %s", team, total(root), file.getPath()));
+        }
+        File file = new File(dir, prefix + ".rounds.txt");
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            for (String line : roundSummary)
+                out.println(line);
+        } finally {
+            out.close();
+        }
+        report.append(String.format("%n  top %d methods of each round in %s", topMethods, file.getPath()));
+        return report.toString();
+    }
+
+    private static void writeCollapsed(PrintWriter out, Frame f, StringBuilder stack) {
+        int length = stack.length();
+        if (f.parent != null) {
+            if (f.parent.parent != null)
+                stack.append(';');
+            stack.append(methodName(f.method));
+        }
+        if (f.bytecodes != 0)
+            out.println((f.parent == null ? "[unknown]" : stack.toString()) + " " + f.bytecodes);
+        for (int i = 0; i < f.numChildren; i++)
+            writeCollapsed(out, f.children[i], stack);
+        stack.setLength(length);
+    }
+
+    private static long total(Frame f) {
+        long total = f.bytecodes;
+        for (int i = 0; i < f.numChildren; i++)
+            total += total(f.children[i]);
+        return total;
+    }
+
+    // the root of a tree stands for code outside of any of the player's methods
+    private static String methodName(String method) {
+        return method == null ? "[unknown]" : method;
+    }
+}
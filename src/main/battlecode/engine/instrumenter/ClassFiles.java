@@ -0,0 +1,135 @@
+package battlecode.engine.instrumenter;
+
+import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds and reads class files on the class path, the same way ClassReader
+ * does.  Class names are binary names with slashes, e.g. "team000/RobotPlayer".
+ */
+class ClassFiles {
+
+    private ClassFiles() {
+    }
+
+    /**
+     * Reads the class file for the given class, or returns null if it can't
+     * be found.
+     */
+    static byte[] read(String className) {
+        InputStream in = ClassLoader.getSystemResourceAsStream(className + ".class");
+        if (in == null)
+            return null;
+        try {
+            try {
+                return readFully(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the directory or jar on the class path that the given class is
+     * loaded from, or null if it can't be found or isn't a local file.
+     */
+    static File classPathEntry(String className) {
+        String resource = className + ".class";
+        URL url = ClassLoader.getSystemResource(resource);
+        if (url == null)
+            return null;
+        try {
+            if ("file".equals(url.getProtocol())) {
+                String path = new File(url.toURI()).getPath();
+                return new File(path.substring(0, path.length() - resource.length()));
+            }
+            if ("jar".equals(url.getProtocol())) {
+                URLConnection connection = url.openConnection();
+                if (connection instanceof JarURLConnection) {
+                    URL jarUrl = ((JarURLConnection) connection).getJarFileURL();
+                    if ("file".equals(jarUrl.getProtocol()))
+                        return new File(jarUrl.toURI());
+                }
+            }
+        } catch (URISyntaxException e) {
+        } catch (IOException e) {
+        }
+        return null;
+    }
+
+    /**
+     * Reads every class file in the given package and the packages inside
+     * it from a directory or jar on the class path, sorted by class name.
+     * Files that can't be read are left out, since the class loader can't
+     * read them either.
+     */
+    static SortedMap<String, byte[]> readPackage(File classPathEntry, String packageName) {
+        SortedMap<String, byte[]> classes = new TreeMap<String, byte[]>();
+        try {
+            if (classPathEntry.isFile())
+                readJar(classPathEntry, packageName + "/", classes);
+            else
+                readDirectory(new File(classPathEntry, packageName), packageName + "/", classes);
+        } catch (IOException e) {
+        }
+        return classes;
+    }
+
+    private static void readJar(File jar, String prefix, SortedMap<String, byte[]> classes) throws IOException {
+        ZipFile zip = new ZipFile(jar);
+        try {
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.startsWith(prefix) && name.endsWith(".class")) {
+                    InputStream in = zip.getInputStream(entry);
+                    try {
+                        classes.put(name.substring(0, name.length() - 6), readFully(in));
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void readDirectory(File dir, String prefix, SortedMap<String, byte[]> classes) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isDirectory())
+                readDirectory(f, prefix + name + "/", classes);
+            else if (name.endsWith(".class")) {
+                InputStream in = new FileInputStream(f);
+                try {
+                    classes.put(prefix + name.substring(0, name.length() - 6), readFully(in));
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+}
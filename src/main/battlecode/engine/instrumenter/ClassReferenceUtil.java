@@ -1,12 +1,14 @@
 package battlecode.engine.instrumenter;
 
 import battlecode.engine.ErrorReporter;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.signature.SignatureReader;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.zip.ZipFile;
@@ -254,6 +256,47 @@ public class ClassReferenceUtil {
         return writer.toString();
     }
 
+    /**
+     * Returns the names of the classes starting with the given prefix that a
+     * class file mentions anywhere in its constant pool: as classes, or in
+     * descriptors and signatures.
+     */
+    public static Set<String> referencedClasses(byte[] classBytes, String prefix) {
+        ClassReader cr = new ClassReader(classBytes);
+        int count = cr.readUnsignedShort(8);
+        Set<String> classes = new HashSet<String>();
+        for (int i = 1; i < count; i++) {
+            // getItem returns 0 for the unused entry after a long or double
+            int index = cr.getItem(i);
+            if (index != 0 && cr.b[index - 1] == CONSTANT_UTF8) {
+                // class names are ASCII, so this is as good as decoding modified UTF-8
+                String name = new String(cr.b, index + 2, cr.readUnsignedShort(index), UTF8);
+                addReferencedClasses(name, prefix, classes);
+            }
+        }
+        return classes;
+    }
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // name is a class name, a descriptor or a signature (or a string
+    // constant, which usually won't match)
+    private static void addReferencedClasses(String name, String prefix, Set<String> classes) {
+        if (name.startsWith(prefix)) {
+            classes.add(name);
+            return;
+        }
+        String start = "L" + prefix;
+        for (int i = name.indexOf(start); i >= 0; i = name.indexOf(start, i + 1)) {
+            int end = i + 1;
+            while (end < name.length() && name.charAt(end) != ';' && name.charAt(end) != '<')
+                end++;
+            classes.add(name.substring(i + 1, end));
+        }
+    }
+
     // called whenever an illegal class is found; throws an InstrumentationException
     private static String illegalClass(String className, String teamPackageName) {
         if (InstrumentingClassLoader.lazy()) {
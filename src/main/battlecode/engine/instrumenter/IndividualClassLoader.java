@@ -4,8 +4,17 @@ import battlecode.engine.ErrorReporter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
 
@@ -13,27 +22,123 @@ public class IndividualClassLoader extends InstrumentingClassLoader {
     private boolean retryLoad;
     private final static String[] disallowedPlayerPackages = {"java/", "battlecode/", "sun/"};
 
-    // caches the binary format of classes that have been instrumented
-    // the values are byte arrays, not Classes, because each instance of InstrumentingClassLoader should define its own class,
-    // even if another InstrumentingClassLoader has already loaded a class from the same class file
-    private final static Map<String, byte[]> instrumentedClasses = new HashMap<String, byte[]>();
+    /**
+     * The instrumentation state shared by all of the IndividualClassLoaders of one match.
+     */
+    public static class Cache {
+        // caches the binary format of classes that have been instrumented
+        // the values are byte arrays, not Classes, because each instance of InstrumentingClassLoader should define its own class,
+        // even if another InstrumentingClassLoader has already loaded a class from the same class file
+        private final Map<String, byte[]> instrumentedClasses = new HashMap<String, byte[]>();
 
-    // caches the names of teams with errors, so that if a class is loaded for that team, it immediately throws an exception
-    private final static Set<String> teamsWithErrors = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        // caches the names of teams with errors, so that if a class is loaded for that team, it immediately throws an exception
+        private final Set<String> teamsWithErrors = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
 
-    // the name of the team this InstrumentingClassLoader is loading
-    private final String teamPackageName;
+        private final SingletonClassLoader singletonLoader = new SingletonClassLoader();
+
+        // team package name -> PersistentClassCache.teamDigest, worked out once per match
+        private final Map<String, String> teamDigests = new HashMap<String, String>();
+
+        // with bc.engine.shared-classes, team package name -> the team's one loader, and what we know about its classes
+        private final Map<String, IndividualClassLoader> teamLoaders = new HashMap<String, IndividualClassLoader>();
+        private final Map<String, StaticFields> staticFields = new HashMap<String, StaticFields>();
+
+        // how long it took to load robots' classes
+        private int robotsLoaded, classesDefined;
+        private long robotLoadNanos, maxRobotLoadNanos;
+
+        // what the PersistentClassCache did for this match
+        private boolean usedDiskCache;
+        private int diskHits, diskMisses;
+        private long instrumentNanos, loadNanos, savedNanos;
+
+        /**
+         * Returns whether any classes were looked up in the
+         * PersistentClassCache.
+         */
+        public synchronized boolean usedDiskCache() {
+            return usedDiskCache;
+        }
+
+        public synchronized int getDiskHits() {
+            return diskHits;
+        }
+
+        public synchronized int getDiskMisses() {
+            return diskMisses;
+        }
+
+        /**
+         * Returns how long it took to instrument the classes that weren't
+         * in the PersistentClassCache, in nanoseconds.
+         */
+        public synchronized long getInstrumentNanos() {
+            return instrumentNanos;
+        }
+
+        /**
+         * Returns how long it took to instrument the classes that were in
+         * the PersistentClassCache when they were cached, minus the time it
+         * took to read them back, in nanoseconds.
+         */
+        public synchronized long getSavedNanos() {
+            return savedNanos - loadNanos;
+        }
+
+        /**
+         * Records that PlayerFactory took the given number of nanoseconds
+         * to load a robot's RobotPlayer class.
+         */
+        public synchronized void addRobotLoad(long nanos) {
+            robotsLoaded++;
+            robotLoadNanos += nanos;
+            maxRobotLoadNanos = Math.max(maxRobotLoadNanos, nanos);
+        }
 
-    public static void reset() {
-        instrumentedClasses.clear();
-        teamsWithErrors.clear();
-        singletonLoader = new SingletonClassLoader();
+        /**
+         * Returns how many robots were loaded, how long that took, how many
+         * classes were defined for them, and how much of the JVM's
+         * metaspace (or permgen) is in use.
+         */
+        public synchronized String loadingReport() {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getName().contains("Metaspace") || pool.getName().contains("Perm Gen"))
+                    used += pool.getUsage().getUsed();
+            }
+            return String.format("class loading: %d robots, %.1f us per robot (slowest %.1f us), %d classes defined (%s), %.1f MB metaspace in use",
+                    robotsLoaded, robotsLoaded == 0 ? 0. : robotLoadNanos / 1e3 / robotsLoaded, maxRobotLoadNanos / 1e3, classesDefined,
+                    sharedClasses() ? "shared per team" : "per robot", used / 1048576.);
+        }
+
+        public synchronized String toString() {
+            int total = diskHits + diskMisses;
+            return String.format("class cache: %d hits, %d misses (%.0f%% hit rate), %.1f ms instrumenting, %.1f ms saved",
+                    diskHits, diskMisses, total == 0 ? 0. : 100. * diskHits / total,
+                    instrumentNanos / 1e6, (savedNanos - loadNanos) / 1e6);
+        }
     }
 
-    static SingletonClassLoader singletonLoader = new SingletonClassLoader();
+    private final Cache cache;
+    private final Map<String, byte[]> instrumentedClasses;
+    private final Set<String> teamsWithErrors;
+    private final SingletonClassLoader singletonLoader;
+    // null unless bc.engine.shared-classes is set
+    private final StaticFields staticFields;
+
+    // the name of the team this InstrumentingClassLoader is loading
+    private final String teamPackageName;
 
     public IndividualClassLoader(String teamPackageName, boolean debugMethodsEnabled, boolean silenced, boolean retry) throws InstrumentationException {
-        super(silenced, debugMethodsEnabled, singletonLoader);
+        this(teamPackageName, debugMethodsEnabled, silenced, retry, new Cache());
+    }
+
+    public IndividualClassLoader(String teamPackageName, boolean debugMethodsEnabled, boolean silenced, boolean retry, Cache cache) throws InstrumentationException {
+        super(silenced, debugMethodsEnabled, cache.singletonLoader);
+        this.cache = cache;
+        this.instrumentedClasses = cache.instrumentedClasses;
+        this.teamsWithErrors = cache.teamsWithErrors;
+        this.singletonLoader = cache.singletonLoader;
 	retryLoad = retry;
         checkSettings();
 
@@ -48,6 +153,56 @@ public class IndividualClassLoader extends InstrumentingClassLoader {
 
         this.teamPackageName = teamPackageName.intern();
 
+        if (sharedClasses()) {
+            synchronized (cache) {
+                StaticFields fields = cache.staticFields.get(teamPackageName);
+                if (fields == null) {
+                    fields = new StaticFields(teamPackageName);
+                    cache.staticFields.put(teamPackageName, fields);
+                }
+                staticFields = fields;
+            }
+        } else
+            staticFields = null;
+    }
+
+    /**
+     * Returns the class loader for a new robot of the given team.  Each
+     * robot gets its own, unless bc.engine.shared-classes is set, in which
+     * case all of the team's robots in the match share one.
+     */
+    public static IndividualClassLoader forRobot(String teamPackageName, boolean debugMethodsEnabled, Cache cache) throws InstrumentationException {
+        checkSettings();
+        if (!sharedClasses())
+            return new IndividualClassLoader(teamPackageName, debugMethodsEnabled, false, true, cache);
+        synchronized (cache) {
+            IndividualClassLoader loader = cache.teamLoaders.get(teamPackageName);
+            if (loader == null) {
+                loader = new IndividualClassLoader(teamPackageName, debugMethodsEnabled, false, true, cache);
+                cache.teamLoaders.put(teamPackageName, loader);
+            }
+            return loader;
+        }
+    }
+
+    /**
+     * Sets up the given class for the running robot, the way the JVM
+     * would when the robot first calls one of the class's static methods.
+     * This only has to be done for classes that the robot starts using
+     * from outside its own code, and only does anything when the robot
+     * shares its classes (see StaticFieldAdapter).
+     */
+    public static void initialize(Class<?> c) throws Exception {
+        if (!(c.getClassLoader() instanceof IndividualClassLoader))
+            return;
+        IndividualClassLoader loader = (IndividualClassLoader) c.getClassLoader();
+        if (loader.staticFields == null)
+            return;
+        String target = loader.staticFields.initTarget(c.getName().replace('.', '/'));
+        if (target == null)
+            return;
+        Method get = loader.loadClass(StaticFieldAdapter.companionName(target)).getMethod("$get");
+        get.invoke(null);
     }
 
     private void dumpToFile(String name, byte[] bytes) {
@@ -62,36 +217,45 @@ public class IndividualClassLoader extends InstrumentingClassLoader {
 
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
 
-        synchronized (teamPackageName) {
+        synchronized (cache) {
 
             // check if the team we're loading already has errors
             if (teamsWithErrors.contains(teamPackageName))
                 throw new InstrumentationException();
 
-            name = name.replace('.', '/');
+            // this is the class we'll return; a loader that is shared by a
+            // team's robots is asked for the same class more than once
+            Class finishedClass = findLoadedClass(name.replace('/', '.'));
+            if (finishedClass != null)
+                return finishedClass;
 
-            // this is the class we'll return
-            Class finishedClass = null;
+            name = name.replace('.', '/');
 
             //System.out.println("loadClass "+name);
 
+            boolean companion = staticFields != null && name.endsWith(StaticFieldAdapter.COMPANION_SUFFIX);
+            String originalName = originalName(name, companion);
+
             if (instrumentedClasses.containsKey(name)) {
                 byte[] classBytes = instrumentedClasses.get(name);
                 finishedClass = defineClass(null, classBytes, 0, classBytes.length);
-            } else if (name.equals("battlecode/engine/instrumenter/lang/ObjectHashCode") ||
-                    name.equals("battlecode/engine/instrumenter/lang/InstrumentableFunctions")) {
+                cache.classesDefined++;
+            } else if (originalName.equals(StaticFields.OBJECT_HASH_CODE) ||
+                    originalName.equals(StaticFields.INSTRUMENTABLE_FUNCTIONS)) {
                 // We want each robot to have its own copy of this class
                 // so that it isn't possible to send messages by calling
                 // hashCode repeatedly.  But we don't want to instrument it.
+                // With shared classes, each robot has its own copy of the
+                // static fields instead.
                 ClassReader cr = null;
                 try {
-                    cr = new ClassReader(name);
+                    cr = new ClassReader(originalName);
                 } catch (IOException ioe) {
                     ErrorReporter.report("Can't find the class \"" + name + "\"", "Make sure the team name is spelled correctly.\nMake sure the .class files are in the right directory (teams/teamname/*.class)");
                     throw new InstrumentationException();
                 }
                 ClassWriter cw = new ClassWriter(cr, COMPUTE_MAXS);
-                cr.accept(cw, 0);
+                cr.accept(staticFields == null ? cw : new StaticFieldAdapter(cw, staticFields, companion), 0);
                 finishedClass = saveAndDefineClass(name, cw.toByteArray());
             } else if (name.startsWith(teamPackageName)) {
                 byte[] classBytes = null;
@@ -100,7 +264,7 @@ public class IndividualClassLoader extends InstrumentingClassLoader {
 		    if(!retryLoad)
 			retry = false;
 		    try {
-			classBytes = instrument(name, true, teamPackageName);
+			classBytes = instrumentOrLoad(name, true);
 			//dumpToFile(name,classBytes);
 			retry = false;
 		    } catch (InstrumentationException ie) {			
@@ -117,14 +281,13 @@ public class IndividualClassLoader extends InstrumentingClassLoader {
 
                 finishedClass = saveAndDefineClass(name, classBytes);
             }
-            // Each robot has its own version of java.util classes.
-            // If permgen space becomes a problem, we could make it so
-            // that only one copy of these classes is loaded, but
-            // we would need to modify ObjectHashCode.
+            // Each robot has its own version of java.util classes,
+            // unless bc.engine.shared-classes is set, in which case
+            // StaticFieldAdapter keeps their static fields per robot.
             else if (name.startsWith("instrumented")) {
                 byte[] classBytes;
                 try {
-                    classBytes = instrument(name, false, teamPackageName);
+                    classBytes = instrumentOrLoad(name, false);
                     //dumpToFile(name,classBytes);
                 } catch (InstrumentationException ie) {
                     teamsWithErrors.add(teamPackageName);
@@ -151,6 +314,144 @@ public class IndividualClassLoader extends InstrumentingClassLoader {
         }
     }
 
+    /**
+     * Instruments a class, or reads it from the PersistentClassCache if
+     * bc.engine.class-cache is set and the class has been instrumented the
+     * same way before.  This can run on several threads at once when
+     * preinstrumenting, so the shared state in cache is only touched with
+     * its lock held.
+     */
+    private byte[] instrumentOrLoad(String name, boolean checkDisallowed) throws InstrumentationException {
+        PersistentClassCache disk = PersistentClassCache.getInstance();
+        if (disk == null)
+            return instrument(name, checkDisallowed, teamPackageName, staticFields);
+        boolean companion = staticFields != null && name.endsWith(StaticFieldAdapter.COMPANION_SUFFIX);
+        byte[] original = ClassFiles.read(originalName(name, companion));
+        if (original == null) {
+            // let instrument report the missing class
+            return instrument(name, checkDisallowed, teamPackageName, staticFields);
+        }
+
+        long start = System.nanoTime();
+        String teamDigest = null;
+        if (name.startsWith(teamPackageName)) {
+            synchronized (cache) {
+                teamDigest = cache.teamDigests.get(teamPackageName);
+                if (teamDigest == null) {
+                    teamDigest = PersistentClassCache.teamDigest(name, teamPackageName);
+                    cache.teamDigests.put(teamPackageName, teamDigest);
+                }
+            }
+        }
+        String key = disk.key(name, original, teamPackageName, teamDigest, debugMethodsEnabled, silenced, checkDisallowed);
+        PersistentClassCache.Entry entry = disk.get(key);
+        if (entry != null) {
+            synchronized (cache) {
+                cache.usedDiskCache = true;
+                cache.diskHits++;
+                cache.savedNanos += entry.instrumentNanos;
+                cache.loadNanos += System.nanoTime() - start;
+            }
+            return entry.classBytes;
+        }
+
+        start = System.nanoTime();
+        byte[] classBytes = instrument(original, checkDisallowed, teamPackageName, staticFields, companion);
+        long elapsed = System.nanoTime() - start;
+        synchronized (cache) {
+            cache.usedDiskCache = true;
+            cache.diskMisses++;
+            cache.instrumentNanos += elapsed;
+        }
+        disk.put(key, classBytes, elapsed);
+        return classBytes;
+    }
+
+    /**
+     * Instruments every class in the team's package, and then the
+     * instrumented library classes those refer to, the ones those refer to,
+     * and so on until no new ones turn up, on the given executor.
+     * Robots then find their classes already instrumented instead of
+     * instrumenting them one at a time during their first turns.  Classes
+     * that can't be instrumented are left for loadClass to report when a
+     * robot actually uses them.
+     *
+     * @return the number of classes instrumented
+     */
+    public int preinstrument(Executor executor) throws InterruptedException {
+        File entry = ClassFiles.classPathEntry(teamPackageName + "/RobotPlayer");
+        if (entry == null)
+            return 0;
+        Map<String, byte[]> newClasses = preinstrument(executor, withCompanions(ClassFiles.readPackage(entry, teamPackageName).keySet()), true);
+        int count = newClasses.size();
+        // every class whose references have been looked for, or that has
+        // been tried, so that classes that fail aren't tried again
+        Set<String> seen = new HashSet<String>(newClasses.keySet());
+        while (!newClasses.isEmpty()) {
+            Set<String> libraryClasses = new TreeSet<String>();
+            for (byte[] classBytes : newClasses.values()) {
+                for (String name : ClassReferenceUtil.referencedClasses(classBytes, "instrumented/")) {
+                    if (seen.add(name))
+                        libraryClasses.add(name);
+                }
+            }
+            newClasses = preinstrument(executor, withCompanions(libraryClasses), false);
+            count += newClasses.size();
+        }
+        return count;
+    }
+
+    // adds the companions of the classes that have them, if classes are shared
+    private Collection<String> withCompanions(Collection<String> names) {
+        if (staticFields == null)
+            return names;
+        Set<String> result = new TreeSet<String>(names);
+        for (String name : names) {
+            StaticFields.Info info = staticFields.get(name);
+            if (info != null && info.hasCompanion)
+                result.add(StaticFieldAdapter.companionName(name));
+        }
+        return result;
+    }
+
+    private Map<String, byte[]> preinstrument(Executor executor, Collection<String> names, final boolean checkDisallowed) throws InterruptedException {
+        Map<String, Future<byte[]>> futures = new TreeMap<String, Future<byte[]>>();
+        for (final String name : names) {
+            synchronized (cache) {
+                if (instrumentedClasses.containsKey(name))
+                    continue;
+            }
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() {
+                    try {
+                        return instrumentOrLoad(name, checkDisallowed);
+                    } catch (InstrumentationException ie) {
+                        return null;
+                    }
+                }
+            });
+            futures.put(name, task);
+            executor.execute(task);
+        }
+        Map<String, byte[]> instrumented = new TreeMap<String, byte[]>();
+        for (Map.Entry<String, Future<byte[]>> e : futures.entrySet()) {
+            try {
+                byte[] classBytes = e.getValue().get();
+                if (classBytes != null)
+                    instrumented.put(e.getKey(), classBytes);
+            } catch (ExecutionException ee) {
+                // loadClass will run into this again if the class is used
+            }
+        }
+        synchronized (cache) {
+            for (Map.Entry<String, byte[]> e : instrumented.entrySet()) {
+                if (!instrumentedClasses.containsKey(e.getKey()))
+                    instrumentedClasses.put(e.getKey(), e.getValue());
+            }
+        }
+        return instrumented;
+    }
+
     public Class<?> saveAndDefineClass(String name, byte[] classBytes) {
         if (classBytes == null) {
             ErrorReporter.report("Can't find instrumented class " + name + ", but no errors reported", true);
@@ -158,6 +459,7 @@ public class IndividualClassLoader extends InstrumentingClassLoader {
         }
         Class<?> theClass = defineClass(null, classBytes, 0, classBytes.length);
         instrumentedClasses.put(name, classBytes);
+        cache.classesDefined++;
         return theClass;
 
     }
@@ -18,6 +18,9 @@ public abstract class InstrumentingClassLoader extends ClassLoader {
 
     private static boolean lazy;
     private static boolean fastHash;
+    private static boolean sharedClasses;
+    private static boolean deferredMetering;
+    private static boolean profiling;
     private static boolean checkedSettings;
 
     /**
@@ -52,12 +55,51 @@ public abstract class InstrumentingClassLoader extends ClassLoader {
         return fastHash;
     }
 
+    /**
+     * Returns the value of the property bc.engine.shared-classes.
+     * If it is set, then all of a team's robots in a match share one
+     * definition of each player and instrumented library class, instead of
+     * each robot loading its own, and StaticFieldAdapter gives each robot its
+     * own static fields.
+     */
+    public static boolean sharedClasses() {
+        return sharedClasses;
+    }
+
+    /**
+     * Returns whether the property bc.engine.metering is "deferred".
+     * Normally every basic block calls RobotMonitor.incrementBytecodes.
+     * With deferred metering, basic blocks add their bytecodes to a local
+     * variable, which is passed to RobotMonitor at back edges, before calls
+     * and when the method exits.  Robots are charged the same either way.
+     * <p/>
+     * {@see RoboMethodTree#endOfBasicBlock}
+     */
+    public static boolean deferredMetering() {
+        return deferredMetering;
+    }
+
+    /**
+     * Returns the value of the property bc.engine.profiler.
+     * If it is set, then team classes tell RobotMonitor which method each
+     * robot is in, so that BytecodeProfiler can attribute the robot's
+     * bytecodes to its methods.  Otherwise none of that code is emitted.
+     * <p/>
+     * {@see RoboMethodTree#addProfilerHandler}
+     */
+    public static boolean profiling() {
+        return profiling;
+    }
+
     protected static void checkSettings() {
         if (!checkedSettings) {
             checkedSettings = true;
             Config config = Config.getGlobalConfig();
             lazy = config.getBoolean("bc.engine.lazy-instrumenter");
             fastHash = config.getBoolean("bc.engine.fast-hash");
+            sharedClasses = config.getBoolean("bc.engine.shared-classes");
+            deferredMetering = "deferred".equals(config.get("bc.engine.metering"));
+            profiling = config.getBoolean("bc.engine.profiler");
         }
     }
 
@@ -74,24 +116,65 @@ public abstract class InstrumentingClassLoader extends ClassLoader {
     }
 
     public byte[] instrument(String className, boolean checkDisallowed, String teamPackageName) throws InstrumentationException {
+        return instrument(className, checkDisallowed, teamPackageName, null);
+    }
+
+    /**
+     * Instruments a class.  If staticFields is not null, the class is
+     * instrumented to be shared by all of a team's robots (see
+     * StaticFieldAdapter), and a name ending in
+     * StaticFieldAdapter.COMPANION_SUFFIX asks for the companion of the
+     * class it names.
+     */
+    byte[] instrument(String className, boolean checkDisallowed, String teamPackageName, StaticFields staticFields) throws InstrumentationException {
         //System.out.println("instrumenting "+className+", checkDisallowed "+checkDisallowed);
+        boolean companion = staticFields != null && className.endsWith(StaticFieldAdapter.COMPANION_SUFFIX);
         ClassReader cr;
         try {
-            if (className.startsWith("instrumented/"))
-                cr = new ClassReader(className.substring(13));
-            else
-                cr = new ClassReader(className);
+            cr = new ClassReader(originalName(className, companion));
         } catch (IOException ioe) {
             ErrorReporter.report("Can't find the class \"" + className + "\"", "Make sure the team name is spelled correctly.\nMake sure the .class files are in the right directory (teams/teamname/*.class)");
             throw new InstrumentationException();
         }
+        return instrument(cr, checkDisallowed, teamPackageName, staticFields, companion);
+    }
+
+    /**
+     * Instruments a class file that has already been read.
+     */
+    public byte[] instrument(byte[] classBytes, boolean checkDisallowed, String teamPackageName) throws InstrumentationException {
+        return instrument(new ClassReader(classBytes), checkDisallowed, teamPackageName, null, false);
+    }
+
+    /**
+     * Instruments a class file that has already been read, for robots that
+     * share classes.  See instrument(String, boolean, String, StaticFields).
+     */
+    byte[] instrument(byte[] classBytes, boolean checkDisallowed, String teamPackageName, StaticFields staticFields, boolean companion) throws InstrumentationException {
+        return instrument(new ClassReader(classBytes), checkDisallowed, teamPackageName, staticFields, companion);
+    }
+
+    private byte[] instrument(ClassReader cr, boolean checkDisallowed, String teamPackageName, StaticFields staticFields, boolean companion) throws InstrumentationException {
         ClassWriter cw = new ClassWriter(COMPUTE_MAXS); // passing true sets maxLocals and maxStack, so we don't have to
-        ClassVisitor cv = new RoboAdapter(cw, teamPackageName, debugMethodsEnabled, silenced, checkDisallowed);
+        ClassVisitor cv = staticFields == null ? cw : new StaticFieldAdapter(cw, staticFields, companion);
+        cv = new RoboAdapter(cv, teamPackageName, debugMethodsEnabled, silenced, checkDisallowed);
         cr.accept(cv, 0);        //passing false lets debug info be included in the transformation, so players get line numbers in stack traces
         byte[] bytes = cw.toByteArray();
         return bytes;
     }
 
+    /**
+     * Returns the name of the class file that the class with the given name
+     * is made from.
+     */
+    static String originalName(String className, boolean companion) {
+        if (companion)
+            className = className.substring(0, className.length() - StaticFieldAdapter.COMPANION_SUFFIX.length());
+        if (className.startsWith("instrumented/"))
+            className = className.substring(13);
+        return className;
+    }
+
     public abstract Class<?> saveAndDefineClass(String name, byte[] classBytes);
 
 }
@@ -0,0 +1,122 @@
+package battlecode.engine.instrumenter;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the two bc.engine.metering modes: runs the matches in a config
+ * file once with "block" and once with "deferred" metering, checks that
+ * the match files are byte for byte the same, and prints how long the
+ * robots' turns took in each mode.  Robots are charged the same bytecodes
+ * either way, so any difference in the match files is a metering bug.
+ * Run it again whenever RoboMethodTree's metering changes.
+ * <p/>
+ * The metering mode is read once per JVM, so each mode runs in its own
+ * server JVM, started with this JVM's classpath and arguments and with
+ * bc.engine.timings set.  Use headless mode in the config file.  A team
+ * that spends its turns in tight loops shows the most difference in
+ * speed; one that reads Clock.getBytecodeNum, throws exceptions across
+ * methods and calls back into its own code from library classes tests the
+ * accounting best.
+ * <p/>
+ * Usage: MeteringBenchmark config-file
+ * <p/>
+ * Exits with 1 if the match files differ.
+ */
+public class MeteringBenchmark {
+
+    static private final int EX_DIFFERENT = 1;
+    static private final int EX_USAGE = 64;
+    static private final int EX_SOFTWARE = 70;
+
+    private static final String[] modes = {"block", "deferred"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: MeteringBenchmark config-file");
+            System.exit(EX_USAGE);
+        }
+
+        File[] matches = new File[modes.length];
+        for (int i = 0; i < modes.length; i++) {
+            matches[i] = File.createTempFile("metering-" + modes[i], ".rms");
+            matches[i].deleteOnExit();
+            if (!runServer(args[0], modes[i], matches[i]))
+                System.exit(EX_SOFTWARE);
+        }
+
+        if (Arrays.equals(readFile(matches[0]), readFile(matches[1]))) {
+            System.out.println("match files are identical");
+        } else {
+            System.out.println("match files differ");
+            System.exit(EX_DIFFERENT);
+        }
+    }
+
+    /**
+     * Runs a server with the given config file and metering mode, and
+     * prints its robot timings.  Returns false if it failed.
+     */
+    private static boolean runServer(String config, String mode, File matchFile) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        // later settings win, so these override any in our own arguments
+        command.add("-Dbc.engine.metering=" + mode);
+        command.add("-Dbc.engine.timings=true");
+        command.add("-Dbc.server.output-timings=false");
+        command.add("-Dbc.server.save-file=" + matchFile.getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("battlecode.server.Main");
+        command.add("-c");
+        command.add(config);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        // keep the robot timings, and the end of the output in case it fails
+        List<String> timings = new ArrayList<String>();
+        List<String> tail = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith("robots ") || trimmed.startsWith("robot "))
+                    timings.add(trimmed);
+                tail.add(line);
+                if (tail.size() > 20)
+                    tail.remove(0);
+            }
+        } finally {
+            in.close();
+        }
+        int status = process.waitFor();
+        long elapsed = System.nanoTime() - start;
+
+        if (status != 0) {
+            System.out.println(mode + ": server exited with " + status + ":");
+            for (String line : tail)
+                System.out.println("  " + line);
+            return false;
+        }
+        System.out.println(String.format("%s: %.1f s", mode, elapsed / 1e9));
+        for (String line : timings)
+            System.out.println("  " + line);
+        return true;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return ClassFiles.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package battlecode.engine.instrumenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast MethodCostUtil.getMethodData looks up the cost of a
+ * call, which the instrumenter does for every method call in a player's
+ * code.  The lookups are for a mix of methods that have costs, methods that
+ * inherit them from a supertype and methods that have none, on library and
+ * battlecode.common classes.  The first pass over them also resolves each
+ * class's supertypes, which is timed separately.
+ * <p/>
+ * Run it from the directory with MethodCosts.txt and AllowedPackages.txt.
+ * If there is an up to date MethodCosts.idx there, the index is measured,
+ * and otherwise MethodCosts.txt is; run it with and without the index (see
+ * the method-cost-index target) to compare them.
+ * <p/>
+ * Usage: MethodCostBenchmark [iterations]
+ */
+public class MethodCostBenchmark {
+
+    private static final String[] classes = {
+            "java/util/ArrayList", "java/util/HashMap", "java/lang/Math", "java/lang/StringBuilder",
+            "java/util/LinkedList", "java/util/TreeMap", "battlecode/common/MapLocation",
+            "battlecode/common/Direction", "java/util/ArrayDeque", "java/util/HashSet",
+            "java/lang/Integer", "java/util/PriorityQueue"
+    };
+
+    private static final String[] methods = {
+            "add", "get", "size", "hashCode", "equals", "toString", "<init>",
+            "distanceSquaredTo", "directionTo", "move", "opponent", "iterator"
+    };
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        long start = System.nanoTime();
+        MethodCostUtil.getMethodDataRaw("java/lang/Object/hashCode");
+        long loaded = System.nanoTime();
+
+        // classes whose supertypes can't be read (e.g. a JDK that the
+        // instrumenter's ASM can't parse) are left out
+        List<String> readable = new ArrayList<String>();
+        int found = 0;
+        for (String c : classes) {
+            try {
+                for (String m : methods) {
+                    if (MethodCostUtil.getMethodData(c, m) != null)
+                        found++;
+                }
+                readable.add(c);
+            } catch (RuntimeException e) {
+                System.out.println("skipping " + c + ": " + e);
+            }
+        }
+        long resolved = System.nanoTime();
+        String[] cls = readable.toArray(new String[readable.size()]);
+
+        System.out.println(String.format("%s: loaded in %.2f ms, supertypes of %d classes resolved in %.2f ms, %d of %d methods have costs",
+                MethodCostUtil.usingIndex() ? "index" : "MethodCosts.txt", (loaded - start) / 1e6,
+                cls.length, (resolved - loaded) / 1e6, found, cls.length * methods.length));
+
+        // the first passes warm up the JIT
+        long lookups = (long) iterations * cls.length * methods.length;
+        for (int pass = 0; pass < 5; pass++) {
+            int hits = 0;
+            long passStart = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String c : cls) {
+                    for (String m : methods) {
+                        if (MethodCostUtil.getMethodData(c, m) != null)
+                            hits++;
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - passStart;
+            System.out.println(String.format("pass %d: %.1f ns/lookup (%d hits)", pass + 1, (double) elapsed / lookups, hits));
+        }
+    }
+}
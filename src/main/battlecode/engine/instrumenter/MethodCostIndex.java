@@ -0,0 +1,380 @@
+package battlecode.engine.instrumenter;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
+
+/**
+ * A precompiled MethodCosts.txt, together with the part of the class
+ * hierarchy that MethodCostUtil needs: for each class in the allowed
+ * packages, which of its superclasses and interfaces have methods in
+ * MethodCosts.txt.  The server maps the file into memory and looks things
+ * up in place, so it doesn't have to parse MethodCosts.txt or read the
+ * class files of library classes to find out what calling them costs.
+ * <p/>
+ * Build it with the method-cost-index ant target, or with
+ * <pre>
+ * java battlecode.engine.instrumenter.MethodCostIndex MethodCosts.txt AllowedPackages.txt MethodCosts.idx
+ * </pre>
+ * It is only used if it was built from the same MethodCosts.txt,
+ * AllowedPackages.txt and battlecode.common classes, on the same version of
+ * Java, as the server is using.  Otherwise MethodCostUtil reads
+ * MethodCosts.txt and the class files like it always has.
+ * <p/>
+ * The file is two open-addressing hash tables of offsets into the file,
+ * one keyed by (class, method) and one by class.  Names are stored as a
+ * length and one byte per character, and compared with the String being
+ * looked up a character at a time, so a lookup doesn't allocate anything.
+ */
+public class MethodCostIndex {
+
+    public static final String FILE_NAME = "MethodCosts.idx";
+
+    private static final int MAGIC = 0x42434d43;
+    private static final int FORMAT_VERSION = 1;
+
+    // header: magic, version, cost slots, cost table offset, class slots, class table offset, stamp
+    private static final int HEADER_SIZE = 24;
+
+    private final ByteBuffer buf;
+    private final int costMask, costTable, classMask, classTable;
+    // the MethodData for each cost slot, made when it is first looked up
+    private final AtomicReferenceArray<MethodCostUtil.MethodData> costs;
+
+    private MethodCostIndex(ByteBuffer buf) {
+        this.buf = buf;
+        costMask = buf.getInt(8) - 1;
+        costTable = buf.getInt(12);
+        classMask = buf.getInt(16) - 1;
+        classTable = buf.getInt(20);
+        costs = new AtomicReferenceArray<MethodCostUtil.MethodData>(costMask + 1);
+    }
+
+    /**
+     * Returns the string that an index built from the given contents of
+     * MethodCosts.txt and AllowedPackages.txt has to carry to be used with
+     * this JVM and these battlecode.common classes.  The hierarchy in the
+     * index comes from the classes in the allowed packages, which are the
+     * Java library (covered by the Java version) and battlecode.common.
+     */
+    static String stamp(byte[] methodCosts, byte[] allowedPackages) {
+        // this only has to notice edits, and a CRC is much cheaper to set up than a MessageDigest
+        CRC32 crc = new CRC32();
+        crc.update(methodCosts);
+        String costs = Long.toHexString(crc.getValue()) + " " + methodCosts.length;
+        crc.reset();
+        crc.update(allowedPackages);
+        String packages = Long.toHexString(crc.getValue()) + " " + allowedPackages.length;
+        crc.reset();
+        int commonClasses = 0;
+        File entry = ClassFiles.classPathEntry("battlecode/common/RobotController");
+        if (entry != null) {
+            for (Map.Entry<String, byte[]> e : ClassFiles.readPackage(entry, "battlecode/common").entrySet()) {
+                crc.update(e.getKey().getBytes());
+                crc.update(e.getValue());
+                commonClasses++;
+            }
+        }
+        String common = Long.toHexString(crc.getValue()) + " " + commonClasses;
+        return costs + " " + packages + " " + common + " " + System.getProperty("java.version");
+    }
+
+    /**
+     * Maps the given index into memory, or returns null if it doesn't
+     * exist, is damaged, or doesn't have the given stamp.
+     */
+    static MethodCostIndex open(File file, String stamp) {
+        if (!file.isFile())
+            return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buf;
+            try {
+                // the mapping stays valid after the file is closed
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (buf.capacity() < HEADER_SIZE + 2 || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION)
+                return null;
+            if (!stamp.equals(readString(buf, HEADER_SIZE)))
+                return null;
+            return new MethodCostIndex(buf);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int hash(String className, String methodName) {
+        // String caches its hash code, so this doesn't look at the characters again
+        int h = className.hashCode() * 31 + methodName.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(String className) {
+        int h = className.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // returns the offset just past the string at offset if it equals s, otherwise -1
+    private int match(int offset, String s) {
+        int length = buf.getShort(offset) & 0xffff;
+        if (length != s.length())
+            return -1;
+        offset += 2;
+        for (int i = 0; i < length; i++) {
+            if ((buf.get(offset + i) & 0xff) != s.charAt(i))
+                return -1;
+        }
+        return offset + length;
+    }
+
+    private static String readString(ByteBuffer buf, int offset) {
+        int length = buf.getShort(offset) & 0xffff;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) (buf.get(offset + 2 + i) & 0xff);
+        return new String(chars);
+    }
+
+    /**
+     * Returns the MethodData for the given method as listed in
+     * MethodCosts.txt (without looking at superclasses), or null if it isn't
+     * listed.
+     */
+    MethodCostUtil.MethodData get(String className, String methodName) {
+        for (int slot = hash(className, methodName) & costMask; ; slot = (slot + 1) & costMask) {
+            int offset = buf.getInt(costTable + 4 * slot);
+            if (offset == 0)
+                return null;
+            offset = match(offset, className);
+            if (offset < 0)
+                continue;
+            offset = match(offset, methodName);
+            if (offset < 0)
+                continue;
+            MethodCostUtil.MethodData data = costs.get(slot);
+            if (data == null) {
+                data = new MethodCostUtil.MethodData(buf.getInt(offset), buf.get(offset + 4) != 0);
+                costs.set(slot, data);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Returns the superclasses and interfaces of the given class that have
+     * methods in MethodCosts.txt, in the order MethodCostUtil should try
+     * them, or null if the class isn't in the index.
+     */
+    String[] costOwners(String className) {
+        for (int slot = hash(className) & classMask; ; slot = (slot + 1) & classMask) {
+            int offset = buf.getInt(classTable + 4 * slot);
+            if (offset == 0)
+                return null;
+            offset = match(offset, className);
+            if (offset < 0)
+                continue;
+            String[] owners = new String[buf.getShort(offset) & 0xffff];
+            offset += 2;
+            for (int i = 0; i < owners.length; i++) {
+                owners[i] = readString(buf, offset).intern();
+                offset += 2 + owners[i].length();
+            }
+            return owners;
+        }
+    }
+
+    /**
+     * Builds an index.
+     *
+     * @param args MethodCosts.txt, AllowedPackages.txt, and the file to write
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: java " + MethodCostIndex.class.getName() + " MethodCosts.txt AllowedPackages.txt " + FILE_NAME);
+            System.exit(1);
+        }
+        byte[] methodCosts = readFile(new File(args[0]));
+        byte[] allowedPackages = readFile(new File(args[1]));
+        Map<String, MethodCostUtil.MethodData> costs = parse(methodCosts);
+        Set<String> owners = new HashSet<String>();
+        for (String key : costs.keySet())
+            owners.add(key.substring(0, key.lastIndexOf('/')));
+
+        Set<String> packages = new HashSet<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(allowedPackages)));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 0)
+                    packages.add(line.trim());
+            }
+        } finally {
+            reader.close();
+        }
+
+        // the classes in the allowed packages, from the Java library and from
+        // wherever battlecode.common comes from, plus the classes with costs
+        Set<String> classNames = new TreeSet<String>(owners);
+        Set<File> entries = new LinkedHashSet<File>();
+        for (String className : new String[]{"java/lang/Object", "battlecode/common/RobotController"}) {
+            File entry = ClassFiles.classPathEntry(className);
+            if (entry != null)
+                entries.add(entry);
+        }
+        for (File entry : entries) {
+            for (String pkg : packages) {
+                for (String className : ClassFiles.readPackage(entry, pkg).keySet()) {
+                    if (className.lastIndexOf('/') == pkg.length())
+                        classNames.add(className);
+                }
+            }
+        }
+
+        Map<String, String[]> hierarchy = new TreeMap<String, String[]>();
+        for (String className : classNames) {
+            byte[] bytes = ClassFiles.read(className);
+            if (bytes == null || !isLatin1(className))
+                continue;
+            InterfaceReader ir = new InterfaceReader();
+            try {
+                new ClassReader(bytes).accept(ir, SKIP_DEBUG);
+            } catch (RuntimeException e) {
+                // this ASM can't read it; MethodCostUtil will find that out for itself
+                continue;
+            }
+            List<String> withCosts = new ArrayList<String>();
+            for (String i : ir.getInterfaces()) {
+                if (owners.contains(i))
+                    withCosts.add(i);
+            }
+            hierarchy.put(className, withCosts.toArray(new String[withCosts.size()]));
+        }
+
+        write(new File(args[2]), stamp(methodCosts, allowedPackages), costs, hierarchy);
+        System.out.println("Wrote " + costs.size() + " method costs and " + hierarchy.size() + " classes to " + args[2]);
+    }
+
+    private static boolean isLatin1(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xff)
+                return false;
+        }
+        return s.length() <= 0xffff;
+    }
+
+    private static int tableSize(int entries) {
+        int size = 16;
+        while (size < 2 * entries)
+            size *= 2;
+        return size;
+    }
+
+    private static void write(File file, String stamp, Map<String, MethodCostUtil.MethodData> costs,
+                              Map<String, String[]> hierarchy) throws IOException {
+        int costSlots = tableSize(costs.size());
+        int classSlots = tableSize(hierarchy.size());
+        int costTable = HEADER_SIZE + 2 + stamp.length();
+        int classTable = costTable + 4 * costSlots;
+        int[] costOffsets = new int[costSlots];
+        int[] classOffsets = new int[classSlots];
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        int base = classTable + 4 * classSlots;
+        for (Map.Entry<String, MethodCostUtil.MethodData> e : costs.entrySet()) {
+            String key = e.getKey();
+            String className = key.substring(0, key.lastIndexOf('/'));
+            String methodName = key.substring(key.lastIndexOf('/') + 1);
+            if (!isLatin1(className) || !isLatin1(methodName))
+                continue;
+            int slot = hash(className, methodName) & (costSlots - 1);
+            while (costOffsets[slot] != 0)
+                slot = (slot + 1) & (costSlots - 1);
+            costOffsets[slot] = base + out.size();
+            writeString(out, className);
+            writeString(out, methodName);
+            out.writeInt(e.getValue().cost);
+            out.writeByte(e.getValue().shouldEndRound ? 1 : 0);
+        }
+        for (Map.Entry<String, String[]> e : hierarchy.entrySet()) {
+            int slot = hash(e.getKey()) & (classSlots - 1);
+            while (classOffsets[slot] != 0)
+                slot = (slot + 1) & (classSlots - 1);
+            classOffsets[slot] = base + out.size();
+            writeString(out, e.getKey());
+            out.writeShort(e.getValue().length);
+            for (String owner : e.getValue())
+                writeString(out, owner);
+        }
+        out.flush();
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            fileOut.writeInt(MAGIC);
+            fileOut.writeInt(FORMAT_VERSION);
+            fileOut.writeInt(costSlots);
+            fileOut.writeInt(costTable);
+            fileOut.writeInt(classSlots);
+            fileOut.writeInt(classTable);
+            writeString(fileOut, stamp);
+            for (int offset : costOffsets)
+                fileOut.writeInt(offset);
+            for (int offset : classOffsets)
+                fileOut.writeInt(offset);
+            records.writeTo(fileOut);
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(file)) {
+            // Windows won't rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("can't rename " + temp + " to " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeShort(s.length());
+        for (int i = 0; i < s.length(); i++)
+            out.writeByte(s.charAt(i));
+    }
+
+    /**
+     * Reads the contents of MethodCosts.txt into a map from 'ClassName/methodName' to MethodData.
+     */
+    static Map<String, MethodCostUtil.MethodData> parse(byte[] methodCosts) throws IOException {
+        Map<String, MethodCostUtil.MethodData> costs = new LinkedHashMap<String, MethodCostUtil.MethodData>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(methodCosts)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            StringTokenizer st = new StringTokenizer(line);
+            if (st.countTokens() != 3)
+                throw new IOException("bad line in MethodCosts.txt: " + line);
+            String name = st.nextToken();
+            if (name.indexOf('/') < 0)
+                throw new IOException("bad line in MethodCosts.txt: " + line);
+            costs.put(name, new MethodCostUtil.MethodData(Integer.parseInt(st.nextToken()), Boolean.parseBoolean(st.nextToken())));
+        }
+        return costs;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return ClassFiles.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+}
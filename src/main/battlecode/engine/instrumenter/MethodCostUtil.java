@@ -3,13 +3,11 @@ package battlecode.engine.instrumenter;
 import battlecode.engine.ErrorReporter;
 import org.objectweb.asm.ClassReader;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
 
@@ -25,12 +23,20 @@ public class MethodCostUtil {
     }
 
     /**
-     * This is a map from method names (in the format 'ClassName/methodName'), to the MethodData associated with each method.
+     * The precompiled MethodCosts.txt (see MethodCostIndex), or null if there isn't an up to date one.
      */
-    private final static Map<String, MethodData> methodCosts;
+    private final static MethodCostIndex index;
+
+    /**
+     * If there is no index, this is a map from class names, to method names, to the MethodData associated with each method.
+     * Looking methods up by class and then by name saves building a 'ClassName/methodName' string for every call we instrument.
+     */
+    private final static Map<String, Map<String, MethodData>> methodCosts;
 
     /**
      * This is a map from binary class names, to all the classes/interfaces that the class transitively implements/extends.
+     * For classes in the index, only the ones that have methods with costs are kept.
+     * Several matches may be instrumenting classes at once, so it has to be thread safe.
      */
     private final static Map<String, String[]> interfacesMap;
 
@@ -48,28 +54,57 @@ public class MethodCostUtil {
     }
 
     static {
-        BufferedReader reader;
-        String line;
-
-        methodCosts = new HashMap<String, MethodData>();
+        MethodCostIndex idx = null;
+        methodCosts = new HashMap<String, Map<String, MethodData>>();
         // load method costs
         try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream("MethodCosts.txt")));
-            while ((line = reader.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer(line);
-                if (st.countTokens() != 3)
-                    ClassReferenceUtil.fileLoadError("MethodCosts.txt");
-                methodCosts.put(st.nextToken(), new MethodData(Integer.parseInt(st.nextToken()), Boolean.parseBoolean(st.nextToken())));
+            byte[] text = MethodCostIndex.readFile(new File("MethodCosts.txt"));
+            byte[] allowedPackages = null;
+            try {
+                allowedPackages = MethodCostIndex.readFile(new File("AllowedPackages.txt"));
+            } catch (IOException e) {
+                // ClassReferenceUtil reports this; just don't use the index
+            }
+            if (allowedPackages != null)
+                idx = MethodCostIndex.open(new File(MethodCostIndex.FILE_NAME), MethodCostIndex.stamp(text, allowedPackages));
+            if (idx == null) {
+                for (Map.Entry<String, MethodData> e : MethodCostIndex.parse(text).entrySet()) {
+                    String fullName = e.getKey();
+                    int slash = fullName.lastIndexOf('/');
+                    String className = fullName.substring(0, slash);
+                    Map<String, MethodData> methods = methodCosts.get(className);
+                    if (methods == null) {
+                        methods = new HashMap<String, MethodData>();
+                        methodCosts.put(className, methods);
+                    }
+                    methods.put(fullName.substring(slash + 1), e.getValue());
+                }
             }
         } catch (IOException e) {
             ClassReferenceUtil.fileLoadError("MethodCosts.txt");
         }
+        index = idx;
 
-        interfacesMap = new HashMap<String, String[]>();
+        interfacesMap = new ConcurrentHashMap<String, String[]>();
+    }
+
+    /**
+     * Returns whether costs are being looked up in the precompiled index rather than in MethodCosts.txt.
+     */
+    static boolean usingIndex() {
+        return index != null;
     }
 
     public static MethodData getMethodDataRaw(String fullName) {
-        return methodCosts.get(fullName);
+        int slash = fullName.lastIndexOf('/');
+        return slash < 0 ? null : lookup(fullName.substring(0, slash), fullName.substring(slash + 1));
+    }
+
+    private static MethodData lookup(String className, String methodName) {
+        if (index != null)
+            return index.get(className, methodName);
+        Map<String, MethodData> methods = methodCosts.get(className);
+        return methods == null ? null : methods.get(methodName);
     }
 
     /**
@@ -81,33 +116,34 @@ public class MethodCostUtil {
     public static MethodData getMethodData(String className, String methodName) {
         if (className.charAt(0) == '[')
             return null;
-        String key = className + "/" + methodName;
-
-        if (methodCosts.containsKey(key))
-            return methodCosts.get(key);
-
-        String[] interfaces = null;
-        if (interfacesMap.containsKey(className))
-            interfaces = interfacesMap.get(className);
-        else {
-            ClassReader cr;
-            try {
-                cr = new ClassReader(className);
-            } catch (IOException ioe) {
-                ErrorReporter.report("Can't find the class \"" + className + "\", and this wasn't caught until the MethodData stage.", true);
-                // this isn't all that bad an error, so don't throw an InstrumentationException
-                return null;
+        MethodData data = lookup(className, methodName);
+        if (data != null)
+            return data;
+
+        String[] interfaces = interfacesMap.get(className);
+        if (interfaces == null) {
+            if (index != null)
+                interfaces = index.costOwners(className);
+            if (interfaces == null) {
+                ClassReader cr;
+                try {
+                    cr = new ClassReader(className);
+                } catch (IOException ioe) {
+                    ErrorReporter.report("Can't find the class \"" + className + "\", and this wasn't caught until the MethodData stage.", true);
+                    // this isn't all that bad an error, so don't throw an InstrumentationException
+                    return null;
+                }
+                InterfaceReader ir = new InterfaceReader();
+                cr.accept(ir, SKIP_DEBUG);
+                interfaces = ir.getInterfaces();
             }
-            InterfaceReader ir = new InterfaceReader();
-            cr.accept(ir, SKIP_DEBUG);
-            interfaces = ir.getInterfaces();
             interfacesMap.put(className, interfaces);
         }
 
         for (int i = 0; i < interfaces.length; i++) {
-            key = interfaces[i] + "/" + methodName;
-            if (methodCosts.containsKey(key))
-                return methodCosts.get(key);
+            data = lookup(interfaces[i], methodName);
+            if (data != null)
+                return data;
         }
 
         return null;
@@ -0,0 +1,292 @@
+package battlecode.engine.instrumenter;
+
+import battlecode.server.Config;
+import battlecode.server.Server;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An on-disk cache of instrumented classes, so that a team whose class files
+ * haven't changed doesn't go through RoboAdapter again in every match, or in
+ * every run of the server.  It is turned on by setting bc.engine.class-cache
+ * to a directory.
+ * <p/>
+ * Entries are named by a SHA-1 of everything the instrumented bytes depend
+ * on: the original class file, the team package, the flags passed to
+ * RoboAdapter, bc.engine.lazy-instrumenter, bc.engine.shared-classes and
+ * the fast-hash settings, the whitelist and method cost files, the class
+ * files of the instrumenter itself, and the Java version and vendor (the
+ * library classes that players use come from the running JVM).
+ * Instrumenting a player class also looks at the other classes it uses (to
+ * decide whether they are Throwables, or what a call costs), so for player
+ * classes the key includes a digest of every class in the team's package
+ * (in the directory or jar the class comes from) as well.  A changed class
+ * gets a new key rather than overwriting the old entry, so nothing ever has
+ * to be invalidated; old entries can be deleted by hand.
+ * <p/>
+ * Entries are written to a temporary file and renamed into place, so any
+ * number of servers can share one directory.
+ */
+public class PersistentClassCache {
+
+    /**
+     * Change this if the instrumented bytes come to depend on something that
+     * isn't part of the key.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x42434943;
+
+    // the classes whose code decides what instrumented classes look like
+    private static final Class<?>[] instrumenterClasses = {
+            InstrumentingClassLoader.class, RoboAdapter.class, RoboMethodTree.class,
+            ClassReferenceUtil.class, MethodCostUtil.class, BattlecodeSignatureWriter.class,
+            InterfaceReader.class, StaticFieldAdapter.class, StaticFields.class,
+            battlecode.common.GameConstants.class
+    };
+
+    private static final String[] settingsFiles = {
+            "AllowedPackages.txt", "DisallowedClasses.txt", "MethodCosts.txt"
+    };
+
+    private static final Map<String, PersistentClassCache> instances = new HashMap<String, PersistentClassCache>();
+
+    private static String settingsDigest;
+
+    private final File dir;
+
+    private PersistentClassCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the cache in the directory named by bc.engine.class-cache, or
+     * null if it isn't set.
+     */
+    public static PersistentClassCache getInstance() {
+        String path = Config.getGlobalConfig().get("bc.engine.class-cache");
+        if (path == null || path.length() == 0)
+            return null;
+        synchronized (instances) {
+            PersistentClassCache cache = instances.get(path);
+            if (cache == null) {
+                File dir = new File(path);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    Server.warn("can't create class cache directory " + dir + ", not caching instrumented classes");
+                    return null;
+                }
+                cache = new PersistentClassCache(dir);
+                instances.put(path, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * An instrumented class read from the cache.
+     */
+    public static class Entry {
+        public final byte[] classBytes;
+        // how long it took to instrument the class when it was cached
+        public final long instrumentNanos;
+
+        public Entry(byte[] classBytes, long instrumentNanos) {
+            this.classBytes = classBytes;
+            this.instrumentNanos = instrumentNanos;
+        }
+    }
+
+    /**
+     * Returns the key for instrumenting a class.
+     *
+     * @param className  the name the instrumented class will have
+     * @param classBytes the original class file
+     * @param teamDigest the digest of the team's classes if the class is a
+     *                   player class, otherwise null
+     */
+    public String key(String className, byte[] classBytes, String teamPackageName, String teamDigest,
+                      boolean debugMethodsEnabled, boolean silenced, boolean checkDisallowed) {
+        MessageDigest md = sha1();
+        update(md, getSettingsDigest());
+        update(md, className);
+        update(md, teamPackageName);
+        update(md, teamDigest == null ? "" : teamDigest);
+        update(md, debugMethodsEnabled + " " + silenced + " " + checkDisallowed);
+        md.update(classBytes);
+        return hex(md.digest());
+    }
+
+    private File fileFor(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key.substring(2));
+    }
+
+    /**
+     * Returns the cached class with the given key, or null if there isn't
+     * one.
+     */
+    public Entry get(String key) {
+        File file = fileFor(key);
+        if (!file.isFile())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC)
+                    return null;
+                long nanos = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > file.length())
+                    return null;
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                return new Entry(bytes, nanos);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a truncated or unreadable entry is just a miss
+            return null;
+        }
+    }
+
+    /**
+     * Saves an instrumented class.  Failures are reported but otherwise
+     * ignored, since the class can always be instrumented again.
+     */
+    public void put(String key, byte[] classBytes, long instrumentNanos) {
+        File file = fileFor(key);
+        File parent = file.getParentFile();
+        File temp = null;
+        try {
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+                throw new IOException("can't create " + parent);
+            temp = File.createTempFile("entry", ".tmp", parent);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(instrumentNanos);
+                out.writeInt(classBytes.length);
+                out.write(classBytes);
+            } finally {
+                out.close();
+            }
+            // if another server got there first, its entry is just as good
+            if (!temp.renameTo(file) && !file.isFile())
+                throw new IOException("can't rename " + temp + " to " + file);
+        } catch (IOException e) {
+            Server.warn("can't write to class cache: " + e.getMessage());
+        } finally {
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    /**
+     * Returns a digest of every class file in the given team's package (and
+     * the packages inside it) in the class path entry that the given class
+     * of that team is loaded from.
+     */
+    public static String teamDigest(String className, String teamPackageName) {
+        File entry = ClassFiles.classPathEntry(className);
+        if (entry != null)
+            return packageDigest(entry, teamPackageName);
+        // we don't know where it came from, so look everywhere
+        MessageDigest md = sha1();
+        String classPath = System.getProperty("java.class.path");
+        for (String element : classPath.split(File.pathSeparator)) {
+            if (element.length() > 0 && new File(element).exists())
+                update(md, packageDigest(new File(element), teamPackageName));
+        }
+        return hex(md.digest());
+    }
+
+    // jar path, size, modification time and package -> packageDigest,
+    // because opening every jar on the class path for every match adds up
+    private static final Map<String, String> jarDigests = new HashMap<String, String>();
+
+    private static String packageDigest(File classPathEntry, String packageName) {
+        if (classPathEntry.isFile()) {
+            String key = classPathEntry.getAbsolutePath() + "\0" + classPathEntry.length() + "\0"
+                    + classPathEntry.lastModified() + "\0" + packageName;
+            synchronized (jarDigests) {
+                String digest = jarDigests.get(key);
+                if (digest == null) {
+                    digest = digest(ClassFiles.readPackage(classPathEntry, packageName));
+                    jarDigests.put(key, digest);
+                }
+                return digest;
+            }
+        }
+        return digest(ClassFiles.readPackage(classPathEntry, packageName));
+    }
+
+    private static String digest(Map<String, byte[]> classes) {
+        MessageDigest md = sha1();
+        for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+            update(md, e.getKey());
+            md.update(e.getValue());
+        }
+        return hex(md.digest());
+    }
+
+    private static synchronized String getSettingsDigest() {
+        if (settingsDigest == null) {
+            MessageDigest md = sha1();
+            update(md, Integer.toString(FORMAT_VERSION));
+            update(md, InstrumentingClassLoader.lazy() + " " + InstrumentingClassLoader.fastHash() + " "
+                    + InstrumentingClassLoader.sharedClasses() + " " + InstrumentingClassLoader.deferredMetering()
+                    + " " + InstrumentingClassLoader.profiling());
+            // RoboMethodTree reads this one itself
+            update(md, String.valueOf(Config.getGlobalConfig().get("bc.server.fast-hash")));
+            // instrumented copies of library classes are made from this JVM's
+            update(md, System.getProperty("java.version") + " " + System.getProperty("java.vendor"));
+            for (Class<?> c : instrumenterClasses) {
+                byte[] bytes = ClassFiles.read(c.getName().replace('.', '/'));
+                md.update(bytes == null ? new byte[0] : bytes);
+            }
+            for (String name : settingsFiles) {
+                try {
+                    InputStream in = new FileInputStream(name);
+                    try {
+                        md.update(ClassFiles.readFully(in));
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    // ClassReferenceUtil and MethodCostUtil complain about this
+                }
+            }
+            settingsDigest = hex(md.digest());
+        }
+        return settingsDigest;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to provide SHA-1
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        try {
+            md.update(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        md.update((byte) 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+}
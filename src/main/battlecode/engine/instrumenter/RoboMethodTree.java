@@ -10,10 +10,7 @@ import org.objectweb.asm.*;
 import org.objectweb.asm.tree.*;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 import static org.objectweb.asm.tree.AbstractInsnNode.*;
 
@@ -40,10 +37,35 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
         instrumentedStringFuncs.add("split");
     }
 
+    // Calls to these classes can't run instrumented code or look at the bytecode count, as long as they are only passed
+    // primitives and Strings, so deferred metering doesn't have to pass the count on before them.
+    private static final Set<String> pureLibraryClasses = new HashSet<String>(Arrays.asList(
+            "java/lang/Math", "java/lang/StrictMath", "java/lang/String", "java/lang/Boolean", "java/lang/Byte",
+            "java/lang/Character", "java/lang/Short", "java/lang/Integer", "java/lang/Long", "java/lang/Float",
+            "java/lang/Double"));
+
     private LabelNode startLabel;
 
     private int bytecodeCtr = 0;
 
+    // With deferred metering (bc.engine.metering=deferred), basic blocks add their bytecodes to this local variable
+    // instead of calling RobotMonitor.incrementBytecodes, and the total is only passed on at back edges, before calls
+    // and when the method exits.  It is -1 otherwise.
+    private int meterLocal = -1;
+    // whether meterLocal might not be zero
+    private boolean meterDirty;
+    // the position of each label in the original code, to tell back edges from forward jumps
+    private final Map<LabelNode, Integer> labelPositions = new HashMap<LabelNode, Integer>();
+    // the labels that can be reached other than by falling through to them
+    private final Set<LabelNode> branchTargets = new HashSet<LabelNode>();
+
+    // With bc.engine.profiler set, the methods of team classes tell RobotMonitor when they start and end, and every
+    // basic block calls the profiled versions of RobotMonitor's methods.
+    private boolean profiled;
+    private final String incrementBytecodes, incrementBytecodesOnThrow;
+    // where the method starts, as far as the profiler is concerned
+    private AbstractInsnNode profilerStart;
+
     private MethodVisitor methodWriter;
 
     private static boolean checkedFastHash = false, usingFastHash;
@@ -58,6 +80,9 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
         this.checkDisallowed = checkDisallowed;
         this.methodDesc = methodDesc;
         methodWriter = mv;
+        profiled = InstrumentingClassLoader.profiling() && className.startsWith(teamPackageName + "/");
+        incrementBytecodes = InstrumentingClassLoader.profiling() ? "incrementProfiledBytecodes" : "incrementBytecodes";
+        incrementBytecodesOnThrow = InstrumentingClassLoader.profiling() ? "incrementProfiledBytecodesOnThrow" : "incrementBytecodesOnThrow";
         if (!checkedFastHash) {
             usingFastHash = Boolean.getBoolean(battlecode.server.Config.getGlobalConfig().get("bc.server.fast-hash"));
         }
@@ -79,11 +104,41 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
         return ClassReferenceUtil.fieldSignatureReference(name, teamPackageName, silenced, checkDisallowed);
     }
 
+    @SuppressWarnings("unchecked")
     public void visitMaxs(int maxStack, int maxLocals) {
         for (Object o : tryCatchBlocks) {
             visitTryCatchBlockNode((TryCatchBlockNode) o);
         }
-        for (AbstractInsnNode node : instructions.toArray()) {
+        // Constructors are left alone because the frame of the exception handler that deferred metering adds
+        // couldn't describe the code before the call to super().
+        if (InstrumentingClassLoader.deferredMetering() && !methodName.equals("<init>"))
+            meterLocal = maxLocals;
+        if (profiled && methodName.equals("<init>")) {
+            profilerStart = superConstructorCall();
+            profiled = profilerStart != null;
+        }
+        AbstractInsnNode[] nodes = instructions.toArray();
+        for (int i = 0; i < nodes.length; i++) {
+            switch (nodes[i].getType()) {
+                case LABEL:
+                    labelPositions.put((LabelNode) nodes[i], i);
+                    break;
+                case JUMP_INSN:
+                    branchTargets.add(((JumpInsnNode) nodes[i]).label);
+                    break;
+                case LOOKUPSWITCH_INSN:
+                    branchTargets.add(((LookupSwitchInsnNode) nodes[i]).dflt);
+                    branchTargets.addAll(((LookupSwitchInsnNode) nodes[i]).labels);
+                    break;
+                case TABLESWITCH_INSN:
+                    branchTargets.add(((TableSwitchInsnNode) nodes[i]).dflt);
+                    branchTargets.addAll(((TableSwitchInsnNode) nodes[i]).labels);
+                    break;
+            }
+        }
+        branchTargets.addAll(exceptionHandlers);
+        for (int i = 0; i < nodes.length; i++) {
+            AbstractInsnNode node = nodes[i];
             // node could be taken out of the list
             // or have stuff inserted after it,
             // so node.getNext() might not be valid
@@ -117,10 +172,16 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
                     visitFrameNode((FrameNode) node);
                     break;
                 case JUMP_INSN:
+                    bytecodeCtr++;
+                    endOfBasicBlock(node, isBackEdge(i, ((JumpInsnNode) node).label));
+                    break;
                 case LOOKUPSWITCH_INSN:
+                    bytecodeCtr++;
+                    endOfBasicBlock(node, isBackEdge(i, ((LookupSwitchInsnNode) node).dflt, ((LookupSwitchInsnNode) node).labels));
+                    break;
                 case TABLESWITCH_INSN:
                     bytecodeCtr++;
-                    endOfBasicBlock(node);
+                    endOfBasicBlock(node, isBackEdge(i, ((TableSwitchInsnNode) node).dflt, ((TableSwitchInsnNode) node).labels));
                     break;
                 case IINC_INSN:
                 case INT_INSN:
@@ -131,9 +192,15 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
         startLabel = new LabelNode(new Label());
         instructions.insert(startLabel);
         boolean anyTryCatch = tryCatchBlocks.size() > 0;
+        if (meterLocal >= 0) {
+            addMeterHandler();
+        }
         if (methodName.startsWith("debug_") && methodDesc.endsWith("V") && debugMethodsEnabled) {
             addDebugHandler();
         }
+        if (profiled) {
+            addProfilerHandler();
+        }
         if (anyTryCatch) {
             addRobotDeathHandler();
         }
@@ -175,17 +242,160 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
     private void addDebugHandler() {
         LabelNode debugEndLabel = new LabelNode(new Label());
         tryCatchBlocks.add(new TryCatchBlockNode(startLabel, debugEndLabel, debugEndLabel, null));
-        instructions.insertBefore(nextInstruction(instructions.getFirst()), new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "incrementDebugLevel", "()V"));
+        instructions.insertBefore(nextInstruction(startLabel), new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "incrementDebugLevel", "()V"));
         instructions.add(debugEndLabel);
         instructions.add(new FrameNode(F_FULL, 0, new Object[0], 1, new Object[]{"java/lang/Throwable"}));
         instructions.add(new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "decrementDebugLevel", "()V"));
         instructions.add(new InsnNode(ATHROW));
     }
 
+    /**
+     * Tells RobotMonitor when the method starts, and when an exception is thrown out of it; visitInsnNode takes care
+     * of returns.  The handler comes after the deferred metering and debug handlers, so the bytecodes they charge are
+     * attributed to this method.
+     */
+    @SuppressWarnings("unchecked")
+    private void addProfilerHandler() {
+        LabelNode profilerStartLabel = new LabelNode(new Label());
+        InsnList enter = new InsnList();
+        enter.add(new LdcInsnNode(className.replace('/', '.') + "." + methodName));
+        enter.add(new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "enterMethod", "(Ljava/lang/String;)V"));
+        enter.add(profilerStartLabel);
+        instructions.insert(profilerStart == null ? startLabel : profilerStart, enter);
+        LabelNode profilerHandlerLabel = new LabelNode(new Label());
+        tryCatchBlocks.add(new TryCatchBlockNode(profilerStartLabel, profilerHandlerLabel, profilerHandlerLabel, null));
+        instructions.add(profilerHandlerLabel);
+        // no locals, since the range includes the debug handler, whose frame has none
+        instructions.add(new FrameNode(F_FULL, 0, new Object[0], 1, new Object[]{"java/lang/Throwable"}));
+        instructions.add(new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "exitMethod", "()V"));
+        instructions.add(new InsnNode(ATHROW));
+    }
+
+    /**
+     * Returns the call to super() or this() in a constructor, or null if there isn't one.  The profiler only
+     * considers the constructor to have started after it, since no exception handler in the constructor can cover the
+     * code before it.
+     */
+    private AbstractInsnNode superConstructorCall() {
+        // skip the constructor calls that go with NEW instructions
+        int newObjects = 0;
+        for (AbstractInsnNode n = instructions.getFirst(); n != null; n = n.getNext()) {
+            if (n.getOpcode() == NEW)
+                newObjects++;
+            else if (n.getOpcode() == INVOKESPECIAL && ((MethodInsnNode) n).name.equals("<init>")) {
+                if (newObjects == 0)
+                    return n;
+                newObjects--;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets up meterLocal for deferred metering: it starts at zero, every stack map frame says that it holds an int,
+     * and if an exception leaves the method, whatever it holds is charged to the robot first.
+     */
+    @SuppressWarnings("unchecked")
+    private void addMeterHandler() {
+        expandFrames();
+        InsnList init = new InsnList();
+        init.add(new InsnNode(ICONST_0));
+        init.add(new VarInsnNode(ISTORE, meterLocal));
+        instructions.insert(init);
+        LabelNode meterHandlerLabel = new LabelNode(new Label());
+        tryCatchBlocks.add(new TryCatchBlockNode(startLabel, meterHandlerLabel, meterHandlerLabel, null));
+        instructions.add(meterHandlerLabel);
+        instructions.add(new FrameNode(F_FULL, 0, new Object[0], 1, new Object[]{"java/lang/Throwable"}));
+        expandFrame((FrameNode) instructions.getLast(), new ArrayList<Object>());
+        instructions.add(new InsnNode(DUP));
+        instructions.add(new VarInsnNode(ILOAD, meterLocal));
+        instructions.add(new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", incrementBytecodesOnThrow, "(Ljava/lang/Throwable;I)V"));
+        instructions.add(new InsnNode(ATHROW));
+    }
+
+    /**
+     * Turns every stack map frame into a full frame that lists meterLocal as an int.  The other kinds of frame are
+     * relative to the previous frame, and would lose track of meterLocal or put new locals after it.
+     */
+    @SuppressWarnings("unchecked")
+    private void expandFrames() {
+        List<Object> locals = new ArrayList<Object>();
+        if ((access & ACC_STATIC) == 0)
+            locals.add(className);
+        for (Type t : Type.getArgumentTypes(methodDescReference(methodDesc))) {
+            switch (t.getSort()) {
+                case Type.BOOLEAN:
+                case Type.CHAR:
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    locals.add(INTEGER);
+                    break;
+                case Type.FLOAT:
+                    locals.add(FLOAT);
+                    break;
+                case Type.LONG:
+                    locals.add(LONG);
+                    break;
+                case Type.DOUBLE:
+                    locals.add(DOUBLE);
+                    break;
+                case Type.ARRAY:
+                    locals.add(t.getDescriptor());
+                    break;
+                default:
+                    locals.add(t.getInternalName());
+            }
+        }
+        for (AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            if (node.getType() != FRAME)
+                continue;
+            FrameNode n = (FrameNode) node;
+            switch (n.type) {
+                case F_NEW:
+                case F_FULL:
+                    locals = new ArrayList<Object>(n.local);
+                    break;
+                case F_APPEND:
+                    locals.addAll(n.local);
+                    break;
+                case F_CHOP:
+                    for (int i = 0; i < n.local.size(); i++)
+                        locals.remove(locals.size() - 1);
+                    break;
+            }
+            expandFrame(n, locals);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expandFrame(FrameNode n, List<Object> locals) {
+        List<Object> full = new ArrayList<Object>(locals);
+        int size = 0;
+        for (Object o : full)
+            size += (o == LONG || o == DOUBLE) ? 2 : 1;
+        for (; size < meterLocal; size++)
+            full.add(TOP);
+        full.add(INTEGER);
+        List<Object> stack = n.type == F_FULL || n.type == F_NEW || n.type == F_SAME1 ? n.stack : null;
+        n.type = F_FULL;
+        n.local = full;
+        n.stack = stack == null ? new ArrayList<Object>() : new ArrayList<Object>(stack);
+    }
+
     private void visitFieldInsnNode(FieldInsnNode n) {
         bytecodeCtr++;
         n.owner = classReference(n.owner);
         n.desc = classDescReference(n.desc);
+        if (n.getOpcode() == GETSTATIC || n.getOpcode() == PUTSTATIC)
+            beforeClassInitialization(n);
+        // System.out and System.err depend on which match the robot is in, so they are looked up at run time
+        if (n.getOpcode() == GETSTATIC && n.owner.equals("battlecode/engine/instrumenter/lang/System")) {
+            if (n.name.equals("out"))
+                instructions.set(n, new MethodInsnNode(INVOKESTATIC, n.owner, "getOut", "()Ljava/io/PrintStream;"));
+            else if (n.name.equals("err"))
+                instructions.set(n, new MethodInsnNode(INVOKESTATIC, n.owner, "getErr", "()Ljava/io/PrintStream;"));
+        }
     }
 
     private void visitInsnNode(InsnNode n) {
@@ -201,6 +411,9 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
                 if (methodName.startsWith("debug_") && methodDesc.endsWith("V")) {
                     instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "decrementDebugLevel", "()V"));
                 }
+                if (profiled) {
+                    instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "exitMethod", "()V"));
+                }
                 break;
             case ATHROW:
                 endOfBasicBlock(n);
@@ -258,6 +471,7 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
             instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/lang/RoboRandom", "getMapSeed", "()J"));
             n.owner = "instrumented/java/util/Random";
             n.desc = "(J)V";
+            flushMeter(n);
             return;
         }
 
@@ -323,7 +537,7 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
         // But in practice this should be good enough.
         else if (n.name.equals("printStackTrace") && n.desc.equals("()V") &&
                 (n.owner == null || n.owner.equals("java/lang/Throwable") || isSuperClass(n.owner, "java/lang/Throwable"))) {
-            instructions.insertBefore(n, new FieldInsnNode(GETSTATIC, "battlecode/engine/instrumenter/lang/System", "out", "Ljava/io/PrintStream;"));
+            instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/lang/System", "getOut", "()Ljava/io/PrintStream;"));
             n.desc = "(Ljava/io/PrintStream;)V";
         } else {
             // replace class names
@@ -372,13 +586,15 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
                     instructions.insertBefore(n, newInsns);
                     instructions.remove(n);
                     // no function was called so don't end the basic block
-                    endBasicBlock = false;
+                    return;
                 }
             }
         }
 
         if (endBasicBlock)
             endOfBasicBlock(n);
+        else if (!isPureLibraryCall(n))
+            flushMeter(n);
 
     }
 
@@ -403,14 +619,21 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
     }
 
     private void visitLabelNode(LabelNode n) {
-        endOfBasicBlock(n);
-        if (exceptionHandlers.contains(n))
+        endOfBasicBlock(n, false);
+        if (branchTargets.contains(n))
+            meterDirty = true;
+        if (exceptionHandlers.contains(n)) {
+            // a handler can come before the code it protects, so it might start a loop
+            flushMeter(nextInstruction(n));
             bytecodeCtr += GameConstants.EXCEPTION_BYTECODE_PENALTY;
+        }
     }
 
     private void visitTypeInsnNode(TypeInsnNode n) {
         bytecodeCtr++;
         n.desc = classReference(n.desc);
+        if (n.getOpcode() == NEW)
+            beforeClassInitialization(n);
     }
 
     private void visitVarInsnNode(VarInsnNode n) {
@@ -442,13 +665,94 @@ public class RoboMethodTree extends MethodNode implements Opcodes {
     }
 
     private void endOfBasicBlock(AbstractInsnNode n) {
-        if (bytecodeCtr == 0)
-            return;
-        instructions.insertBefore(n, new LdcInsnNode(new Integer(bytecodeCtr)));
-        instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", "incrementBytecodes", "(I)V"));
+        endOfBasicBlock(n, true);
+    }
+
+    /**
+     * Charges the robot for the basic block that ends just before n.  With deferred metering, the block's bytecodes
+     * are added to meterLocal, and only if flush is true is the total passed on to RobotMonitor.
+     */
+    private void endOfBasicBlock(AbstractInsnNode n, boolean flush) {
+        if (meterLocal < 0) {
+            if (bytecodeCtr == 0)
+                return;
+            instructions.insertBefore(n, new LdcInsnNode(new Integer(bytecodeCtr)));
+            instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", incrementBytecodes, "(I)V"));
+        } else if (flush) {
+            if (bytecodeCtr == 0 && !meterDirty)
+                return;
+            // RobotMonitor.incrementBytecodes(meter + bytecodeCtr); meter = 0;
+            instructions.insertBefore(n, new VarInsnNode(ILOAD, meterLocal));
+            if (bytecodeCtr != 0) {
+                instructions.insertBefore(n, new LdcInsnNode(new Integer(bytecodeCtr)));
+                instructions.insertBefore(n, new InsnNode(IADD));
+            }
+            instructions.insertBefore(n, new InsnNode(ICONST_0));
+            instructions.insertBefore(n, new VarInsnNode(ISTORE, meterLocal));
+            instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", incrementBytecodes, "(I)V"));
+            meterDirty = false;
+        } else if (bytecodeCtr != 0) {
+            if (bytecodeCtr <= Short.MAX_VALUE)
+                instructions.insertBefore(n, new IincInsnNode(meterLocal, bytecodeCtr));
+            else {
+                instructions.insertBefore(n, new VarInsnNode(ILOAD, meterLocal));
+                instructions.insertBefore(n, new LdcInsnNode(new Integer(bytecodeCtr)));
+                instructions.insertBefore(n, new InsnNode(IADD));
+                instructions.insertBefore(n, new VarInsnNode(ISTORE, meterLocal));
+            }
+            meterDirty = true;
+        }
         bytecodeCtr = 0;
     }
 
+    /**
+     * With deferred metering, passes the bytecodes in meterLocal on to RobotMonitor before n, without ending the
+     * current basic block.  This has to happen before anything that could run other instrumented code or ask how many
+     * bytecodes the robot has used, so that the robot has been charged exactly what it would have been without
+     * deferred metering.
+     */
+    private void flushMeter(AbstractInsnNode n) {
+        if (meterLocal < 0 || !meterDirty)
+            return;
+        instructions.insertBefore(n, new VarInsnNode(ILOAD, meterLocal));
+        instructions.insertBefore(n, new InsnNode(ICONST_0));
+        instructions.insertBefore(n, new VarInsnNode(ISTORE, meterLocal));
+        instructions.insertBefore(n, new MethodInsnNode(INVOKESTATIC, "battlecode/engine/instrumenter/RobotMonitor", incrementBytecodes, "(I)V"));
+        meterDirty = false;
+    }
+
+    // Using another class's static field or creating one of its objects can run its static initializer.
+    private void beforeClassInitialization(AbstractInsnNode n) {
+        String owner = n instanceof FieldInsnNode ? ((FieldInsnNode) n).owner : ((TypeInsnNode) n).desc;
+        if (!owner.equals(className) && (owner.startsWith(teamPackageName + "/") || owner.startsWith("instrumented/")))
+            flushMeter(n);
+    }
+
+    private boolean isPureLibraryCall(MethodInsnNode n) {
+        if (!pureLibraryClasses.contains(n.owner))
+            return false;
+        for (Type t : Type.getArgumentTypes(n.desc)) {
+            if (t.getSort() == Type.ARRAY || (t.getSort() == Type.OBJECT && !t.getInternalName().equals("java/lang/String")))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isBackEdge(int position, LabelNode target) {
+        Integer targetPosition = labelPositions.get(target);
+        return targetPosition == null || targetPosition <= position;
+    }
+
+    private boolean isBackEdge(int position, LabelNode dflt, List labels) {
+        if (isBackEdge(position, dflt))
+            return true;
+        for (Object o : labels) {
+            if (isBackEdge(position, (LabelNode) o))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Tests whether the class referenced by <code>owner</code> extends or implements <code>superclass</code>.
      * e.g. isSuperClass("battlecode/common/GameActionException", "java/lang/Throwable") => true
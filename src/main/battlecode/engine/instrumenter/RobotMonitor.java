@@ -1,38 +1,64 @@
 package battlecode.engine.instrumenter;
 
+import battlecode.engine.EngineContext;
 import battlecode.engine.GenericRobot;
 import battlecode.engine.GenericWorld;
 import battlecode.engine.instrumenter.lang.RoboPrintStream;
 import battlecode.engine.instrumenter.lang.SilencedPrintStream;
 import battlecode.engine.scheduler.Scheduler;
+import battlecode.serial.TimingStats;
 import battlecode.server.Config;
 
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.HashSet;
 import java.util.Set;
 
 /**
- * RobotMonitor is a singleton class for monitoring robots' bytecode execution and stack size, and killing robots' threads.  Player's classes should
+ * RobotMonitor is used for monitoring robots' bytecode execution and stack size, and killing robots' threads.  Player's classes should
  * be instrumented so that they make calls to RobotMonitor as appropriate.
+ * <p/>
+ * Each match has its own RobotMonitor.  The static methods operate on the RobotMonitor of the match that the calling thread
+ * belongs to, so instrumented code does not need to know which match it is running in.
  *
  * @author adamd
  */
 public class RobotMonitor {
 
-    private static int DEBUG_BYTECODES;
+    private final int DEBUG_BYTECODES;
 
-    private static final Set<Integer> robotsToKill = new HashSet<Integer>();
+    private final Set<Integer> robotsToKill = new HashSet<Integer>();
 
     // the RobotData for the currently running robot
-    public volatile static RobotData currentRobotData;
+    private volatile RobotData currentRobotData;
 
-    private static boolean[] silenced = new boolean[2];
+    private final boolean[] silenced = new boolean[2];
 
-    private static int debugLevel;
-    private static int bytecodeLimit;
-    private static int bytecodesLeft;
+    private int debugLevel;
+    private int bytecodeLimit;
+    private int bytecodesLeft;
 
-    private static GenericWorld myGameWorld = null;
+    private GenericWorld myGameWorld = null;
 
+    // if not null, robots' turns are timed
+    private TimingStats timings;
+    private long turnStart;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // if not null, robots' bytecodes are attributed to their methods
+    private BytecodeProfiler profiler;
+
+    // the print streams that the running robot's System.out and System.err refer to
+    private final RoboPrintStream printStream = new RoboPrintStream();
+    private PrintStream out = printStream;
+
+
+    private static final Object[] NO_STATICS = new Object[0];
+
+    // how many shared classes have asked for an index into RobotData.statics
+    private int staticsCount;
 
     /**
      * A "struct" that holds data about a robot's execution, e.g., bytecodes, stack size, etc.
@@ -42,94 +68,123 @@ public class RobotMonitor {
         public int debugLevel = 0;
         public final int ID;
         public boolean thrownRobotDeathException = false;
+        // time spent in turns since the Scheduler last collected it
+        public long turnNanos;
+        public int turns;
+        // this robot's copies of the static fields of shared classes, indexed by newStaticsIndex
+        public Object[] statics = NO_STATICS;
+        // the robot's call stacks, if bc.engine.profiler is set
+        public BytecodeProfiler.Profile profile;
 
         public RobotData(int ID) {
             this.ID = ID;
         }
     }
 
-    // private constructor enforces the singleton pattern
-    private RobotMonitor() {
-    }
-
-    private static void init() {
-        robotsToKill.clear();
+    /**
+     * Creates the RobotMonitor for a new match.
+     */
+    public RobotMonitor() {
         Config options = Config.getGlobalConfig();
         silenced[0] = options.getBoolean("bc.engine.silence-a");
         silenced[1] = options.getBoolean("bc.engine.silence-b");
         DEBUG_BYTECODES = options.getInt("bc.engine.debug-max-bytecodes");
     }
 
-    /**
-     * Resets the internal state of the RobotMonitor.  Should be called between games.
-     */
-    public static void reset() {
-        init();
+    private static RobotMonitor monitor() {
+        return EngineContext.current().getRobotMonitor();
     }
 
     /**
      * Switches the currently active robot to the one referred to by the given RobotData.
      */
     public static void switchRunner(RobotData newData) {
+        RobotMonitor m = monitor();
 
         // switch RobotData to the new robot
-        currentRobotData = newData;
+        m.currentRobotData = newData;
 
-        if (robotsToKill.contains(newData.ID)) {
+        if (m.robotsToKill.contains(newData.ID)) {
             //System.out.println("Killing "+newData.ID);
             throw new RobotDeathException();
         }
 
         if (newData.ID >= 0) {
-            myGameWorld.beginningOfExecution(newData.ID);
-            GenericRobot robot = myGameWorld.getRobotByID(newData.ID);
-            bytecodeLimit = robot.getBytecodeLimit();
-            debugLevel = currentRobotData.debugLevel;
-            currentRobotData.bytecodesLeft += bytecodeLimit;
-            if (debugLevel == 0)
-                bytecodesLeft = currentRobotData.bytecodesLeft;
+            m.myGameWorld.beginningOfExecution(newData.ID);
+            GenericRobot robot = m.myGameWorld.getRobotByID(newData.ID);
+            m.bytecodeLimit = robot.getBytecodeLimit();
+            m.debugLevel = newData.debugLevel;
+            newData.bytecodesLeft += m.bytecodeLimit;
+            if (m.debugLevel == 0)
+                m.bytecodesLeft = newData.bytecodesLeft;
             else
-                bytecodesLeft = DEBUG_BYTECODES;
+                m.bytecodesLeft = m.DEBUG_BYTECODES;
+
+            if (m.profiler != null && newData.profile == null)
+                newData.profile = m.profiler.newProfile(robot.getTeam());
 
-            if (silenced[robot.getTeam().ordinal()]) {
-                SilencedPrintStream stream = SilencedPrintStream.theInstance();
-                battlecode.engine.instrumenter.lang.System.out = stream;
-                battlecode.engine.instrumenter.lang.System.err = stream;
+            if (m.silenced[robot.getTeam().ordinal()]) {
+                m.out = SilencedPrintStream.theInstance();
             } else {
-                RoboPrintStream stream = RoboPrintStream.theInstance();
-                stream.changeRobot();
-                battlecode.engine.instrumenter.lang.System.out = stream;
-                battlecode.engine.instrumenter.lang.System.err = stream;
+                m.printStream.changeRobot();
+                m.out = m.printStream;
             }
+
+            if (m.timings != null)
+                m.turnStart = turnClock();
+        }
+    }
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or the wall
+     * clock time if the JVM can't measure it.  Only differences between two
+     * calls on the same robot thread are meaningful.
+     */
+    private static long turnClock() {
+        if (threads.isCurrentThreadCpuTimeSupported()) {
+            long cpu = threads.getCurrentThreadCpuTime();
+            if (cpu != -1)
+                return cpu;
         }
+        return System.nanoTime();
     }
 
     public static int getCurrentRobotID() {
-        return currentRobotData.ID;
+        return monitor().currentRobotData.ID;
     }
 
     public static GenericRobot getCurrentRobot() {
-        return myGameWorld.getRobotByID(currentRobotData.ID);
+        RobotMonitor m = monitor();
+        return m.myGameWorld.getRobotByID(m.currentRobotData.ID);
+    }
+
+    /**
+     * Returns the stream that the active robot's System.out and System.err should print to.
+     */
+    public static PrintStream getOutputStream() {
+        return monitor().out;
     }
 
     /**
      * Increments the active robot's debug level.  Should be called at the beginning of any debug method.
      */
     public static void incrementDebugLevel() {
-        if (debugLevel == 0) {
-            currentRobotData.bytecodesLeft = bytecodesLeft;
-            bytecodesLeft = DEBUG_BYTECODES;
+        RobotMonitor m = monitor();
+        if (m.debugLevel == 0) {
+            m.currentRobotData.bytecodesLeft = m.bytecodesLeft;
+            m.bytecodesLeft = m.DEBUG_BYTECODES;
         }
-        debugLevel++;
+        m.debugLevel++;
     }
 
     /**
      * Decrements the active robot's debug level.  Should be called at the end of any debug method.
      */
     public static void decrementDebugLevel() {
-        debugLevel--;
-        if (debugLevel == 0) {
-            bytecodesLeft = currentRobotData.bytecodesLeft;
+        RobotMonitor m = monitor();
+        m.debugLevel--;
+        if (m.debugLevel == 0) {
+            m.bytecodesLeft = m.currentRobotData.bytecodesLeft;
         }
     }
 
@@ -140,23 +195,84 @@ public class RobotMonitor {
      * @param numBytecodes the number of bytecodes the robot just executed
      */
     public static void incrementBytecodes(int numBytecodes) {
-        bytecodesLeft -= numBytecodes;
+        RobotMonitor m = monitor();
+        m.bytecodesLeft -= numBytecodes;
+
+        while (m.bytecodesLeft <= 0) {
+            endRunner();
+        }
+    }
+
+    /**
+     * Like incrementBytecodes, but also attributes the bytecodes to the method that the active robot is in.  Called
+     * instead of incrementBytecodes by classes instrumented with bc.engine.profiler set.  Bytecodes used by debug
+     * methods aren't attributed, since they don't count towards the robot's limit.
+     */
+    public static void incrementProfiledBytecodes(int numBytecodes) {
+        RobotMonitor m = monitor();
+        if (m.debugLevel == 0 && m.currentRobotData.profile != null)
+            m.currentRobotData.profile.charge(numBytecodes);
+        m.bytecodesLeft -= numBytecodes;
 
-        while (bytecodesLeft <= 0) {
+        while (m.bytecodesLeft <= 0) {
             endRunner();
         }
     }
 
+    /**
+     * The profiled version of incrementBytecodesOnThrow.
+     */
+    public static void incrementProfiledBytecodesOnThrow(Throwable t, int numBytecodes) {
+        if (numBytecodes != 0 && !(t instanceof VirtualMachineError))
+            incrementProfiledBytecodes(numBytecodes);
+    }
+
+    /**
+     * Records that the active robot has called the given method.  Called at the start of every method of a team
+     * class instrumented with bc.engine.profiler set.
+     *
+     * @param method the name of the method, e.g., "team000.RobotPlayer.run"
+     */
+    public static void enterMethod(String method) {
+        BytecodeProfiler.Profile profile = monitor().currentRobotData.profile;
+        if (profile != null)
+            profile.enter(method);
+    }
+
+    /**
+     * Records that the active robot has returned from, or thrown out of, the last method it entered.
+     */
+    public static void exitMethod() {
+        BytecodeProfiler.Profile profile = monitor().currentRobotData.profile;
+        if (profile != null)
+            profile.exit();
+    }
+
+    /**
+     * Charges the active robot for bytecodes that a method instrumented with deferred metering had counted, but not yet
+     * passed to incrementBytecodes, when the given exception was thrown out of it.  Robots that are dying aren't charged,
+     * since they may already have been switched out.
+     */
+    public static void incrementBytecodesOnThrow(Throwable t, int numBytecodes) {
+        if (numBytecodes != 0 && !(t instanceof VirtualMachineError))
+            incrementBytecodes(numBytecodes);
+    }
+
     /**
      * Ends the run of the currently active robot.
      */
     public static void endRunner() {
-        myGameWorld.endOfExecution(currentRobotData.ID);
-        currentRobotData.debugLevel = debugLevel;
-        if (debugLevel == 0)
-            currentRobotData.bytecodesLeft = bytecodesLeft;
-        if (currentRobotData.bytecodesLeft > 0)
-            currentRobotData.bytecodesLeft = 0;
+        RobotMonitor m = monitor();
+        m.myGameWorld.endOfExecution(m.currentRobotData.ID);
+        m.currentRobotData.debugLevel = m.debugLevel;
+        if (m.debugLevel == 0)
+            m.currentRobotData.bytecodesLeft = m.bytecodesLeft;
+        if (m.currentRobotData.bytecodesLeft > 0)
+            m.currentRobotData.bytecodesLeft = 0;
+        if (m.timings != null) {
+            m.currentRobotData.turnNanos += turnClock() - m.turnStart;
+            m.currentRobotData.turns++;
+        }
         Scheduler.passToNextThread();
     }
 
@@ -167,25 +283,26 @@ public class RobotMonitor {
      * @param robotID the integer ID of the robot to kill
      */
     public static void killRobot(int robotID) {
-        robotsToKill.add(robotID);
+        monitor().robotsToKill.add(robotID);
     }
 
     /**
      * Returns the bytecode number that the active robot is currently on.  Note that this can be above bytecodeLimit in some cases.
      */
     public static int getBytecodeNum() {
-        return bytecodeLimit - getBytecodesLeft();
+        return monitor().bytecodeLimit - getBytecodesLeft();
     }
 
     public static int getBytecodeLimit() {
-        return bytecodeLimit;
+        return monitor().bytecodeLimit;
     }
 
     public static int getBytecodesLeft() {
-        if (debugLevel == 0)
-            return bytecodesLeft;
+        RobotMonitor m = monitor();
+        if (m.debugLevel == 0)
+            return m.bytecodesLeft;
         else
-            return currentRobotData.bytecodesLeft;
+            return m.currentRobotData.bytecodesLeft;
     }
 
     /**
@@ -194,29 +311,80 @@ public class RobotMonitor {
      */
     public static int getBytecodesUsed() {
         int num = getBytecodeNum();
-        return (num <= bytecodeLimit) ? num : bytecodeLimit;
+        int limit = getBytecodeLimit();
+        return (num <= limit) ? num : limit;
     }
 
     /**
      * Returns the percentage of this robot's maximum bytecodes that were used this round.
      */
     public static double getBytecodesUsedPercent() {
-        return (double) getBytecodesUsed() / bytecodeLimit;
+        return (double) getBytecodesUsed() / getBytecodeLimit();
+    }
+
+    /**
+     * Gives a shared class an index into every robot's RobotData.statics.  Called once per match by the static initializer
+     * of each companion class that StaticFieldAdapter generates.
+     */
+    public static int newStaticsIndex() {
+        return monitor().staticsCount++;
+    }
+
+    /**
+     * Returns the active robot's companion object at the given index, or null if the robot hasn't used that class yet.
+     */
+    public static Object getStatics(int index) {
+        Object[] statics = monitor().currentRobotData.statics;
+        return index < statics.length ? statics[index] : null;
     }
 
     /**
-     * Notifies the RobotMonitor of what the current GameWorld is.  Should be called before the start of each game.
+     * Stores the active robot's companion object at the given index.
      */
-    public static void setGameWorld(GenericWorld gw) {
+    public static void putStatics(int index, Object companion) {
+        RobotData data = monitor().currentRobotData;
+        if (index >= data.statics.length) {
+            Object[] statics = new Object[Math.max(index + 1, 2 * data.statics.length)];
+            System.arraycopy(data.statics, 0, statics, 0, data.statics.length);
+            data.statics = statics;
+        }
+        data.statics[index] = companion;
+    }
+
+    /**
+     * Notifies this RobotMonitor of what its GameWorld is.  Should be called before the start of the game.
+     */
+    public void setGameWorld(GenericWorld gw) {
         myGameWorld = gw;
     }
 
+    /**
+     * Makes this RobotMonitor time each robot's turns.
+     */
+    public void setTimings(TimingStats timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * Makes this RobotMonitor attribute robots' bytecodes to their methods.
+     */
+    public void setProfiler(BytecodeProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Records that a RobotDeathException has been thrown in the active robot's thread.
+     */
+    static void setThrownRobotDeathException() {
+        monitor().currentRobotData.thrownRobotDeathException = true;
+    }
+
     public static boolean thrownRobotDeathException() {
-        return currentRobotData.thrownRobotDeathException;
+        return monitor().currentRobotData.thrownRobotDeathException;
     }
 
     public static void checkForRobotDeath() {
-        if (currentRobotData.thrownRobotDeathException)
+        if (monitor().currentRobotData.thrownRobotDeathException)
             throw new RobotDeathException();
     }
 }
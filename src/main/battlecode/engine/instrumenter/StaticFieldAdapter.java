@@ -0,0 +1,281 @@
+package battlecode.engine.instrumenter;
+
+import org.objectweb.asm.*;
+
+/**
+ * Gives each robot its own static fields when all of a team's robots share
+ * one definition of each class (bc.engine.shared-classes).  It runs after
+ * RoboAdapter, so it doesn't change how many bytecodes anything costs.
+ * <p/>
+ * The static fields of a class C that aren't compile-time constants are
+ * moved into instance fields of a generated class C$$Statics, and every
+ * robot gets its own C$$Statics object the first time it uses C.  The
+ * objects are kept in RobotMonitor.RobotData.statics, so
+ * <pre>
+ * getstatic C.x
+ * </pre>
+ * becomes
+ * <pre>
+ * invokestatic C$$Statics.$get()
+ * getfield C$$Statics.x
+ * </pre>
+ * C's static initializer becomes C$$Statics.$clinit, which $get runs for
+ * each robot, after its superclass's, when it creates that robot's object.
+ * Like the JVM, we set up a class when a robot first creates an instance,
+ * calls a static method or uses a static field; the robot's first
+ * RobotPlayer.run is taken care of by IndividualClassLoader.initialize.
+ * <p/>
+ * The same StaticFieldAdapter class writes both C (with companion false)
+ * and C$$Statics (with companion true) from C's class file.
+ */
+class StaticFieldAdapter extends ClassAdapter implements Opcodes {
+
+    static final String COMPANION_SUFFIX = "$$Statics";
+
+    private static final String MONITOR = "battlecode/engine/instrumenter/RobotMonitor";
+    private static final String ENUM_CONSTANTS = "battlecode/engine/instrumenter/lang/EnumConstants";
+
+    private final StaticFields staticFields;
+    private final boolean companion;
+
+    private StaticFields.Info info;
+    private String companionName;
+    // the class that robots have set up if they are running the code we're visiting
+    private String initTarget;
+
+    /**
+     * @param cv           the ClassVisitor that should get the class
+     * @param staticFields what we know about the team's classes
+     * @param companion    whether to write the class's companion instead of the class
+     */
+    public StaticFieldAdapter(ClassVisitor cv, StaticFields staticFields, boolean companion) {
+        super(cv);
+        this.staticFields = staticFields;
+        this.companion = companion;
+    }
+
+    static String companionName(String className) {
+        return className + COMPANION_SUFFIX;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        info = staticFields.get(name);
+        if (info == null)
+            throw new IllegalStateException(name + " is not a shared class");
+        companionName = companionName(name);
+        initTarget = staticFields.initTarget(name);
+        if (companion) {
+            // no stack map frames to keep up to date
+            super.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, companionName, null, "java/lang/Object", null);
+            super.visitField(ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC, "$index", "I", null, null);
+        } else
+            super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    // The companion is in the same package, but it can't reach private
+    // members of the class, so the ones the static initializer uses are
+    // made package-private.
+    private int access(int access, String name) {
+        return info.clinitMembers.contains(name) ? access & ~ACC_PRIVATE : access;
+    }
+
+    private boolean isPerRobot(int access, String name) {
+        return (access & ACC_STATIC) != 0 && Boolean.TRUE.equals(info.fields.get(name));
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        if (companion)
+            return isPerRobot(access, name) ? super.visitField(ACC_PUBLIC, name, desc, signature, null) : null;
+        else
+            return isPerRobot(access, name) ? null : super.visitField(access(access, name), name, desc, signature, value);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor mv;
+        if (companion) {
+            if (!name.equals("<clinit>"))
+                return null;
+            mv = new MethodAdapter(super.visitMethod(ACC_STATIC | ACC_SYNTHETIC, "$clinit", desc, null, null)) {
+                @Override
+                public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+                }
+            };
+        } else {
+            if (name.equals("<clinit>"))
+                return null;
+            mv = super.visitMethod(access(access, name), name, desc, signature, exceptions);
+        }
+        return mv == null ? null : new StaticAccessAdapter(mv);
+    }
+
+    @Override
+    public void visitSource(String source, String debug) {
+        // keep the file name for stack traces from $clinit
+        super.visitSource(source, companion ? null : debug);
+    }
+
+    @Override
+    public void visitOuterClass(String owner, String name, String desc) {
+        if (!companion)
+            super.visitOuterClass(owner, name, desc);
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+        if (!companion)
+            super.visitInnerClass(name, outerName, innerName, access);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        return companion ? null : super.visitAnnotation(desc, visible);
+    }
+
+    @Override
+    public void visitAttribute(Attribute attr) {
+        if (!companion)
+            super.visitAttribute(attr);
+    }
+
+    @Override
+    public void visitEnd() {
+        if (companion)
+            writeCompanionMethods();
+        super.visitEnd();
+    }
+
+    private void writeCompanionMethods() {
+        String type = "L" + companionName + ";";
+
+        MethodVisitor mv = super.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        mv.visitMethodInsn(INVOKESTATIC, MONITOR, "newStaticsIndex", "()I");
+        mv.visitFieldInsn(PUTSTATIC, companionName, "$index", "I");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = super.visitMethod(ACC_PRIVATE, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // public static C$$Statics $get() {
+        //     Object o = RobotMonitor.getStatics($index);
+        //     if (o != null)
+        //         return (C$$Statics) o;
+        //     C$$Statics s = new C$$Statics();
+        //     RobotMonitor.putStatics($index, s);
+        //     Super$$Statics.$get();
+        //     $clinit();
+        //     return s;
+        // }
+        mv = super.visitMethod(ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, "$get", "()" + type, null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, companionName, "$index", "I");
+        mv.visitMethodInsn(INVOKESTATIC, MONITOR, "getStatics", "(I)Ljava/lang/Object;");
+        mv.visitInsn(DUP);
+        Label create = new Label();
+        mv.visitJumpInsn(IFNULL, create);
+        mv.visitTypeInsn(CHECKCAST, companionName);
+        mv.visitInsn(ARETURN);
+        mv.visitLabel(create);
+        mv.visitInsn(POP);
+        mv.visitTypeInsn(NEW, companionName);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, companionName, "<init>", "()V");
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(GETSTATIC, companionName, "$index", "I");
+        mv.visitInsn(SWAP);
+        mv.visitMethodInsn(INVOKESTATIC, MONITOR, "putStatics", "(ILjava/lang/Object;)V");
+        // store the object first so that the static initializer can use it,
+        // like the JVM lets the thread initializing a class use the class
+        String superTarget = info.isInterface || info.superName == null ? null : staticFields.initTarget(info.superName);
+        if (superTarget != null) {
+            mv.visitMethodInsn(INVOKESTATIC, companionName(superTarget), "$get", "()L" + companionName(superTarget) + ";");
+            mv.visitInsn(POP);
+        }
+        if (info.hasClinit)
+            mv.visitMethodInsn(INVOKESTATIC, companionName, "$clinit", "()V");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Sends static field accesses to the robot's companion objects, and sets
+     * up classes for the robot before it first uses them.
+     */
+    private class StaticAccessAdapter extends MethodAdapter {
+
+        StaticAccessAdapter(MethodVisitor mv) {
+            super(mv);
+        }
+
+        private void initialize(String className) {
+            String target = staticFields.initTarget(className);
+            if (target != null && !target.equals(initTarget)) {
+                super.visitMethodInsn(INVOKESTATIC, companionName(target), "$get", "()L" + companionName(target) + ";");
+                super.visitInsn(POP);
+            }
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            String declaring = opcode == GETSTATIC || opcode == PUTSTATIC ? staticFields.perRobotField(owner, name) : null;
+            if (declaring == null) {
+                super.visitFieldInsn(opcode, owner, name, desc);
+                return;
+            }
+            String statics = companionName(declaring);
+            super.visitMethodInsn(INVOKESTATIC, statics, "$get", "()L" + statics + ";");
+            if (opcode == GETSTATIC)
+                super.visitFieldInsn(GETFIELD, statics, name, desc);
+            else {
+                // get the companion under the value
+                if (desc.equals("J") || desc.equals("D")) {
+                    super.visitInsn(DUP_X2);
+                    super.visitInsn(POP);
+                } else
+                    super.visitInsn(SWAP);
+                super.visitFieldInsn(PUTFIELD, statics, name, desc);
+            }
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            if (opcode == NEW)
+                initialize(type);
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+            if (opcode == INVOKESTATIC)
+                initialize(owner);
+            // java.lang.Class caches an enum's constants, so with shared
+            // classes every robot would get the first robot's constants
+            if (opcode == INVOKESTATIC && owner.equals("java/lang/Enum") && name.equals("valueOf"))
+                owner = ENUM_CONSTANTS;
+            else if (opcode == INVOKEVIRTUAL && owner.equals("java/lang/Class") && name.equals("getEnumConstants")) {
+                opcode = INVOKESTATIC;
+                owner = ENUM_CONSTANTS;
+                desc = "(Ljava/lang/Class;)[Ljava/lang/Object;";
+            } else if (opcode == INVOKEINTERFACE && owner.endsWith("/JavaLangAccess") && name.equals("getEnumConstantsShared")) {
+                // how EnumMap and EnumSet get the same cache; drop the
+                // JavaLangAccess from under the Class
+                super.visitInsn(SWAP);
+                super.visitInsn(POP);
+                opcode = INVOKESTATIC;
+                owner = ENUM_CONSTANTS;
+            }
+            super.visitMethodInsn(opcode, owner, name, desc);
+        }
+    }
+}
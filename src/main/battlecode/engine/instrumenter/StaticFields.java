@@ -0,0 +1,145 @@
+package battlecode.engine.instrumenter;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * What StaticFieldAdapter needs to know about the classes that one team's
+ * robots share when bc.engine.shared-classes is set: which static fields
+ * each class declares, whether they are kept per robot, and which classes
+ * have a companion holding them.  Class names are the instrumented names,
+ * e.g. "instrumented/java/util/HashMap" or "team000/RobotPlayer".
+ */
+class StaticFields {
+
+    static final String OBJECT_HASH_CODE = "battlecode/engine/instrumenter/lang/ObjectHashCode";
+    static final String INSTRUMENTABLE_FUNCTIONS = "battlecode/engine/instrumenter/lang/InstrumentableFunctions";
+
+    /**
+     * A class that is defined once per team.
+     */
+    static class Info {
+        final String name;
+        final boolean isInterface;
+        final String superName;
+        final String[] interfaces;
+        // declared field name -> whether it is kept per robot
+        final Map<String, Boolean> fields = new HashMap<String, Boolean>();
+        final boolean hasClinit;
+        // the class's own fields, methods and constructors that its static
+        // initializer uses, which the companion has to be able to reach
+        final Set<String> clinitMembers = new HashSet<String>();
+        final boolean hasCompanion;
+
+        Info(String name, ClassNode cn, String teamPackageName) {
+            this.name = name;
+            isInterface = (cn.access & Opcodes.ACC_INTERFACE) != 0;
+            superName = ClassReferenceUtil.classReference(cn.superName, teamPackageName, false, false);
+            interfaces = new String[cn.interfaces.size()];
+            for (int i = 0; i < interfaces.length; i++)
+                interfaces[i] = ClassReferenceUtil.classReference((String) cn.interfaces.get(i), teamPackageName, false, false);
+            boolean perRobotFields = false;
+            for (Object o : cn.fields) {
+                FieldNode f = (FieldNode) o;
+                // compile-time constants are inlined by javac, so they can stay shared
+                boolean perRobot = (f.access & Opcodes.ACC_STATIC) != 0 && f.value == null;
+                fields.put(f.name, perRobot);
+                perRobotFields |= perRobot;
+            }
+            boolean clinit = false;
+            for (Object o : cn.methods) {
+                MethodNode m = (MethodNode) o;
+                if (!m.name.equals("<clinit>"))
+                    continue;
+                clinit = true;
+                for (AbstractInsnNode insn = m.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                    if (insn instanceof FieldInsnNode && ((FieldInsnNode) insn).owner.equals(cn.name))
+                        clinitMembers.add(((FieldInsnNode) insn).name);
+                    else if (insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.equals(cn.name))
+                        clinitMembers.add(((MethodInsnNode) insn).name);
+                }
+            }
+            hasClinit = clinit;
+            hasCompanion = clinit || perRobotFields;
+        }
+    }
+
+    private final String teamPackageName;
+    // class name -> Info, or null if it isn't shared
+    private final Map<String, Info> classes = new HashMap<String, Info>();
+
+    StaticFields(String teamPackageName) {
+        this.teamPackageName = teamPackageName;
+    }
+
+    /**
+     * Returns whether the given class is defined once per team.
+     */
+    boolean isShared(String className) {
+        return className.startsWith("instrumented/") || className.startsWith(teamPackageName + "/") ||
+                className.equals(OBJECT_HASH_CODE) || className.equals(INSTRUMENTABLE_FUNCTIONS);
+    }
+
+    /**
+     * Returns what we know about a shared class, or null if the class isn't
+     * shared or can't be read.
+     */
+    synchronized Info get(String className) {
+        if (classes.containsKey(className))
+            return classes.get(className);
+        Info info = null;
+        if (isShared(className)) {
+            byte[] bytes = ClassFiles.read(className.startsWith("instrumented/") ? className.substring(13) : className);
+            if (bytes != null) {
+                ClassNode cn = new ClassNode();
+                new ClassReader(bytes).accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                info = new Info(className, cn, teamPackageName);
+            }
+        }
+        classes.put(className, info);
+        return info;
+    }
+
+    /**
+     * Returns the shared class that declares the static field that the
+     * given reference resolves to, if that field is kept per robot, and null
+     * otherwise.  Fields are looked up the way the JVM does: the class
+     * itself, then its interfaces, then its superclass.
+     */
+    String perRobotField(String owner, String fieldName) {
+        Info info = declaring(owner, fieldName);
+        return info != null && info.fields.get(fieldName) ? info.name : null;
+    }
+
+    private Info declaring(String className, String fieldName) {
+        Info info = get(className);
+        if (info == null)
+            return null;
+        if (info.fields.containsKey(fieldName))
+            return info;
+        for (String i : info.interfaces) {
+            Info result = declaring(i, fieldName);
+            if (result != null)
+                return result;
+        }
+        return info.superName == null ? null : declaring(info.superName, fieldName);
+    }
+
+    /**
+     * Returns the class whose companion has to be set up before a robot
+     * can use the given class (the class itself, or the nearest superclass
+     * with a companion), or null if there isn't one.
+     */
+    String initTarget(String className) {
+        Info info = get(className);
+        if (info == null)
+            return null;
+        if (info.hasCompanion)
+            return info.name;
+        // initializing a class doesn't initialize its interfaces
+        return info.isInterface || info.superName == null ? null : initTarget(info.superName);
+    }
+}
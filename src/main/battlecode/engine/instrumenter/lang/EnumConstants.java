@@ -0,0 +1,63 @@
+package battlecode.engine.instrumenter.lang;
+
+import battlecode.engine.instrumenter.RobotMonitor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Replaces Enum.valueOf, Class.getEnumConstants and the
+ * JavaLangAccess.getEnumConstantsShared that EnumMap and EnumSet use when a
+ * team's robots share classes (bc.engine.shared-classes).  java.lang.Class remembers an
+ * enum's constants the first time it is asked for them, but each robot has
+ * its own constants, so we ask the enum's values() method every time.
+ * The robot isn't charged for values(), since it wouldn't be without shared
+ * classes either.
+ */
+public class EnumConstants {
+
+    private EnumConstants() {
+    }
+
+    public static Object[] getEnumConstants(Class<?> c) {
+        if (!c.isEnum())
+            return null;
+        try {
+            Method values = c.getDeclaredMethod("values");
+            values.setAccessible(true);
+            RobotMonitor.incrementDebugLevel();
+            try {
+                return (Object[]) values.invoke(null);
+            } finally {
+                RobotMonitor.decrementDebugLevel();
+            }
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // values() is instrumented, so it can run out of bytecodes
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public static Enum[] getEnumConstantsShared(Class<?> c) {
+        // values() returns an E[], which is an Enum[]
+        return (Enum[]) getEnumConstants(c);
+    }
+
+    public static <T extends Enum<T>> T valueOf(Class<T> c, String name) {
+        Object[] constants = getEnumConstants(c);
+        if (constants == null)
+            throw new IllegalArgumentException(c.getName() + " is not an enum type");
+        if (name == null)
+            throw new NullPointerException("Name is null");
+        for (Object constant : constants) {
+            if (((Enum<?>) constant).name().equals(name))
+                return c.cast(constant);
+        }
+        throw new IllegalArgumentException("No enum constant " + c.getCanonicalName() + "." + name);
+    }
+}
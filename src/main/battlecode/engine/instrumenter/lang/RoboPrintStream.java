@@ -18,16 +18,10 @@ public class RoboPrintStream extends PrintStream {
 
     private String header;
 
-    private static RoboPrintStream theInstance = new RoboPrintStream();
-
-    private RoboPrintStream() {
+    public RoboPrintStream() {
         super(java.lang.System.out);
     }
 
-    static public RoboPrintStream theInstance() {
-        return theInstance;
-    }
-
     //************************
     //*** PRINT METHODS ***
     //************************
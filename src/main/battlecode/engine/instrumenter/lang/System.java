@@ -42,9 +42,21 @@ public final class System {
         return (s == null) ? def : s;
     }
 
-    // set by RobotMonitor
-    public static PrintStream out;
-    public static PrintStream err;
+    /**
+     * The instrumenter replaces reads of System.out with calls to this method, so that each robot prints to
+     * the stream chosen for it by its match's RobotMonitor.
+     */
+    public static PrintStream getOut() {
+        return RobotMonitor.getOutputStream();
+    }
+
+    /**
+     * The instrumenter replaces reads of System.err with calls to this method.
+     */
+    public static PrintStream getErr() {
+        return RobotMonitor.getOutputStream();
+    }
+
     public static InputStream in = new InputStream() {
         public int read() throws java.io.IOException {
             throw new java.io.EOFException();
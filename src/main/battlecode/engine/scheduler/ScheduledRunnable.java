@@ -1,6 +1,8 @@
 package battlecode.engine.scheduler;
 
+import battlecode.engine.EngineContext;
 import battlecode.engine.ErrorReporter;
+import battlecode.server.Config;
 
 /**
  * ScheduledRunnable is a wrapper for a Runnable, that runs the embedded Runnable in a new thread that is locked into the Scheduler.
@@ -13,6 +15,7 @@ public class ScheduledRunnable implements Runnable {
 
     /**
      * Creates and runs a new thread that is locked into the Scheduler and runs the given Runnable.
+     * The new thread belongs to the same match as the calling thread.
      *
      * @param r  the Runnable to be run in the Scheduler
      * @param ID the integer ID that the Scheduler will associate with the given Runnable's thread
@@ -20,7 +23,8 @@ public class ScheduledRunnable implements Runnable {
     public ScheduledRunnable(Runnable r, int ID) {
         myID = ID;
         myRunnable = r;
-        Thread t = new Thread(this, "robot " + ID);
+        Thread t = new EngineContext.ContextThread(EngineContext.current(), this, "robot " + ID,
+                Config.getGlobalConfig().getInt("bc.engine.robot-stack-size") * 1024L);
         t.setDaemon(true);
         Scheduler.add(t, ID);
         t.start();
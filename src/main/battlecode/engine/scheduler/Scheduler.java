@@ -1,11 +1,17 @@
 package battlecode.engine.scheduler;
 
-import battlecode.engine.ErrorReporter;
+import battlecode.engine.EngineContext;
 import battlecode.engine.instrumenter.RobotMonitor;
+import battlecode.serial.TimingStats;
 
 import java.util.concurrent.locks.LockSupport;
 
 
+/**
+ * Hands the single running slot of a match around its threads in strict
+ * round-robin order.  There is one Scheduler per match; the static methods
+ * operate on the Scheduler of the match that the calling thread belongs to.
+ */
 public class Scheduler {
 
     public static class ScheduledThread {
@@ -22,22 +28,57 @@ public class Scheduler {
         }
     }
 
-    private volatile static ScheduledThread head, current;
+    private volatile ScheduledThread head, current;
 
-    static {
+    private TimingStats timings;
+    // when the running slot was last handed over; written before current is,
+    // so the thread that gets the slot sees it
+    private long handoffStart;
+
+    public Scheduler() {
         head = new ScheduledThread(null, new RobotMonitor.RobotData(-1));
         head.next = head;
         head.prev = head;
         current = head;
     }
 
-    public static void start() {
+    private static Scheduler scheduler() {
+        return EngineContext.current().getScheduler();
+    }
+
+    /**
+     * Makes the calling thread the engine thread of this scheduler, i.e. the
+     * thread that is woken up once every robot has had its turn.
+     */
+    public void start() {
         head.thread = Thread.currentThread();
     }
 
-    public static void reset() {
-        if (head.next != head) {
-            ErrorReporter.report("Failed to clean up all threads");
+    /**
+     * Makes this scheduler record handoff latencies and robot turn times in
+     * the given stats.
+     */
+    public void setTimings(TimingStats timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * Moves the turn times that the robots have accumulated into the
+     * timings.  Should be called by the engine thread once every robot has
+     * had its turn.
+     */
+    public void collectRobotTimes() {
+        if (timings == null)
+            return;
+        for (ScheduledThread st = head.next; st != head; st = st.next)
+            collectRobotTime(st.data);
+    }
+
+    private void collectRobotTime(RobotMonitor.RobotData data) {
+        if (data.turns > 0) {
+            timings.addRobotTime(data.ID, data.turnNanos, data.turns);
+            data.turnNanos = 0;
+            data.turns = 0;
         }
     }
 
@@ -45,12 +86,13 @@ public class Scheduler {
      * Adds a new thread to the scheduler.
      */
     public static void add(Thread t, int ID) {
+        Scheduler s = scheduler();
         ScheduledThread st = new ScheduledThread(t, new RobotMonitor.RobotData(ID));
-        ScheduledThread last = head.prev;
+        ScheduledThread last = s.head.prev;
         last.next = st;
         st.prev = last;
-        head.prev = st;
-        st.next = head;
+        s.head.prev = st;
+        st.next = s.head;
     }
 
     /**
@@ -59,18 +101,23 @@ public class Scheduler {
      * n
      */
     public static void die() {
-        ScheduledThread last = current.prev;
-        current = current.next;
-        current.prev = last;
-        last.next = current;
-        wakeupNext();
+        Scheduler s = scheduler();
+        if (s.timings != null) {
+            s.collectRobotTime(s.current.data);
+            s.handoffStart = System.nanoTime();
+        }
+        ScheduledThread last = s.current.prev;
+        s.current = s.current.next;
+        s.current.prev = last;
+        last.next = s.current;
+        s.wakeupNext();
     }
 
     /**
      * Wakes up the next thread.  Should be followed by a
      * call to endTurn().
      */
-    private static void wakeupNext() {
+    private void wakeupNext() {
         LockSupport.unpark(current.thread);
     }
 
@@ -79,25 +126,25 @@ public class Scheduler {
      * New robot threads should call this immediately after starting.
      */
     public static void endTurn() {
-        // we need do-while rather than while in case the current thread
-        // is also the next thread
-        do {
+        Scheduler s = scheduler();
+        // Check before parking.  The engine thread runs the IO callback
+        // between startNextThread and endTurn, and a java.util.concurrent
+        // lock taken there can park and use up the permit that hands the
+        // slot back.  A permit left over when we don't park only makes a
+        // later park return early.
+        while (s.current.thread != Thread.currentThread())
             LockSupport.park();
-        } while (current.thread != Thread.currentThread());
-        RobotMonitor.switchRunner(current.data);
+        if (s.timings != null)
+            s.timings.addHandoff(System.nanoTime() - s.handoffStart);
+        RobotMonitor.switchRunner(s.current.data);
     }
 
-    //static private volatile long enterTime;
-    //static public volatile long timeInScheduler;
-
     /**
      * Ends this thread's turn and wakes up the next thread.
      */
     public static void passToNextThread() {
-        //enterTime = System.nanoTime();
         startNextThread();
         endTurn();
-        //timeInScheduler+=System.nanoTime()-enterTime;
     }
 
     /**
@@ -106,8 +153,11 @@ public class Scheduler {
      * robots are running.
      */
     public static void startNextThread() {
-        current = current.next;
-        wakeupNext();
+        Scheduler s = scheduler();
+        if (s.timings != null)
+            s.handoffStart = System.nanoTime();
+        s.current = s.current.next;
+        s.wakeupNext();
     }
 
 }
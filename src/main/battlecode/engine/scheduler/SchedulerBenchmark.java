@@ -0,0 +1,73 @@
+package battlecode.engine.scheduler;
+
+import battlecode.engine.EngineContext;
+import battlecode.server.Config;
+
+/**
+ * Measures how long it takes the Scheduler to hand the running slot from one
+ * thread to the next, and how much heap each robot thread costs.  The robots do nothing but end their turns, so the time
+ * per handoff is pure scheduling overhead.  Thread stacks live outside the
+ * heap, so the per-robot memory reported here doesn't include them; their
+ * size is set with bc.engine.robot-stack-size.
+ * <p/>
+ * Usage: SchedulerBenchmark [robots [rounds [stack size in KB]]]
+ */
+public class SchedulerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int robots = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        String stackSize = args.length > 2 ? args[2] : "0";
+        Config.getGlobalConfig().set("bc.engine.robot-stack-size", stackSize);
+
+        // run twice and report the second run, so that it is measured with a
+        // warmed up JIT
+        for (int pass = 0; pass < 2; pass++)
+            run(robots, rounds, pass == 1);
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void run(int robots, final int rounds, boolean report) {
+        EngineContext context = new EngineContext();
+        context.bind();
+        context.getScheduler().start();
+
+        long before = usedMemory();
+        for (int i = 0; i < robots; i++) {
+            // negative IDs keep RobotMonitor from looking for a game world
+            new ScheduledRunnable(new Runnable() {
+                public void run() {
+                    Scheduler.endTurn();
+                    for (int r = 0; r < rounds; r++)
+                        Scheduler.passToNextThread();
+                }
+            }, -2 - i);
+        }
+        long perRobot = Math.max(0, usedMemory() - before) / Math.max(robots, 1);
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            Scheduler.startNextThread();
+            Scheduler.endTurn();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // let the robot threads return
+        Scheduler.passToNextThread();
+        EngineContext.unbind();
+
+        if (report) {
+            long handoffs = (long) rounds * (robots + 1);
+            int stack = Config.getGlobalConfig().getInt("bc.engine.robot-stack-size");
+            System.out.println(String.format("%d robots, %d rounds: %.0f ns/handoff, %.1f ms/round, ~%d heap bytes/robot, stack %s",
+                    robots, rounds, (double) elapsed / handoffs,
+                    elapsed / 1e6 / rounds, perRobot, stack == 0 ? "default" : stack + " KB"));
+        }
+    }
+}
@@ -12,7 +12,8 @@ import java.util.HashMap;
  * - If the method has a {@link DiscoverSignal} annotation, that is respected.
  * - Otherwise, a method is discovered if it is public, its name starts with "visit", and it takes a single
  * parameter that is a subclass of {@link Signal} (but not Signal itself).
- * Currently it uses reflection, which is kind of inelegant and slow (but probably not slow enough to matter).  I guess we could avoid reflection and instead create classes on the fly.
+ * Currently it uses reflection, which is kind of inelegant and slow (but probably not slow enough to matter).
+ * {@link GeneratedSignalHandler} creates classes on the fly instead, and falls back to this class when it can't.
  */
 public class AutoSignalHandler implements SignalHandler {
 
@@ -31,9 +32,16 @@ public class AutoSignalHandler implements SignalHandler {
     }
 
     protected void discoverMethods(Class cls) {
+        methodMap = signalMethods(cls);
+    }
+
+    /**
+     * Returns the signal handling methods of the given class, by the class of signal they handle.
+     */
+    static HashMap<Class, Method> signalMethods(Class cls) {
         synchronized (metaMap) {
-            methodMap = metaMap.get(cls);
-            if (methodMap != null) return;
+            HashMap<Class, Method> methodMap = metaMap.get(cls);
+            if (methodMap != null) return methodMap;
             assert Modifier.isPublic(cls.getModifiers());
             methodMap = new HashMap<Class, Method>();
             for (Method method : cls.getMethods()) {
@@ -54,6 +62,7 @@ public class AutoSignalHandler implements SignalHandler {
                 }
             }
             metaMap.put(cls, methodMap);
+            return methodMap;
         }
     }
 
@@ -0,0 +1,223 @@
+package battlecode.engine.signal;
+
+import battlecode.engine.ErrorReporter;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A signal handler that delegates to the same methods that {@link AutoSignalHandler} would, but without reflection.
+ * <p/>
+ * The first time an object of some class is given to {@link #create}, a subclass of this class is generated that
+ * numbers the object's signal handling methods and calls the one with a given number directly, with a switch.  Each
+ * handler then works out which numbers to call for each class of signal the first time it sees one, so after that
+ * dispatching a signal is a hash lookup and a switch instead of a reflective call.  As with AutoSignalHandler, a
+ * signal is passed to the method for its own class and then to the methods for each of its superclasses, if there
+ * are any.
+ * <p/>
+ * Objects whose class isn't public, or that a subclass can't be generated for, get an AutoSignalHandler instead.
+ */
+public abstract class GeneratedSignalHandler implements SignalHandler {
+
+    /**
+     * A generated subclass, and the class of signal that each of its methods' numbers stands for.
+     */
+    private static class Generated {
+        final Constructor<?> constructor;
+        final Class[] signalClasses;
+
+        Generated(Constructor<?> constructor, Class[] signalClasses) {
+            this.constructor = constructor;
+            this.signalClasses = signalClasses;
+        }
+    }
+
+    private static final Map<Class, Generated> generated = new HashMap<Class, Generated>();
+    private static int numGenerated;
+
+    private static final String SUPER_NAME = Type.getInternalName(GeneratedSignalHandler.class);
+    private static final String DISPATCH_DESC = "(ILbattlecode/engine/signal/Signal;)V";
+
+    protected final Object myObject;
+    private final Class[] signalClasses;
+    // the numbers of the methods that handle each class of signal seen so far, in the order to call them
+    private final Map<Class, int[]> tags = new HashMap<Class, int[]>();
+
+    protected GeneratedSignalHandler(Object o, Class[] signalClasses) {
+        this.myObject = o;
+        this.signalClasses = signalClasses;
+    }
+
+    /**
+     * Returns a signal handler that delegates to the signal handling methods of the given object.
+     */
+    public static SignalHandler create(Object o) {
+        Generated g = generated(o.getClass());
+        if (g == null)
+            return new AutoSignalHandler(o);
+        try {
+            return (SignalHandler) g.constructor.newInstance(o, g.signalClasses);
+        } catch (Exception e) {
+            ErrorReporter.report(e, true);
+            return new AutoSignalHandler(o);
+        }
+    }
+
+    /**
+     * Returns the subclass for handlers of the given class, generating it the first time, or null if there can't be
+     * one.
+     */
+    private static Generated generated(Class cls) {
+        synchronized (generated) {
+            if (generated.containsKey(cls))
+                return generated.get(cls);
+            Generated g = null;
+            if (Modifier.isPublic(cls.getModifiers())) {
+                try {
+                    g = generate(cls);
+                } catch (Exception e) {
+                    ErrorReporter.report(e, true);
+                } catch (LinkageError e) {
+                    ErrorReporter.report(e, true);
+                }
+            }
+            generated.put(cls, g);
+            return g;
+        }
+    }
+
+    private static Generated generate(Class cls) throws Exception {
+        Map<Class, Method> methodMap = AutoSignalHandler.signalMethods(cls);
+        Class[] signalClasses = methodMap.keySet().toArray(new Class[methodMap.size()]);
+        Method[] methods = new Method[signalClasses.length];
+        for (int i = 0; i < signalClasses.length; i++)
+            methods[i] = methodMap.get(signalClasses[i]);
+        String name = SUPER_NAME + "$" + cls.getSimpleName() + "$" + (numGenerated++);
+        Class<?> sub = new GeneratedClassLoader(cls.getClassLoader()).define(name, generateClass(name, cls, signalClasses, methods));
+        return new Generated(sub.getConstructor(Object.class, Class[].class), signalClasses);
+    }
+
+    /**
+     * Returns a subclass whose dispatch(i, s) calls ((cls) myObject).methods[i]((signalClasses[i]) s).
+     */
+    private static byte[] generateClass(String name, Class cls, Class[] signalClasses, Method[] methods) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC, name, null, SUPER_NAME, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(Ljava/lang/Object;[Ljava/lang/Class;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, SUPER_NAME, "<init>", "(Ljava/lang/Object;[Ljava/lang/Class;)V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PROTECTED, "dispatch", DISPATCH_DESC, null, null);
+        mv.visitCode();
+        Label end = new Label();
+        if (methods.length > 0) {
+            Label[] cases = new Label[methods.length];
+            for (int i = 0; i < cases.length; i++)
+                cases[i] = new Label();
+            mv.visitVarInsn(Opcodes.ILOAD, 1);
+            mv.visitTableSwitchInsn(0, cases.length - 1, end, cases);
+            String owner = Type.getInternalName(cls);
+            for (int i = 0; i < cases.length; i++) {
+                Method m = methods[i];
+                boolean isStatic = Modifier.isStatic(m.getModifiers());
+                mv.visitLabel(cases[i]);
+                if (!isStatic) {
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, SUPER_NAME, "myObject", "Ljava/lang/Object;");
+                    mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+                }
+                mv.visitVarInsn(Opcodes.ALOAD, 2);
+                mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(signalClasses[i]));
+                if (isStatic)
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(m.getDeclaringClass()), m.getName(), Type.getMethodDescriptor(m));
+                else
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, m.getName(), Type.getMethodDescriptor(m));
+                Type returnType = Type.getReturnType(m);
+                if (returnType.getSize() == 2)
+                    mv.visitInsn(Opcodes.POP2);
+                else if (returnType != Type.VOID_TYPE)
+                    mv.visitInsn(Opcodes.POP);
+                mv.visitInsn(Opcodes.RETURN);
+            }
+        }
+        mv.visitLabel(end);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader {
+
+        GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] classBytes) {
+            return defineClass(name.replace('/', '.'), classBytes, 0, classBytes.length);
+        }
+    }
+
+    /**
+     * Calls the method that handles signals of class signalClasses[tag].
+     */
+    protected abstract void dispatch(int tag, Signal s) throws Exception;
+
+    public void handleException(Throwable e) {
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        else if (e instanceof Error)
+            throw (Error) e;
+        else
+            throw new RuntimeException("Exception in signal handler", e);
+    }
+
+    public void visitSignal(Signal signal) {
+        int[] signalTags = tags.get(signal.getClass());
+        if (signalTags == null) {
+            signalTags = tagsOf(signal.getClass());
+            tags.put(signal.getClass(), signalTags);
+        }
+        try {
+            for (int tag : signalTags)
+                dispatch(tag, signal);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    private int[] tagsOf(Class<?> cls) {
+        int[] signalTags = new int[0];
+        do {
+            for (int i = 0; i < signalClasses.length; i++) {
+                if (signalClasses[i] == cls) {
+                    signalTags = Arrays.copyOf(signalTags, signalTags.length + 1);
+                    signalTags[signalTags.length - 1] = i;
+                }
+            }
+            cls = cls.getSuperclass();
+        }
+        while (Signal.class.isAssignableFrom(cls));
+        return signalTags;
+    }
+}
@@ -0,0 +1,62 @@
+package battlecode.engine.signal;
+
+import battlecode.common.Team;
+import battlecode.common.Upgrade;
+import battlecode.world.signal.FluxChangeSignal;
+import battlecode.world.signal.ResearchChangeSignal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares how fast AutoSignalHandler and GeneratedSignalHandler dispatch
+ * signals: sends two classes of signal, alternately, to a handler with a
+ * method for each, through each kind of handler, and prints how many
+ * signals per second each one managed.  Run it again whenever either
+ * handler's dispatch changes.
+ * <p/>
+ * Usage: SignalDispatchBenchmark [signals]
+ */
+public class SignalDispatchBenchmark {
+
+    /**
+     * The handler.  It has to be public, or GeneratedSignalHandler would
+     * fall back to AutoSignalHandler.
+     */
+    public static class Handler {
+        public long count;
+
+        public void visitFluxChangeSignal(FluxChangeSignal s) {
+            count++;
+        }
+
+        public void visitResearchChangeSignal(ResearchChangeSignal s) {
+            count += 2;
+        }
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+
+        Signal[] signals = {
+                new FluxChangeSignal(new double[2]),
+                new ResearchChangeSignal(new HashMap<Team, Map<Upgrade, Integer>>())
+        };
+
+        // the first passes warm up the JIT
+        for (int pass = 0; pass < 3; pass++) {
+            for (int k = 0; k < 2; k++) {
+                Handler h = new Handler();
+                SignalHandler handler = k == 0 ? new AutoSignalHandler(h) : GeneratedSignalHandler.create(h);
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++)
+                    handler.visitSignal(signals[i & 1]);
+                long elapsed = System.nanoTime() - start;
+                if (h.count != n / 2 * 3 + (n & 1))
+                    throw new IllegalStateException(handler.getClass().getName() + " missed signals");
+                System.out.println(String.format("pass %d: %s: %.1fM signals/s", pass + 1,
+                        handler.getClass().getName(), n / (elapsed / 1e9) / 1e6));
+            }
+        }
+    }
+}
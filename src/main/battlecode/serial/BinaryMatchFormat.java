@@ -0,0 +1,634 @@
+package battlecode.serial;
+
+import battlecode.common.MapLocation;
+import battlecode.engine.signal.Signal;
+import battlecode.world.signal.*;
+
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.core.JVM;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * The pieces shared by BinaryMatchOutputStream and BinaryMatchInputStream.
+ * <p/>
+ * A binary match stream starts with the bytes "BCMF", a version byte and the
+ * signal table, and is followed by records.  Each record is a tag byte and
+ * its body:
+ * <ul>
+ * <li>RoundDelta: the number of signals, then each signal as a tag byte
+ * followed by its fields</li>
+ * <li>RoundStats: four doubles</li>
+ * <li>MatchFooter: the winner and the team memory</li>
+ * <li>anything else (e.g. MatchHeader): a length-prefixed blob written with
+ * Java serialization</li>
+ * </ul>
+ * The signal table lists the signal classes with a compact encoding, and
+ * for each one the name and kind (see kind()) of each field that is written
+ * for it.  A signal's tag is its class's index in the table plus one, and
+ * its fields follow in table order: ints and longs as zigzag varints,
+ * floating point numbers in full, enums as ordinals and arrays as a length
+ * followed by their elements.  Lengths and enum ordinals are stored plus one
+ * so that zero can mean null.
+ * <p/>
+ * Readers match the fields in the table to their own signal classes by
+ * name, so a signal can gain or lose fields without making older streams
+ * unreadable: fields the reader doesn't have (or has with a different kind)
+ * are skipped, fields the stream doesn't have are left at their defaults,
+ * and signals of classes the reader doesn't have are dropped.
+ */
+final class BinaryMatchFormat {
+
+    static final byte[] MAGIC = {'B', 'C', 'M', 'F'};
+    static final int VERSION = 3;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_HEADER = 1;
+    static final int TAG_ROUND = 2;
+    static final int TAG_STATS = 3;
+    static final int TAG_FOOTER = 4;
+    static final int TAG_OBJECT = 5;
+
+    /**
+     * The signal tag of signals that are not in SIGNAL_CLASSES; they are
+     * written with Java serialization.
+     */
+    static final int SIGNAL_SERIALIZED = 0;
+
+    /**
+     * The signal classes with a compact encoding.  The tag of a class is its
+     * index plus one; since the stream says which class each tag is, they
+     * can be added, removed or reordered freely.
+     */
+    @SuppressWarnings("unchecked")
+    static final Class<? extends Signal>[] SIGNAL_CLASSES = new Class[]{
+            AttackSignal.class,
+            BroadcastSignal.class,
+            BytecodesUsedSignal.class,
+            CaptureSignal.class,
+            ControlBitsSignal.class,
+            DeathSignal.class,
+            EnergonChangeSignal.class,
+            EnergonTransferSignal.class,
+            FluxChangeSignal.class,
+            HatSignal.class,
+            IndicatorStringSignal.class,
+            IronShieldSignal.class,
+            LoadSignal.class,
+            MatchObservationSignal.class,
+            MineSignal.class,
+            MinelayerSignal.class,
+            MovementOverrideSignal.class,
+            MovementSignal.class,
+            NeutralsDensitySignal.class,
+            NeutralsTeamSignal.class,
+            NodeBirthSignal.class,
+            NodeConnectionSignal.class,
+            RegenSignal.class,
+            ResearchChangeSignal.class,
+            ResearchSignal.class,
+            ScanSignal.class,
+            SelfDestructSignal.class,
+            SetDirectionSignal.class,
+            ShieldChangeSignal.class,
+            ShieldSignal.class,
+            SpawnSignal.class,
+            TransferFluxSignal.class,
+            TurnOffSignal.class,
+            TurnOnSignal.class,
+            UnloadSignal.class,
+            NeutralsDensityDeltaSignal.class,
+            NeutralsTeamDeltaSignal.class,
+            PastrScoreSignal.class,
+            StateHashSignal.class,
+    };
+
+    private static final Map<Class<?>, Integer> signalTags = new HashMap<Class<?>, Integer>();
+
+    static {
+        for (int i = 0; i < SIGNAL_CLASSES.length; i++)
+            signalTags.put(SIGNAL_CLASSES[i], i + 1);
+    }
+
+    private static final Map<Class<?>, Field[]> layouts = new HashMap<Class<?>, Field[]>();
+
+    private static final ReflectionProvider reflection = JVM.newReflectionProvider();
+
+    /**
+     * A signal class as described by a stream's signal table, matched up
+     * with the reader's own class and fields.
+     */
+    static final class SignalLayout {
+        /**
+         * The reader's class, or null if it doesn't have one by that name.
+         */
+        final Class<?> cl;
+        /**
+         * The kind of each field in the stream.
+         */
+        final String[] kinds;
+        /**
+         * The reader's field for each field in the stream, or null if it
+         * has no field of that name and kind.
+         */
+        final Field[] fields;
+
+        SignalLayout(Class<?> cl, String[] kinds, Field[] fields) {
+            this.cl = cl;
+            this.kinds = kinds;
+            this.fields = fields;
+        }
+    }
+
+    private BinaryMatchFormat() {
+    }
+
+    static int signalTag(Signal s) {
+        Integer tag = signalTags.get(s.getClass());
+        return tag == null ? SIGNAL_SERIALIZED : tag;
+    }
+
+    /**
+     * Returns the fields of cl that are written for it, in the order they
+     * are written.
+     */
+    static synchronized Field[] layout(Class<?> cl) {
+        Field[] fields = layouts.get(cl);
+        if (fields == null) {
+            List<Field> result = new ArrayList<Field>();
+            addFields(cl, result);
+            fields = result.toArray(new Field[result.size()]);
+            layouts.put(cl, fields);
+        }
+        return fields;
+    }
+
+    private static void addFields(Class<?> cl, List<Field> result) {
+        if (cl == Signal.class || cl == Object.class)
+            return;
+        addFields(cl.getSuperclass(), result);
+        List<Field> own = new ArrayList<Field>();
+        for (Field f : cl.getDeclaredFields()) {
+            int mod = f.getModifiers();
+            if (Modifier.isStatic(mod) || Modifier.isTransient(mod))
+                continue;
+            f.setAccessible(true);
+            own.add(f);
+        }
+        Collections.sort(own, new Comparator<Field>() {
+            public int compare(Field a, Field b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        result.addAll(own);
+    }
+
+    /**
+     * Returns the kind of a field of the given type, which says how its
+     * value is encoded: a letter for each primitive type as in JVM type
+     * descriptors, "L" for MapLocation, "E" for enums, "T" for strings,
+     * "[" followed by the component's kind for arrays and "O" for anything
+     * else, which is written with Java serialization.
+     */
+    static String kind(Class<?> type) {
+        if (type == int.class)
+            return "I";
+        else if (type == double.class)
+            return "D";
+        else if (type == boolean.class)
+            return "Z";
+        else if (type == float.class)
+            return "F";
+        else if (type == long.class)
+            return "J";
+        else if (type == short.class)
+            return "S";
+        else if (type == byte.class)
+            return "B";
+        else if (type == char.class)
+            return "C";
+        else if (type == MapLocation.class)
+            return "L";
+        else if (type.isEnum())
+            return "E";
+        else if (type == String.class)
+            return "T";
+        else if (type.isArray())
+            return "[" + kind(type.getComponentType());
+        else
+            return "O";
+    }
+
+    /**
+     * Creates an instance of cl without running any of its constructors.
+     */
+    static Object newInstance(Class<?> cl) {
+        return reflection.newInstance(cl);
+    }
+
+    // ---- writing ----
+
+    static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static void writeSignedInt(DataOutput out, int v) throws IOException {
+        writeVarInt(out, (v << 1) ^ (v >> 31));
+    }
+
+    static void writeSignedLong(DataOutput out, long v) throws IOException {
+        writeVarLong(out, (v << 1) ^ (v >> 63));
+    }
+
+    /**
+     * Writes the signal table for SIGNAL_CLASSES.
+     */
+    static void writeSignalTable(DataOutput out) throws IOException {
+        writeVarInt(out, SIGNAL_CLASSES.length);
+        for (Class<?> cl : SIGNAL_CLASSES) {
+            writeValue(out, String.class, cl.getName());
+            Field[] fields = layout(cl);
+            writeVarInt(out, fields.length);
+            for (Field f : fields) {
+                writeValue(out, String.class, f.getName());
+                writeValue(out, String.class, kind(f.getType()));
+            }
+        }
+    }
+
+    static void writeSignalFields(DataOutput out, Object o) throws IOException {
+        try {
+            for (Field f : layout(o.getClass())) {
+                Class<?> type = f.getType();
+                if (type == int.class)
+                    writeSignedInt(out, f.getInt(o));
+                else if (type == double.class)
+                    out.writeDouble(f.getDouble(o));
+                else if (type == boolean.class)
+                    out.writeBoolean(f.getBoolean(o));
+                else if (type == float.class)
+                    out.writeFloat(f.getFloat(o));
+                else if (type == long.class)
+                    writeSignedLong(out, f.getLong(o));
+                else if (type == short.class || type == byte.class)
+                    writeSignedInt(out, f.getInt(o));
+                else if (type == char.class)
+                    writeVarInt(out, f.getChar(o));
+                else
+                    writeValue(out, type, f.get(o));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("cannot read field of " + o.getClass().getName(), e);
+        }
+    }
+
+    static void writeValue(DataOutput out, Class<?> type, Object value) throws IOException {
+        if (type == MapLocation.class) {
+            MapLocation loc = (MapLocation) value;
+            out.writeBoolean(loc != null);
+            if (loc != null) {
+                writeSignedInt(out, loc.x);
+                writeSignedInt(out, loc.y);
+            }
+        } else if (type.isEnum()) {
+            writeVarInt(out, value == null ? 0 : ((Enum<?>) value).ordinal() + 1);
+        } else if (type == String.class) {
+            if (value == null)
+                writeVarInt(out, 0);
+            else {
+                byte[] bytes = ((String) value).getBytes("UTF-8");
+                writeVarInt(out, bytes.length + 1);
+                out.write(bytes);
+            }
+        } else if (type.isArray()) {
+            writeArray(out, type.getComponentType(), value);
+        } else {
+            writeSerialized(out, value);
+        }
+    }
+
+    private static void writeArray(DataOutput out, Class<?> component, Object array) throws IOException {
+        if (array == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        int n = Array.getLength(array);
+        writeVarInt(out, n + 1);
+        if (component == int.class) {
+            for (int v : (int[]) array)
+                writeSignedInt(out, v);
+        } else if (component == double.class) {
+            for (double v : (double[]) array)
+                out.writeDouble(v);
+        } else if (component == long.class) {
+            for (long v : (long[]) array)
+                writeSignedLong(out, v);
+        } else if (component == boolean.class) {
+            for (boolean v : (boolean[]) array)
+                out.writeBoolean(v);
+        } else if (component == float.class) {
+            for (float v : (float[]) array)
+                out.writeFloat(v);
+        } else if (component == byte.class) {
+            out.write((byte[]) array);
+        } else if (component == short.class) {
+            for (short v : (short[]) array)
+                writeSignedInt(out, v);
+        } else if (component == char.class) {
+            for (char v : (char[]) array)
+                writeVarInt(out, v);
+        } else {
+            Object[] objects = (Object[]) array;
+            for (Object v : objects)
+                writeValue(out, component, v);
+        }
+    }
+
+    static void writeSerialized(DataOutput out, Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(o);
+        oos.close();
+        writeVarInt(out, bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    // ---- reading ----
+
+    static int readVarInt(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new StreamCorruptedException("malformed varint");
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new StreamCorruptedException("malformed varint");
+    }
+
+    static int readSignedInt(DataInput in) throws IOException {
+        int v = readVarInt(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static long readSignedLong(DataInput in) throws IOException {
+        long v = readVarLong(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads a signal table and matches it up with the signal classes that
+     * are loaded here.
+     */
+    static SignalLayout[] readSignalTable(DataInput in) throws IOException {
+        SignalLayout[] table = new SignalLayout[readVarInt(in)];
+        for (int i = 0; i < table.length; i++) {
+            String name = (String) readValue(in, String.class);
+            Class<?> cl;
+            try {
+                cl = Class.forName(name, false, BinaryMatchFormat.class.getClassLoader());
+                if (!Signal.class.isAssignableFrom(cl))
+                    cl = null;
+            } catch (ClassNotFoundException e) {
+                cl = null;
+            }
+            List<Field> unmatched = cl == null ? new ArrayList<Field>() : new ArrayList<Field>(Arrays.asList(layout(cl)));
+            String[] kinds = new String[readVarInt(in)];
+            Field[] fields = new Field[kinds.length];
+            for (int j = 0; j < kinds.length; j++) {
+                String fieldName = (String) readValue(in, String.class);
+                kinds[j] = (String) readValue(in, String.class);
+                for (Iterator<Field> it = unmatched.iterator(); it.hasNext(); ) {
+                    Field f = it.next();
+                    if (f.getName().equals(fieldName) && kind(f.getType()).equals(kinds[j])) {
+                        fields[j] = f;
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            table[i] = new SignalLayout(cl, kinds, fields);
+        }
+        return table;
+    }
+
+    /**
+     * Reads the fields of a signal laid out as described by layout into o,
+     * skipping those that o doesn't have.  o may be null if the reader has
+     * no class for the signal.
+     */
+    static void readSignalFields(DataInput in, Object o, SignalLayout layout) throws IOException {
+        try {
+            for (int i = 0; i < layout.kinds.length; i++) {
+                Field f = layout.fields[i];
+                if (o == null || f == null) {
+                    skipValue(in, layout.kinds[i]);
+                    continue;
+                }
+                Class<?> type = f.getType();
+                if (type == int.class)
+                    f.setInt(o, readSignedInt(in));
+                else if (type == double.class)
+                    f.setDouble(o, in.readDouble());
+                else if (type == boolean.class)
+                    f.setBoolean(o, in.readBoolean());
+                else if (type == float.class)
+                    f.setFloat(o, in.readFloat());
+                else if (type == long.class)
+                    f.setLong(o, readSignedLong(in));
+                else if (type == short.class)
+                    f.setShort(o, (short) readSignedInt(in));
+                else if (type == byte.class)
+                    f.setByte(o, (byte) readSignedInt(in));
+                else if (type == char.class)
+                    f.setChar(o, (char) readVarInt(in));
+                else
+                    f.set(o, readValue(in, type));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("cannot set field of " + o.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Reads past a value of the given kind.
+     */
+    static void skipValue(DataInput in, String kind) throws IOException {
+        switch (kind.charAt(0)) {
+            case 'I':
+            case 'S':
+            case 'B':
+            case 'C':
+            case 'E':
+                readVarInt(in);
+                break;
+            case 'J':
+                readVarLong(in);
+                break;
+            case 'D':
+                in.readDouble();
+                break;
+            case 'F':
+                in.readFloat();
+                break;
+            case 'Z':
+                in.readBoolean();
+                break;
+            case 'L':
+                if (in.readBoolean()) {
+                    readVarInt(in);
+                    readVarInt(in);
+                }
+                break;
+            case 'T':
+                skipFully(in, Math.max(readVarInt(in) - 1, 0));
+                break;
+            case 'O':
+                skipFully(in, readVarInt(in));
+                break;
+            case '[':
+                int n = readVarInt(in) - 1;
+                String component = kind.substring(1);
+                if (component.equals("B"))
+                    skipFully(in, Math.max(n, 0));
+                else
+                    for (int i = 0; i < n; i++)
+                        skipValue(in, component);
+                break;
+            default:
+                throw new StreamCorruptedException("unknown field kind " + kind);
+        }
+    }
+
+    private static void skipFully(DataInput in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    static Object readValue(DataInput in, Class<?> type) throws IOException {
+        if (type == MapLocation.class) {
+            if (!in.readBoolean())
+                return null;
+            int x = readSignedInt(in);
+            int y = readSignedInt(in);
+            return new MapLocation(x, y);
+        } else if (type.isEnum()) {
+            int ordinal = readVarInt(in);
+            if (ordinal == 0)
+                return null;
+            Object[] constants = type.getEnumConstants();
+            if (ordinal > constants.length)
+                throw new StreamCorruptedException("bad ordinal for " + type.getName());
+            return constants[ordinal - 1];
+        } else if (type == String.class) {
+            int n = readVarInt(in);
+            if (n == 0)
+                return null;
+            byte[] bytes = new byte[n - 1];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        } else if (type.isArray()) {
+            return readArray(in, type.getComponentType());
+        } else {
+            return readSerialized(in);
+        }
+    }
+
+    private static Object readArray(DataInput in, Class<?> component) throws IOException {
+        int n = readVarInt(in);
+        if (n == 0)
+            return null;
+        n--;
+        if (component == int.class) {
+            int[] a = new int[n];
+            for (int i = 0; i < n; i++)
+                a[i] = readSignedInt(in);
+            return a;
+        } else if (component == double.class) {
+            double[] a = new double[n];
+            for (int i = 0; i < n; i++)
+                a[i] = in.readDouble();
+            return a;
+        } else if (component == long.class) {
+            long[] a = new long[n];
+            for (int i = 0; i < n; i++)
+                a[i] = readSignedLong(in);
+            return a;
+        } else if (component == boolean.class) {
+            boolean[] a = new boolean[n];
+            for (int i = 0; i < n; i++)
+                a[i] = in.readBoolean();
+            return a;
+        } else if (component == float.class) {
+            float[] a = new float[n];
+            for (int i = 0; i < n; i++)
+                a[i] = in.readFloat();
+            return a;
+        } else if (component == byte.class) {
+            byte[] a = new byte[n];
+            in.readFully(a);
+            return a;
+        } else if (component == short.class) {
+            short[] a = new short[n];
+            for (int i = 0; i < n; i++)
+                a[i] = (short) readSignedInt(in);
+            return a;
+        } else if (component == char.class) {
+            char[] a = new char[n];
+            for (int i = 0; i < n; i++)
+                a[i] = (char) readVarInt(in);
+            return a;
+        } else {
+            Object[] a = (Object[]) Array.newInstance(component, n);
+            for (int i = 0; i < n; i++)
+                a[i] = readValue(in, component);
+            return a;
+        }
+    }
+
+    static Object readSerialized(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unknown class in match stream", e);
+        } finally {
+            ois.close();
+        }
+    }
+}
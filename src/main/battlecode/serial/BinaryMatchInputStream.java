@@ -0,0 +1,106 @@
+package battlecode.serial;
+
+import battlecode.common.Team;
+import battlecode.engine.signal.Signal;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static battlecode.serial.BinaryMatchFormat.*;
+
+/**
+ * Reads match data written by BinaryMatchOutputStream.  Like any other
+ * ObjectInputStream, readObject throws an EOFException at the end of the
+ * stream.
+ */
+public class BinaryMatchInputStream extends ObjectInputStream {
+
+    private final DataInputStream in;
+    private final SignalLayout[] signalTable;
+
+    public BinaryMatchInputStream(InputStream stream) throws IOException {
+        super();
+        in = new DataInputStream(new BufferedInputStream(stream));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < magic.length; i++)
+            if (magic[i] != MAGIC[i])
+                throw new StreamCorruptedException("not a binary match file");
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new StreamCorruptedException("unsupported binary match version " + version);
+        signalTable = readSignalTable(in);
+    }
+
+    /**
+     * Returns true if the given stream starts like a binary match stream.
+     * The stream must support mark and reset.
+     */
+    public static boolean isBinaryMatch(InputStream stream) throws IOException {
+        stream.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC)
+                if (stream.read() != (b & 0xFF))
+                    return false;
+            return true;
+        } finally {
+            stream.reset();
+        }
+    }
+
+    protected Object readObjectOverride() throws IOException, ClassNotFoundException {
+        int tag = in.read();
+        switch (tag) {
+            case -1:
+                throw new EOFException();
+            case TAG_NULL:
+                return null;
+            case TAG_ROUND:
+                return readRound();
+            case TAG_STATS:
+                double a = in.readDouble(), b = in.readDouble();
+                double ga = in.readDouble(), gb = in.readDouble();
+                return new RoundStats(a, b, ga, gb);
+            case TAG_FOOTER:
+                Team winner = (Team) readValue(in, Team.class);
+                long[][] state = (long[][]) readValue(in, long[][].class);
+                return new MatchFooter(winner, state);
+            case TAG_HEADER:
+            case TAG_OBJECT:
+                return readSerialized(in);
+            default:
+                throw new StreamCorruptedException("unknown record tag " + tag);
+        }
+    }
+
+    private RoundDelta readRound() throws IOException {
+        int n = readVarInt(in);
+        List<Signal> signals = new ArrayList<Signal>(n);
+        for (int i = 0; i < n; i++) {
+            int tag = in.readUnsignedByte();
+            if (tag == SIGNAL_SERIALIZED) {
+                signals.add((Signal) readSerialized(in));
+            } else if (tag <= signalTable.length) {
+                // signals of classes that we don't have are dropped
+                SignalLayout layout = signalTable[tag - 1];
+                Signal s = layout.cl == null ? null : (Signal) newInstance(layout.cl);
+                readSignalFields(in, s, layout);
+                if (s != null)
+                    signals.add(s);
+            } else
+                throw new StreamCorruptedException("unknown signal tag " + tag);
+        }
+        RoundDelta round = new RoundDelta();
+        round.setSignals(signals.toArray(new Signal[signals.size()]));
+        return round;
+    }
+
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
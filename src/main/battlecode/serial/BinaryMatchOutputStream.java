@@ -0,0 +1,84 @@
+package battlecode.serial;
+
+import battlecode.common.Team;
+import battlecode.engine.signal.Signal;
+
+import java.io.*;
+
+import static battlecode.serial.BinaryMatchFormat.*;
+
+/**
+ * Writes match data in the compact binary match format described in
+ * BinaryMatchFormat.  This is an ObjectOutputStream so that it can be
+ * used anywhere a Proxy expects one; only writeObject, flush and close are
+ * supported.
+ *
+ * @see BinaryMatchInputStream
+ */
+public class BinaryMatchOutputStream extends ObjectOutputStream {
+
+    private final DataOutputStream out;
+
+    public BinaryMatchOutputStream(OutputStream stream) throws IOException {
+        super();
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        writeSignalTable(out);
+    }
+
+    protected void writeObjectOverride(Object o) throws IOException {
+        if (o == null) {
+            out.writeByte(TAG_NULL);
+        } else if (o instanceof RoundDelta) {
+            out.writeByte(TAG_ROUND);
+            writeRound((RoundDelta) o);
+        } else if (o instanceof RoundStats) {
+            RoundStats stats = (RoundStats) o;
+            out.writeByte(TAG_STATS);
+            out.writeDouble(stats.getPoints(Team.A));
+            out.writeDouble(stats.getPoints(Team.B));
+            out.writeDouble(stats.getGatheredPoints(Team.A));
+            out.writeDouble(stats.getGatheredPoints(Team.B));
+        } else if (o instanceof MatchFooter) {
+            MatchFooter footer = (MatchFooter) o;
+            out.writeByte(TAG_FOOTER);
+            writeValue(out, Team.class, footer.getWinner());
+            writeValue(out, long[][].class, footer.getState());
+        } else if (o instanceof MatchHeader) {
+            out.writeByte(TAG_HEADER);
+            writeSerialized(out, o);
+        } else {
+            out.writeByte(TAG_OBJECT);
+            writeSerialized(out, o);
+        }
+    }
+
+    private void writeRound(RoundDelta round) throws IOException {
+        Signal[] signals = round.getSignals();
+        writeVarInt(out, signals.length);
+        for (Signal s : signals) {
+            int tag = signalTag(s);
+            out.writeByte(tag);
+            if (tag == SIGNAL_SERIALIZED)
+                writeSerialized(out, s);
+            else
+                writeSignalFields(out, s);
+        }
+    }
+
+    /**
+     * Does nothing; the binary format never refers back to earlier objects,
+     * so there is nothing to reset.
+     */
+    public void reset() {
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,211 @@
+package battlecode.serial;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where the wall time of a match (or of one round) went: the engine's
+ * phases and handing the running slot from one robot thread to the next.
+ * Also the CPU time of each robot's turns, or their wall time if the JVM
+ * can't measure thread CPU time.  Only collected when bc.engine.timings is
+ * set.
+ */
+public class TimingStats implements Serializable {
+
+    private static final long serialVersionUID = -4191385836207435114L;
+
+    public enum Phase {
+        /**
+         * GameWorld.processBeginningOfRound
+         */
+        BEGINNING_OF_ROUND,
+        /**
+         * From the first robot starting its turn until the last one
+         * finishes, including handoffs
+         */
+        ROBOTS,
+        /**
+         * Writing the previous round to the proxies; runs at the same time
+         * as the robots, so this time is also counted in ROBOTS
+         */
+        IO_CALLBACK,
+        /**
+         * GameWorld.processEndOfRound, including NEUTRALS
+         */
+        END_OF_ROUND,
+        /**
+         * NeutralsMap.next; part of END_OF_ROUND
+         */
+        NEUTRALS
+    }
+
+    /**
+     * Bucket i of the handoff histogram counts handoffs that took at least
+     * 2^i and less than 2^(i+1) nanoseconds.
+     */
+    public static final int HISTOGRAM_BUCKETS = 40;
+
+    private int rounds;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final long[] handoffHistogram = new long[HISTOGRAM_BUCKETS];
+    private long handoffs;
+    private long handoffNanos;
+    private long maxHandoffNanos;
+    // robot ID -> {nanoseconds, turns}
+    private final Map<Integer, long[]> robotTimes = new TreeMap<Integer, long[]>();
+
+    public TimingStats() {
+    }
+
+    public void addPhase(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    public void addHandoff(long nanos) {
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(nanos, 1));
+        handoffHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+        handoffs++;
+        handoffNanos += nanos;
+        if (nanos > maxHandoffNanos)
+            maxHandoffNanos = nanos;
+    }
+
+    public void addRobotTime(int robotID, long nanos, int turns) {
+        long[] t = robotTimes.get(robotID);
+        if (t == null) {
+            t = new long[2];
+            robotTimes.put(robotID, t);
+        }
+        t[0] += nanos;
+        t[1] += turns;
+    }
+
+    public void addRound() {
+        rounds++;
+    }
+
+    /**
+     * Adds everything recorded in other to this.
+     */
+    public void add(TimingStats other) {
+        rounds += other.rounds;
+        for (int i = 0; i < phaseNanos.length; i++)
+            phaseNanos[i] += other.phaseNanos[i];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+            handoffHistogram[i] += other.handoffHistogram[i];
+        handoffs += other.handoffs;
+        handoffNanos += other.handoffNanos;
+        if (other.maxHandoffNanos > maxHandoffNanos)
+            maxHandoffNanos = other.maxHandoffNanos;
+        for (Map.Entry<Integer, long[]> e : other.robotTimes.entrySet())
+            addRobotTime(e.getKey(), e.getValue()[0], (int) e.getValue()[1]);
+    }
+
+    public void clear() {
+        rounds = 0;
+        for (int i = 0; i < phaseNanos.length; i++)
+            phaseNanos[i] = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+            handoffHistogram[i] = 0;
+        handoffs = handoffNanos = maxHandoffNanos = 0;
+        robotTimes.clear();
+    }
+
+    public TimingStats copy() {
+        TimingStats result = new TimingStats();
+        result.add(this);
+        return result;
+    }
+
+    public int getRounds() {
+        return rounds;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long[] getHandoffHistogram() {
+        return handoffHistogram.clone();
+    }
+
+    public long getHandoffCount() {
+        return handoffs;
+    }
+
+    public long getHandoffNanos() {
+        return handoffNanos;
+    }
+
+    public long getMaxHandoffNanos() {
+        return maxHandoffNanos;
+    }
+
+    /**
+     * Returns an upper bound on the given percentile (between 0 and 1) of
+     * handoff latency, in nanoseconds.
+     */
+    public long getHandoffPercentile(double p) {
+        long target = (long) Math.ceil(p * handoffs);
+        long seen = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            seen += handoffHistogram[i];
+            if (seen >= target && seen > 0)
+                return Math.min(1L << (i + 1), maxHandoffNanos);
+        }
+        return maxHandoffNanos;
+    }
+
+    /**
+     * Returns the total CPU time the given robot used in its turns, in
+     * nanoseconds.
+     */
+    public long getRobotNanos(int robotID) {
+        long[] t = robotTimes.get(robotID);
+        return t == null ? 0 : t[0];
+    }
+
+    public int getRobotTurns(int robotID) {
+        long[] t = robotTimes.get(robotID);
+        return t == null ? 0 : (int) t[1];
+    }
+
+    public Iterable<Integer> getRobotIDs() {
+        return Collections.unmodifiableSet(robotTimes.keySet());
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        double perRound = Math.max(rounds, 1);
+        sb.append(String.format("timings over %d rounds (ms total, ms/round):", rounds));
+        // IO_CALLBACK and NEUTRALS are indented under the phases they are part of
+        for (Phase phase : Phase.values()) {
+            String name = phase.name().toLowerCase();
+            if (phase == Phase.IO_CALLBACK || phase == Phase.NEUTRALS)
+                name = "  " + name;
+            sb.append(String.format("%n  %-20s %10.1f %8.3f", name,
+                    phaseNanos[phase.ordinal()] / 1e6, phaseNanos[phase.ordinal()] / 1e6 / perRound));
+        }
+        sb.append(String.format("%n  handoffs: %d, mean %.1f us, p50 < %.1f us, p99 < %.1f us, max %.1f us",
+                handoffs, handoffs == 0 ? 0 : handoffNanos / 1e3 / handoffs,
+                getHandoffPercentile(.5) / 1e3, getHandoffPercentile(.99) / 1e3, maxHandoffNanos / 1e3));
+        List<Map.Entry<Integer, long[]>> robots = new ArrayList<Map.Entry<Integer, long[]>>(robotTimes.entrySet());
+        Collections.sort(robots, new Comparator<Map.Entry<Integer, long[]>>() {
+            public int compare(Map.Entry<Integer, long[]> a, Map.Entry<Integer, long[]> b) {
+                long x = a.getValue()[0], y = b.getValue()[0];
+                return x > y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < robots.size() && i < 5; i++) {
+            Map.Entry<Integer, long[]> e = robots.get(i);
+            sb.append(String.format("%n  robot %-6d %10.1f ms cpu in %d turns", e.getKey(),
+                    e.getValue()[0] / 1e6, e.getValue()[1]));
+        }
+        return sb.toString();
+    }
+}
@@ -39,6 +39,13 @@ public class Config {
         defaults.setProperty("bc.server.throttle", "yield");
         defaults.setProperty("bc.server.throttle-count", "15");
         defaults.setProperty("bc.server.output-xml", "true");
+        defaults.setProperty("bc.server.output-binary", "false");
+        defaults.setProperty("bc.server.match-threads", "1");
+        defaults.setProperty("bc.server.async-proxies", "false");
+        defaults.setProperty("bc.server.async-queue-size", "256");
+        defaults.setProperty("bc.server.async-backpressure", "block");
+        defaults.setProperty("bc.server.output-timings", "false");
+        defaults.setProperty("bc.server.pipeline-matches", "false");
 
         defaults.setProperty("bc.engine.debug-methods", "true");
         defaults.setProperty("bc.engine.debug-max-bytecodes", "64000");
@@ -51,6 +58,21 @@ public class Config {
         defaults.setProperty("bc.engine.bytecodes-used", "true");
         defaults.setProperty("bc.engine.lazy-instrumenter", "false");
         defaults.setProperty("bc.engine.fast-hash", "false");
+        defaults.setProperty("bc.engine.neutrals-encoding", "full");
+        defaults.setProperty("bc.engine.neutrals-keyframe-rounds", "50");
+        defaults.setProperty("bc.engine.robot-stack-size", "0");
+        defaults.setProperty("bc.engine.timings", "false");
+        defaults.setProperty("bc.engine.class-cache", "");
+        defaults.setProperty("bc.engine.preinstrument", "false");
+        defaults.setProperty("bc.engine.shared-classes", "false");
+        defaults.setProperty("bc.engine.metering", "block");
+        defaults.setProperty("bc.engine.profiler", "false");
+        defaults.setProperty("bc.engine.profiler-top", "5");
+        defaults.setProperty("bc.engine.profiler-dir", "profiles");
+        defaults.setProperty("bc.engine.generated-signals", "true");
+        defaults.setProperty("bc.engine.snapshot-rounds", "0");
+        defaults.setProperty("bc.engine.snapshot-dir", "snapshots");
+        defaults.setProperty("bc.engine.state-hash", "false");
 
         defaults.setProperty("bc.client.opengl", "false");
         defaults.setProperty("bc.client.use-models", "true");
@@ -67,6 +89,7 @@ public class Config {
         defaults.setProperty("bc.game.team-b", "team000");
         defaults.setProperty("bc.game.maps", "glass");
         defaults.setProperty("bc.game.map-path", "maps");
+        defaults.setProperty("bc.game.map-cache", "true");
         defaults.setProperty("bc.game.state", "0,0");
 
 
@@ -80,6 +103,7 @@ public class Config {
         options.addOption("h", "headless", false, "headless mode");
         options.addOption("s", "server", false, "server mode");
         options.addOption("n", "no-dialog", false, "skip the match dialog");
+        options.addOption("p", "parallel", true, "number of matches to run at once (headless and tests only)");
     }
 
     public static String version() {
@@ -177,6 +201,9 @@ public class Config {
 
         if (cmd.hasOption("n"))
             properties.setProperty("bc.dialog.skip", "true");
+
+        if (cmd.hasOption("p"))
+            properties.setProperty("bc.server.match-threads", cmd.getOptionValue("p"));
     }
 
     /**
@@ -5,9 +5,13 @@ import battlecode.common.Team;
 import battlecode.engine.Engine;
 import battlecode.engine.GameState;
 import battlecode.engine.GameWorldViewer;
+import battlecode.engine.instrumenter.BytecodeProfiler;
+import battlecode.engine.instrumenter.IndividualClassLoader;
 import battlecode.engine.signal.Signal;
 import battlecode.serial.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Observable;
 
 //import battlecode.tournament.TournamentType;
@@ -55,6 +59,9 @@ public class Match extends Observable {
 
     private long[][] computedArchonMemory = null;
 
+    // how long it took to create the engine and to run the first round
+    private long setupNanos, firstRoundNanos = -1;
+
     /**
      * Creates a new match with the given parameters and options.
      *
@@ -77,8 +84,8 @@ public class Match extends Observable {
 
     /**
      * Sets up the engine for this match. Because Engine's constructor
-     * manipulates static state, engine object creation should not be done at
-     * match creation time!
+     * spawns robot threads and binds the calling thread to the new match,
+     * engine object creation should not be done at match creation time!
      */
     public void initialize() {
 
@@ -89,8 +96,10 @@ public class Match extends Observable {
         String mapPath = options.get("bc.game.map-path");
 
         // Create a new engine.
+        long start = System.nanoTime();
         this.engine = new Engine(info.getTeamA(), info.getTeamB(), map,
                 mapPath, this.state);
+        this.setupNanos = System.nanoTime() - start;
 
         // Get the viewer from the engine.
         this.gameWorldViewer = engine.getGameWorldViewer();
@@ -132,7 +141,10 @@ public class Match extends Observable {
     public RoundDelta getRound() {
 
         // Run the next round.
+        long start = System.nanoTime();
         GameState result = engine.runRound();
+        if (firstRoundNanos < 0)
+            firstRoundNanos = System.nanoTime() - start;
 
         // Notify the server of any other result.
         if (result == GameState.BREAKPOINT) {
@@ -158,6 +170,68 @@ public class Match extends Observable {
         return gameWorldViewer.getRoundStats();
     }
 
+    /**
+     * Returns a copy of the engine's timings for the most recent round, or
+     * null if bc.engine.timings is not set.
+     */
+    public TimingStats getRoundTimings() {
+        TimingStats timings = engine.getRoundTimings();
+        return timings == null ? null : timings.copy();
+    }
+
+    /**
+     * Returns a copy of the engine's timings for the whole match so far, or
+     * null if bc.engine.timings is not set.
+     */
+    public TimingStats getTimings() {
+        TimingStats timings = engine.getTimings();
+        return timings == null ? null : timings.copy();
+    }
+
+    /**
+     * Returns how long the match took to get going: creating the engine
+     * (which loads the HQs' classes, and pre-instruments the teams if
+     * bc.engine.preinstrument is set) and running the first round.
+     */
+    public String getStartupReport() {
+        return String.format("startup: %.1f ms (engine setup %.1f ms, first round %.1f ms)",
+                (setupNanos + Math.max(firstRoundNanos, 0)) / 1e6, setupNanos / 1e6,
+                Math.max(firstRoundNanos, 0) / 1e6);
+    }
+
+    /**
+     * Returns a summary of how the persistent class cache did for this
+     * match, or null if bc.engine.class-cache is not set.
+     */
+    public String getClassCacheReport() {
+        IndividualClassLoader.Cache cache = engine.getClassCache();
+        return cache.usedDiskCache() ? cache.toString() : null;
+    }
+
+    /**
+     * Returns how long it took to load robots' classes, and how many
+     * classes that defined.
+     */
+    public String getClassLoadingReport() {
+        return engine.getClassCache().loadingReport();
+    }
+
+    /**
+     * Writes the bytecode profile of each team's robots to bc.engine.profiler-dir
+     * and returns where it went, or returns null if bc.engine.profiler is not set.
+     */
+    public String getProfilerReport() {
+        BytecodeProfiler profiler = engine.getProfiler();
+        if (profiler == null)
+            return null;
+        String prefix = info.getTeamA() + "-vs-" + info.getTeamB() + "-" + map;
+        try {
+            return profiler.write(new File(options.get("bc.engine.profiler-dir")), prefix);
+        } catch (IOException e) {
+            return "couldn't write the bytecode profile: " + e;
+        }
+    }
+
     /**
      * Queries the engine for stats for the whole match.
      *
@@ -268,8 +342,19 @@ public class Match extends Observable {
         return sb.toString();
     }
 
+    /**
+     * Sets the archon memory that the teams start this match with.  This may
+     * be called after the match has been initialized, as long as it hasn't
+     * run any rounds, in which case the memory is copied into the arrays that
+     * the match's world was created with.
+     */
     public void setInitialArchonMemory(long[][] state) {
-        this.state = state;
+        if (engine == null) {
+            this.state = state;
+            return;
+        }
+        for (int i = 0; i < this.state.length; i++)
+            System.arraycopy(state[i], 0, this.state[i], 0, this.state[i].length);
     }
 
     public long[][] getInitialArchonMemory() {
@@ -287,7 +372,7 @@ public class Match extends Observable {
      *         round is 1 (0 if no rounds have been run yet)
      */
     public int getRoundNumber() {
-        return Engine.getRoundNum() + 1;
+        return gameWorldViewer.getCurrentRound() + 1;
     }
 
     /**
@@ -295,6 +380,7 @@ public class Match extends Observable {
      */
     public void finish() {
         this.computedArchonMemory = this.engine.getArchonMemory();
+        this.engine.finish();
         this.gameWorldViewer = null;
         this.engine = null;
     }
@@ -1,6 +1,7 @@
 package battlecode.server;
 
 import battlecode.common.Team;
+import battlecode.engine.EngineContext;
 import battlecode.engine.ErrorReporter;
 import battlecode.engine.GameState;
 import battlecode.engine.signal.Signal;
@@ -8,9 +9,11 @@ import battlecode.serial.*;
 import battlecode.serial.notification.*;
 import battlecode.server.controller.Controller;
 import battlecode.server.proxy.Proxy;
+import battlecode.server.proxy.SpoolProxy;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Runs matches. Specifically, this class forms a pipeline connecting match and
@@ -217,41 +220,19 @@ public class Server implements Observer, Runnable {
             return;
         }
 
-        int aWins = 0, bWins = 0;
-
-        while (!matches.isEmpty()) {
-            Match match = matches.peek();
-            if (!finished.isEmpty())
-                match.setInitialArchonMemory(finished.getLast()
-                        .getComputedArchonMemory());
-
-            try {
-                debug("running match " + match);
-                match.initialize();
-                runMatch(match);
-                finished.add(match);
-                matches.remove(match);
-
-                if (match.getWinner() == Team.A)
-                    aWins++;
-                else if (match.getWinner() == Team.B)
-                    bWins++;
-
-                match.finish();
-
-                // Allow best of three scrimmages -- single game scrims should still work fine
-                //TODO:This "win mode" should probably be something from the database
-                if (mode == Mode.TOURNAMENT || mode == Mode.SCRIMMAGE || mode == Mode.AUTOTEST || mode == Mode.MATCH) {
-                    if (aWins == 2 || bWins == 2)
-                        break;
-                }
+        long startTime = System.currentTimeMillis();
+        int matchThreads = options.getInt("bc.server.match-threads");
+        if (matchThreads > 1 && isWinMode())
+            warn("not running matches in parallel: in " + mode + " mode the matches are a best of three that carries archon memory from one match to the next");
+        if (matchThreads > 1 && isBatchMode() && !isWinMode())
+            runParallel(matchThreads);
+        else
+            runSerial();
 
-            } catch (Exception e) {
-                this.state = State.ERROR;
-                e.printStackTrace();
-                error("couldn't run match: " + e.getMessage());
-            }
-        }
+        double timeDiff = (System.currentTimeMillis() - startTime) / 1000.0;
+        if (!finished.isEmpty())
+            say(String.format("ran %d match(es) in %.4g seconds (%.4g matches/hour)",
+                    finished.size(), timeDiff, finished.size() * 3600.0 / timeDiff));
 
         for (Proxy p : proxies) {
             try {
@@ -269,6 +250,198 @@ public class Server implements Observer, Runnable {
         }
     }
 
+    /**
+     * Runs the queued matches one at a time, carrying archon memory from each
+     * match to the next.
+     * <p/>
+     * If bc.server.pipeline-matches is set, the next match is initialized --
+     * its map loaded, its teams pre-instrumented if bc.engine.preinstrument
+     * is set, and its world and HQs created -- on another thread while the
+     * current match runs.  The archon memory from the current match is
+     * copied into the next one when it starts, before any of its robots have
+     * run.  A match is only prepared early if it is sure to be played, so in
+     * best-of-three modes the third match is not prepared while the second
+     * one runs.
+     */
+    private void runSerial() {
+
+        boolean winMode = isWinMode();
+        boolean reportGaps = options.getBoolean("bc.engine.timings");
+
+        ExecutorService preparer = null;
+        if (options.getBoolean("bc.server.pipeline-matches")) {
+            preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "match preparer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        // the initialization of the match at the head of the queue, if it was started early
+        Future<?> prepared = null;
+
+        int aWins = 0, bWins = 0;
+        long lastFinished = -1;
+
+        try {
+            while (!matches.isEmpty()) {
+                Match match = matches.peek();
+
+                try {
+                    debug("running match " + match);
+                    if (prepared != null) {
+                        try {
+                            prepared.get();
+                        } catch (ExecutionException e) {
+                            if (e.getCause() instanceof Error)
+                                throw (Error) e.getCause();
+                            throw (Exception) e.getCause();
+                        } finally {
+                            prepared = null;
+                        }
+                    }
+                    if (!finished.isEmpty())
+                        match.setInitialArchonMemory(finished.getLast()
+                                .getComputedArchonMemory());
+                    if (!match.isInitialized())
+                        match.initialize();
+                    if (reportGaps && lastFinished >= 0)
+                        say(String.format("%.1f ms between matches", (System.nanoTime() - lastFinished) / 1e6));
+
+                    Iterator<Match> queued = matches.iterator();
+                    queued.next();
+                    final Match next = queued.hasNext() ? queued.next() : null;
+                    // the next match is sure to be played unless this one could end a best of three
+                    if (preparer != null && next != null && (!winMode || (aWins == 0 && bWins == 0))) {
+                        debug("preparing match " + next);
+                        prepared = preparer.submit(new Runnable() {
+                            public void run() {
+                                try {
+                                    next.initialize();
+                                } finally {
+                                    EngineContext.unbind();
+                                }
+                            }
+                        });
+                    }
+
+                    runMatch(match);
+                    finished.add(match);
+                    matches.remove(match);
+
+                    if (match.getWinner() == Team.A)
+                        aWins++;
+                    else if (match.getWinner() == Team.B)
+                        bWins++;
+
+                    match.finish();
+                    lastFinished = System.nanoTime();
+
+                    // Allow best of three scrimmages -- single game scrims should still work fine
+                    if (winMode) {
+                        if (aWins == 2 || bWins == 2)
+                            break;
+                    }
+
+                } catch (Exception e) {
+                    this.state = State.ERROR;
+                    e.printStackTrace();
+                    error("couldn't run match: " + e.getMessage());
+                }
+            }
+        } finally {
+            if (preparer != null)
+                preparer.shutdown();
+        }
+    }
+
+    /**
+     * Runs the queued matches on a fixed pool of match threads, each with its
+     * own engine. Every match is spooled to a temporary file while it runs and
+     * is written to the proxies once all the matches queued before it have
+     * been written, so the output is in queue order. The matches are
+     * independent, so this is only used in modes that don't play a best of
+     * three (see isWinMode), where a serial run doesn't carry archon memory
+     * between matches either.
+     *
+     * @param matchThreads the number of matches to run at once
+     */
+    private void runParallel(int matchThreads) {
+
+        List<Match> queued;
+        synchronized (matches) {
+            queued = new ArrayList<Match>(matches);
+            matches.clear();
+        }
+
+        debug("running " + queued.size() + " matches on " + matchThreads
+                + " threads");
+
+        ExecutorService executor = Executors.newFixedThreadPool(matchThreads);
+        List<Future<SpoolProxy>> results = new ArrayList<Future<SpoolProxy>>();
+        for (final Match match : queued) {
+            results.add(executor.submit(new Callable<SpoolProxy>() {
+                public SpoolProxy call() throws Exception {
+                    SpoolProxy spool = new SpoolProxy();
+                    spool.open();
+                    try {
+                        debug("running match " + match);
+                        match.initialize();
+                        runBatchMatch(match, Collections.<Proxy>singletonList(spool));
+                        match.finish();
+                    } finally {
+                        spool.close();
+                        EngineContext.unbind();
+                    }
+                    return spool;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < queued.size(); i++) {
+            Match match = queued.get(i);
+            try {
+                results.get(i).get().replay(proxies);
+                finished.add(match);
+            } catch (ExecutionException e) {
+                this.state = State.ERROR;
+                e.getCause().printStackTrace();
+                warn("couldn't run match " + match.toString().trim() + ": "
+                        + e.getCause().getMessage());
+            } catch (Exception e) {
+                this.state = State.ERROR;
+                e.printStackTrace();
+                warn("couldn't write match " + match.toString().trim() + ": "
+                        + e.getMessage());
+            }
+        }
+
+        if (this.state != State.ERROR)
+            this.state = State.FINISHED;
+    }
+
+    /**
+     * Determines whether the server's mode plays its matches as a best of
+     * three, stopping once a team has won two and carrying archon memory
+     * from each match to the next.
+     */
+    //TODO:This "win mode" should probably be something from the database
+    private boolean isWinMode() {
+        return mode == Mode.TOURNAMENT || mode == Mode.SCRIMMAGE || mode == Mode.AUTOTEST || mode == Mode.MATCH;
+    }
+
+    /**
+     * Determines whether the server's mode runs matches without any user
+     * interaction.
+     */
+    private boolean isBatchMode() {
+        return Mode.HEADLESS.equals(mode) || Mode.SCRIMMAGE.equals(mode)
+                || Mode.TOURNAMENT.equals(mode) || Mode.TESTS.equals(mode)
+                || Mode.AUTOTEST.equals(mode) || Mode.MATCH.equals(mode);
+    }
+
     /**
      * Sets up a new series of matches. Blocks until the matches have been set
      * up.
@@ -286,9 +459,16 @@ public class Server implements Observer, Runnable {
         }
     }
 
-    private class IOCallback implements Runnable {
+    private static class IOCallback implements Runnable {
         public RoundDelta round;
         public RoundStats stats;
+        public TimingStats timings;
+
+        private final List<Proxy> proxies;
+
+        public IOCallback(List<Proxy> proxies) {
+            this.proxies = proxies;
+        }
 
         public void run() {
             if (round != null) {
@@ -296,12 +476,15 @@ public class Server implements Observer, Runnable {
                     for (Proxy p : proxies) {
                         p.writeRound(round);
                         p.writeStats(stats);
+                        if (timings != null)
+                            p.writeObject(timings);
                     }
                 } catch (IOException e) {
                     ErrorReporter.report(e, false);
                 }
                 round = null;
                 stats = null;
+                timings = null;
             }
         }
     }
@@ -312,9 +495,7 @@ public class Server implements Observer, Runnable {
      */
     private void runMatch(Match match) throws Exception {
 
-        if (Mode.HEADLESS.equals(mode) || Mode.SCRIMMAGE.equals(mode)
-                || Mode.TOURNAMENT.equals(mode) || Mode.TESTS.equals(mode)
-                || Mode.AUTOTEST.equals(mode) || Mode.MATCH.equals(mode)) {
+        if (isBatchMode()) {
             this.state = State.RUNNING;
             this.runUntil = Integer.MAX_VALUE;
         }
@@ -329,18 +510,9 @@ public class Server implements Observer, Runnable {
 
         long startTime = System.currentTimeMillis();
 
-        say("-------------------- Match Starting --------------------");
-        say(match.toString());
+        sendHeader(match, proxies);
 
-        // Compute the header and send it to all listeners.
-        MatchHeader header = match.getHeader();
-        ExtensibleMetadata exHeader = match.getHeaderMetadata();
-        for (Proxy p : proxies) {
-            p.writeHeader(header);
-            p.writeObject(exHeader);
-        }
-
-        IOCallback callback = new IOCallback();
+        IOCallback callback = new IOCallback(proxies);
         match.setIOCallback(callback);
 
         this.state = State.RUNNING;
@@ -351,6 +523,7 @@ public class Server implements Observer, Runnable {
         final int throttleCount = options.getInt("bc.server.throttle-count");
         final boolean doYield = "yield".equals(throttle);
         final boolean doSleep = "sleep".equals(throttle);
+        final boolean outputTimings = options.getBoolean("bc.server.output-timings");
 
         // If there are more rounds to be run, run them and
         // and send the round (and optionally stats) bytes to
@@ -381,6 +554,8 @@ public class Server implements Observer, Runnable {
 
                     // Compute stats bytes.
                     callback.stats = match.getStats();
+                    if (outputTimings)
+                        callback.timings = match.getRoundTimings();
 
                     break;
 
@@ -393,6 +568,69 @@ public class Server implements Observer, Runnable {
         // we need to write the last round ourselves
         callback.run();
 
+        sendFooter(match, proxies, startTime);
+
+        this.state = State.FINISHED;
+    }
+
+    /**
+     * Runs a match from start to finish without looking at the server's
+     * state, so that several matches can run at once.
+     *
+     * @param match   the match to run; it must already be initialized
+     * @param proxies the proxies to write the match to
+     */
+    private void runBatchMatch(Match match, List<Proxy> proxies)
+            throws Exception {
+
+        long startTime = System.currentTimeMillis();
+
+        sendHeader(match, proxies);
+
+        IOCallback callback = new IOCallback(proxies);
+        match.setIOCallback(callback);
+
+        boolean outputTimings = options.getBoolean("bc.server.output-timings");
+        while (match.hasMoreRounds()) {
+            callback.round = match.getRound();
+            if (callback.round == null)
+                break;
+            callback.stats = match.getStats();
+            if (outputTimings)
+                callback.timings = match.getRoundTimings();
+        }
+
+        // we need to write the last round ourselves
+        callback.run();
+
+        sendFooter(match, proxies, startTime);
+    }
+
+    /**
+     * Announces a match and sends its header to the given proxies.
+     */
+    private void sendHeader(Match match, List<Proxy> proxies)
+            throws IOException {
+
+        say("-------------------- Match Starting --------------------");
+        say(match.toString());
+
+        // Compute the header and send it to all listeners.
+        MatchHeader header = match.getHeader();
+        ExtensibleMetadata exHeader = match.getHeaderMetadata();
+        for (Proxy p : proxies) {
+            p.writeHeader(header);
+            p.writeObject(exHeader);
+        }
+    }
+
+    /**
+     * Announces the result of a finished match and sends its stats and
+     * footer to the given proxies.
+     */
+    private void sendFooter(Match match, List<Proxy> proxies, long startTime)
+            throws IOException {
+
         // Compute footer data.
         GameStats gameStats = match.getGameStats();
         MatchFooter footer = match.getFooter();
@@ -403,12 +641,31 @@ public class Server implements Observer, Runnable {
         double timeDiff = (System.currentTimeMillis() - startTime) / 1000.0;
         debug(String.format("match completed in %.4g seconds", timeDiff));
 
+        if (options.getBoolean("bc.engine.preinstrument") || options.getBoolean("bc.engine.timings"))
+            say(match.getStartupReport());
+
+        if (options.getBoolean("bc.engine.shared-classes") || options.getBoolean("bc.engine.timings"))
+            say(match.getClassLoadingReport());
+
+        String classCacheReport = match.getClassCacheReport();
+        if (classCacheReport != null)
+            say(classCacheReport);
+
+        String profilerReport = match.getProfilerReport();
+        if (profilerReport != null)
+            say(profilerReport);
+
+        TimingStats timings = match.getTimings();
+        if (timings != null)
+            say(timings.toString());
+        boolean outputTimings = timings != null && options.getBoolean("bc.server.output-timings");
+
         for (Proxy p : proxies) {
             p.writeObject(gameStats);
+            if (outputTimings)
+                p.writeObject(timings);
             p.writeFooter(footer);
         }
-
-        this.state = State.FINISHED;
     }
 
     public State getState() {
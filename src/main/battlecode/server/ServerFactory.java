@@ -25,7 +25,7 @@ public class ServerFactory {
         proxies.add(proxy);
 
         Server server = new Server(options, Server.Mode.LOCAL, controller,
-                proxies.toArray(new Proxy[0]));
+                wrapProxies(proxies));
 
         controller.addObserver(server);
 
@@ -38,8 +38,8 @@ public class ServerFactory {
         Controller controller = ControllerFactory
                 .createHeadlessController(options);
 
-        Proxy[] proxies = new Proxy[]{ProxyFactory
-                .createProxyFromFile(saveFile)};
+        Proxy[] proxies = new Proxy[]{ProxyFactory.wrapProxy(ProxyFactory
+                .createProxyFromFile(saveFile))};
 
         Server server = new Server(options, Server.Mode.HEADLESS, controller,
                 proxies);
@@ -86,7 +86,7 @@ public class ServerFactory {
         proxies.add(ProxyFactory.createProxy(clientSocket.getOutputStream()));
 
         Server server = new Server(options, Server.Mode.TCP, controller,
-                proxies.toArray(new Proxy[proxies.size()]));
+                wrapProxies(proxies));
         controller.addObserver(server);
         return server;
     }
@@ -109,9 +109,19 @@ public class ServerFactory {
         System.setOut(System.err);
 
         Server server = new Server(options, Server.Mode.TCP, controller,
-                proxies.toArray(new Proxy[proxies.size()]));
+                wrapProxies(proxies));
         controller.addObserver(server);
         return server;
     }
 
+    /**
+     * Wraps each proxy with ProxyFactory.wrapProxy.
+     */
+    private static Proxy[] wrapProxies(List<Proxy> proxies) {
+        Proxy[] result = new Proxy[proxies.size()];
+        int i = 0;
+        for (Proxy p : proxies)
+            result[i++] = ProxyFactory.wrapProxy(p);
+        return result;
+    }
 }
@@ -0,0 +1,415 @@
+package battlecode.server.proxy;
+
+import battlecode.serial.MatchFooter;
+import battlecode.serial.MatchHeader;
+import battlecode.serial.RoundDelta;
+import battlecode.serial.RoundStats;
+import battlecode.server.Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class wraps another proxy and does the actual writing on a separate
+ * thread, so that a slow recipient (a TCP client that isn't reading, a gzip
+ * flush) doesn't hold up the match. Objects are queued in a bounded ring
+ * buffer and written in the order they were queued.
+ * <p/>
+ * What happens when the buffer is full depends on the backpressure policy:
+ * <ul>
+ * <li>BLOCK: the caller waits until there is room</li>
+ * <li>DROP_STATS: RoundStats are thrown away; everything else waits</li>
+ * <li>COALESCE: RoundStats replace the RoundStats at the end of the buffer
+ * if nothing was queued after it (stats are running totals, so only the
+ * newest matters), or are held back until there is room; everything else
+ * waits</li>
+ * </ul>
+ * The MatchHeader refers to the game map, which the engine keeps changing
+ * once the match starts, so writeHeader waits until the header has been
+ * written.
+ * <p/>
+ * If the wrapped proxy throws an exception, it is thrown again from the next
+ * write or from close.
+ */
+public class AsyncProxy extends Proxy {
+
+    public enum Backpressure {
+        BLOCK, DROP_STATS, COALESCE
+    }
+
+    private final Proxy proxy;
+
+    private final Backpressure backpressure;
+
+    private final Object[] buffer;
+    private int head, size;
+
+    // the RoundStats held back in COALESCE mode because the buffer was full
+    private RoundStats heldStats;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition wroteOne = lock.newCondition();
+
+    private boolean closed;
+    private IOException error;
+    private Thread writer;
+
+    // metrics, guarded by lock
+    private int maxDepth;
+    private long queued, written, dropped, coalesced;
+    private long writeNanos, maxWriteNanos;
+    private long blockedNanos;
+
+    /**
+     * Creates an AsyncProxy that writes to the given proxy.
+     *
+     * @param proxy        the proxy to write to
+     * @param capacity     the number of objects that can be waiting to be
+     *                     written
+     * @param backpressure what to do when the buffer is full
+     */
+    public AsyncProxy(Proxy proxy, int capacity, Backpressure backpressure) {
+        super();
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.proxy = proxy;
+        this.buffer = new Object[capacity];
+        this.backpressure = backpressure;
+    }
+
+    protected OutputStream getOutputStream() throws IOException {
+        return null;
+    }
+
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    private String proxyName() {
+        Class<?> cl = proxy.getClass();
+        while (cl.getSimpleName().length() == 0)
+            cl = cl.getSuperclass();
+        return cl.getSimpleName();
+    }
+
+    public void open() throws IOException {
+        proxy.open();
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "async-proxy-" + proxyName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void writeObject(Object o) throws IOException {
+        enqueue(o);
+    }
+
+    public void writeHeader(MatchHeader header) throws IOException {
+        long target = enqueue(header);
+        lock.lock();
+        try {
+            while (written < target && error == null)
+                wroteOne.awaitUninterruptibly();
+            checkError();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void writeRound(RoundDelta round) throws IOException {
+        enqueue(round);
+    }
+
+    public void writeFooter(MatchFooter footer) throws IOException {
+        enqueue(footer);
+    }
+
+    public void writeStats(RoundStats stats) throws IOException {
+        enqueue(stats);
+    }
+
+    /**
+     * Returns the number of objects queued so far, including this one.
+     */
+    private long enqueue(Object o) throws IOException {
+        lock.lock();
+        try {
+            checkError();
+            if (closed)
+                throw new IOException("proxy is closed");
+            if (size == buffer.length) {
+                if (o instanceof RoundStats && backpressure == Backpressure.DROP_STATS) {
+                    dropped++;
+                    return queued;
+                }
+                if (o instanceof RoundStats && backpressure == Backpressure.COALESCE) {
+                    if (heldStats != null) {
+                        heldStats = (RoundStats) o;
+                        coalesced++;
+                    } else if (replaceLastStats(o))
+                        coalesced++;
+                    else
+                        heldStats = (RoundStats) o;
+                    return queued;
+                }
+                long start = System.nanoTime();
+                while (size == buffer.length && error == null) {
+                    try {
+                        notFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while writing match data");
+                    }
+                }
+                blockedNanos += System.nanoTime() - start;
+                checkError();
+            }
+            append(o);
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(Object o) {
+        buffer[(head + size) % buffer.length] = o;
+        size++;
+        queued++;
+        if (size > maxDepth)
+            maxDepth = size;
+        notEmpty.signal();
+    }
+
+    /**
+     * Replaces the last object in the buffer with stats if it is a
+     * RoundStats.  Stats further back can't be replaced: they belong to an
+     * earlier round than the RoundDeltas queued after them.
+     */
+    private boolean replaceLastStats(Object stats) {
+        int index = (head + size - 1) % buffer.length;
+        if (buffer[index] instanceof RoundStats) {
+            buffer[index] = stats;
+            return true;
+        }
+        return false;
+    }
+
+    private void checkError() throws IOException {
+        if (error != null)
+            throw error;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Object o;
+            lock.lock();
+            try {
+                while (size == 0 && !closed)
+                    notEmpty.awaitUninterruptibly();
+                if (size == 0)
+                    return;
+                o = buffer[head];
+                buffer[head] = null;
+            } finally {
+                lock.unlock();
+            }
+
+            // The object stays in size until it has been written, so that
+            // getQueueDepth includes the one in flight.
+            long start = System.nanoTime();
+            IOException failure = null;
+            try {
+                if (o instanceof RoundDelta)
+                    proxy.writeRound((RoundDelta) o);
+                else if (o instanceof RoundStats)
+                    proxy.writeStats((RoundStats) o);
+                else if (o instanceof MatchHeader)
+                    proxy.writeHeader((MatchHeader) o);
+                else if (o instanceof MatchFooter)
+                    proxy.writeFooter((MatchFooter) o);
+                else
+                    proxy.writeObject(o);
+            } catch (IOException e) {
+                failure = e;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            lock.lock();
+            try {
+                head = (head + 1) % buffer.length;
+                size--;
+                written++;
+                writeNanos += elapsed;
+                if (elapsed > maxWriteNanos)
+                    maxWriteNanos = elapsed;
+                if (failure != null) {
+                    error = failure;
+                    // nothing more can be written; release anyone waiting
+                    for (int i = 0; i < size; i++)
+                        buffer[(head + i) % buffer.length] = null;
+                    head = size = 0;
+                    heldStats = null;
+                    notFull.signalAll();
+                    wroteOne.signalAll();
+                    return;
+                }
+                if (heldStats != null) {
+                    append(heldStats);
+                    heldStats = null;
+                } else
+                    notFull.signal();
+                wroteOne.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for everything queued to be written, then closes the wrapped
+     * proxy.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null) {
+            boolean interrupted = false;
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        Server.say(toString());
+        try {
+            lock.lock();
+            try {
+                checkError();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            proxy.close();
+        }
+    }
+
+    /**
+     * Returns the number of objects waiting to be written, including the one
+     * being written.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest number of objects that have been waiting to be
+     * written at once.
+     */
+    public int getMaxQueueDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of RoundStats thrown away because the buffer was
+     * full.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of RoundStats that replaced an older one still in
+     * the buffer.
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the average time the wrapped proxy took to write an object, in
+     * milliseconds.
+     */
+    public double getAverageWriteMillis() {
+        lock.lock();
+        try {
+            return written == 0 ? 0 : writeNanos / 1e6 / written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the longest time the wrapped proxy took to write an object, in
+     * milliseconds.
+     */
+    public double getMaxWriteMillis() {
+        lock.lock();
+        try {
+            return maxWriteNanos / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total time callers spent waiting for room in the buffer,
+     * in milliseconds.
+     */
+    public double getBlockedMillis() {
+        lock.lock();
+        try {
+            return blockedNanos / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("%s: %d queued, %d written, %d dropped, %d coalesced, "
+                    + "max depth %d/%d, write avg %.3f ms max %.3f ms, blocked %.1f ms",
+                    proxyName(), queued, written, dropped, coalesced,
+                    maxDepth, buffer.length, written == 0 ? 0 : writeNanos / 1e6 / written,
+                    maxWriteNanos / 1e6, blockedNanos / 1e6);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
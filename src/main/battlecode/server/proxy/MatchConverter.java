@@ -0,0 +1,113 @@
+package battlecode.server.proxy;
+
+import battlecode.serial.BinaryMatchInputStream;
+import battlecode.serial.BinaryMatchOutputStream;
+import battlecode.serial.RoundDelta;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts a gzipped match file in any of the formats the server can write
+ * (Java serialization, XStream XML or the binary format) to the binary
+ * format, and reports how large and how fast the result was.  With -x the
+ * output is written as XStream XML instead, which converts a binary match
+ * back into something the client can read.
+ */
+public class MatchConverter {
+
+    static private final int EX_USAGE = 64;
+    static private final int EX_DATAERR = 65;
+    static private final int EX_IOERR = 74;
+
+    public static void usage() {
+        System.err.println("Usage: MatchConverter [-x] input.rms output.rms");
+        System.exit(EX_USAGE);
+    }
+
+    /**
+     * Opens a gzipped match file, detecting which format it was written in.
+     */
+    public static ObjectInputStream openMatch(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file)));
+        if (BinaryMatchInputStream.isBinaryMatch(stream))
+            return new BinaryMatchInputStream(stream);
+        stream.mark(2);
+        int first = stream.read(), second = stream.read();
+        stream.reset();
+        if (first == 0xAC && second == 0xED)
+            return new ObjectInputStream(stream);
+        return XStreamProxy.getXStream().createObjectInputStream(stream);
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("x", "xml", false, "write XStream XML instead of the binary format");
+        CommandLine cl = null;
+        try {
+            cl = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            usage();
+            return;
+        }
+        if (cl.getArgs().length != 2) {
+            usage();
+            return;
+        }
+        File inFile = new File(cl.getArgs()[0]);
+        File outFile = new File(cl.getArgs()[1]);
+        try {
+            ObjectInputStream input = openMatch(inFile);
+            OutputStream stream = new GZIPOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(outFile)));
+            ObjectOutputStream output;
+            if (cl.hasOption('x'))
+                output = XStreamProxy.getXStream().createObjectOutputStream(stream);
+            else
+                output = new BinaryMatchOutputStream(stream);
+            int rounds = 0;
+            long writeTime = 0;
+            try {
+                while (true) {
+                    Object o;
+                    try {
+                        o = input.readObject();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (o instanceof RoundDelta)
+                        rounds++;
+                    long start = System.nanoTime();
+                    output.writeObject(o);
+                    writeTime += System.nanoTime() - start;
+                }
+                long start = System.nanoTime();
+                output.flush();
+                output.close();
+                writeTime += System.nanoTime() - start;
+            } finally {
+                input.close();
+            }
+            long inBytes = inFile.length(), outBytes = outFile.length();
+            System.out.println(String.format("%d rounds, %d -> %d bytes (%.1f%%), %.1f bytes/round, %.1f rounds/s written",
+                    rounds, inBytes, outBytes, 100. * outBytes / Math.max(inBytes, 1),
+                    (double) outBytes / Math.max(rounds, 1), rounds / (writeTime / 1e9)));
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            System.exit(EX_DATAERR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (e instanceof StreamCorruptedException ||
+                    "Not in GZIP format".equals(e.getMessage()))
+                System.exit(EX_DATAERR);
+            else
+                System.exit(EX_IOERR);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package battlecode.server.proxy;
 
+import battlecode.serial.BinaryMatchOutputStream;
 import battlecode.server.Config;
 
 import java.io.IOException;
@@ -14,7 +15,13 @@ public class ProxyFactory {
 
     public static Proxy createProxy(final OutputStream stream)
             throws IOException {
-        if (Boolean.parseBoolean(Config.getGlobalConfig().get("bc.server.output-xml")))
+        if (Boolean.parseBoolean(Config.getGlobalConfig().get("bc.server.output-binary")))
+            return new Proxy() {
+                protected OutputStream getOutputStream() throws IOException {
+                    return new BinaryMatchOutputStream(stream);
+                }
+            };
+        else if (Boolean.parseBoolean(Config.getGlobalConfig().get("bc.server.output-xml")))
             return new XStreamProxy(stream);
         else
             return new Proxy() {
@@ -32,7 +39,9 @@ public class ProxyFactory {
      * @throws IOException if the Proxy could not be created
      */
     public static Proxy createProxyFromFile(String fileName) throws IOException {
-        if (Boolean.parseBoolean(Config.getGlobalConfig().get("bc.server.output-xml")))
+        if (Boolean.parseBoolean(Config.getGlobalConfig().get("bc.server.output-binary")))
+            return createBinaryProxyFromFile(fileName);
+        else if (Boolean.parseBoolean(Config.getGlobalConfig().get("bc.server.output-xml")))
             return createXStreamProxyFromFile(fileName);
         else
             return new FileProxy(fileName);
@@ -60,4 +69,39 @@ public class ProxyFactory {
 
         };
     }
+
+    /**
+     * This method creates a Proxy for writing match data in the compact
+     * binary format read by BinaryMatchInputStream.
+     *
+     * @param fileName the name of the file to use for saving match data
+     * @return a new Proxy for writing match data to binary file
+     * @throws IOException if the Proxy could not be created
+     */
+    public static Proxy createBinaryProxyFromFile(String fileName)
+            throws IOException {
+        return new FileProxy(fileName) {
+
+            public OutputStream getOutputStream() throws IOException {
+                return new BinaryMatchOutputStream(stream);
+            }
+
+        };
+    }
+
+    /**
+     * Wraps the given proxy in an AsyncProxy if bc.server.async-proxies is
+     * set, so that it is written to on its own thread.
+     *
+     * @param proxy the proxy to wrap
+     * @return the wrapped proxy, or proxy itself if async proxies are off
+     */
+    public static Proxy wrapProxy(Proxy proxy) {
+        Config options = Config.getGlobalConfig();
+        if (!options.getBoolean("bc.server.async-proxies"))
+            return proxy;
+        AsyncProxy.Backpressure backpressure = AsyncProxy.Backpressure.valueOf(
+                options.get("bc.server.async-backpressure").toUpperCase().replace('-', '_'));
+        return new AsyncProxy(proxy, options.getInt("bc.server.async-queue-size"), backpressure);
+    }
 }
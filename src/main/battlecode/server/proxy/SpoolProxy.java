@@ -0,0 +1,74 @@
+package battlecode.server.proxy;
+
+import battlecode.serial.MatchFooter;
+import battlecode.serial.MatchHeader;
+import battlecode.serial.RoundDelta;
+import battlecode.serial.RoundStats;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * This class spools match data to a temporary file so that it can be replayed
+ * into other proxies later. It lets the server run several matches at once
+ * while still writing each match to the real proxies in one piece.
+ */
+public class SpoolProxy extends Proxy {
+
+    /**
+     * The temporary file holding the spooled objects.
+     */
+    private final File file;
+
+    public SpoolProxy() throws IOException {
+        super();
+        file = File.createTempFile("battlecode", ".spool", new File(System
+                .getProperty("java.io.tmpdir")));
+        file.deleteOnExit();
+    }
+
+    protected OutputStream getOutputStream() throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    /**
+     * Writes everything that was spooled to the given proxies, in the order
+     * it was written, and then deletes the spool file. The spool must have
+     * been closed first.
+     *
+     * @param proxies the proxies to write the match to
+     * @throws IOException if the spool could not be read or a proxy could not
+     *                     be written to
+     */
+    public void replay(List<Proxy> proxies) throws IOException {
+        ObjectInputStream input = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                Object o;
+                try {
+                    o = input.readObject();
+                } catch (EOFException e) {
+                    break;
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("corrupt match spool", e);
+                }
+                for (Proxy p : proxies) {
+                    if (o instanceof RoundDelta)
+                        p.writeRound((RoundDelta) o);
+                    else if (o instanceof RoundStats)
+                        p.writeStats((RoundStats) o);
+                    else if (o instanceof MatchHeader)
+                        p.writeHeader((MatchHeader) o);
+                    else if (o instanceof MatchFooter)
+                        p.writeFooter((MatchFooter) o);
+                    else
+                        p.writeObject(o);
+                }
+            }
+        } finally {
+            input.close();
+            file.delete();
+        }
+    }
+}
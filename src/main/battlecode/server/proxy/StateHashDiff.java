@@ -0,0 +1,102 @@
+package battlecode.server.proxy;
+
+import battlecode.engine.signal.Signal;
+import battlecode.serial.RoundDelta;
+import battlecode.world.signal.StateHashSignal;
+
+import java.io.*;
+
+/**
+ * Compares the state hashes of two runs of a match, which were both saved
+ * with bc.engine.state-hash set, and reports the first round in which the
+ * worlds were different and what was different about them.  Exits with 0
+ * if the runs were the same and 1 if they weren't.
+ */
+public class StateHashDiff {
+
+    static private final int EX_DIFFERENT = 1;
+    static private final int EX_USAGE = 64;
+    static private final int EX_DATAERR = 65;
+    static private final int EX_IOERR = 74;
+
+    public static void usage() {
+        System.err.println("Usage: StateHashDiff a.rms b.rms");
+        System.exit(EX_USAGE);
+    }
+
+    /**
+     * Returns the state hashes of the next round in the match, or null if
+     * there are no more rounds.  A round with no hashes has an empty array.
+     */
+    private static long[] nextRound(ObjectInputStream match) throws IOException, ClassNotFoundException {
+        while (true) {
+            Object o;
+            try {
+                o = match.readObject();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (!(o instanceof RoundDelta))
+                continue;
+            for (Signal s : ((RoundDelta) o).getSignals()) {
+                if (s instanceof StateHashSignal)
+                    return ((StateHashSignal) s).getHashes();
+            }
+            return new long[0];
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            usage();
+            return;
+        }
+        File fileA = new File(args[0]), fileB = new File(args[1]);
+        try {
+            ObjectInputStream a = MatchConverter.openMatch(fileA);
+            ObjectInputStream b = MatchConverter.openMatch(fileB);
+            try {
+                for (int round = 0; ; round++) {
+                    long[] hashesA = nextRound(a), hashesB = nextRound(b);
+                    if (hashesA == null || hashesB == null) {
+                        if (hashesA != hashesB) {
+                            File shorter = hashesA == null ? fileA : fileB;
+                            System.out.println(String.format("%s ends after %d rounds, but the other match goes on",
+                                    shorter, round));
+                            System.exit(EX_DIFFERENT);
+                        }
+                        System.out.println(String.format("%d rounds, no differences", round));
+                        return;
+                    }
+                    if (hashesA.length == 0 || hashesB.length == 0) {
+                        System.err.println(String.format("%s has no state hash for round %d; was it run with bc.engine.state-hash=true?",
+                                hashesA.length == 0 ? fileA : fileB, round));
+                        System.exit(EX_DATAERR);
+                    }
+                    StringBuilder different = new StringBuilder();
+                    for (int i = 0; i < StateHashSignal.FIELDS.length; i++) {
+                        if (hashesA[i] != hashesB[i])
+                            different.append(different.length() == 0 ? "" : ", ").append(StateHashSignal.FIELDS[i]);
+                    }
+                    if (different.length() > 0) {
+                        System.out.println(String.format("first difference in round %d: %s", round, different));
+                        System.exit(EX_DIFFERENT);
+                    }
+                }
+            } finally {
+                a.close();
+                b.close();
+            }
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            System.exit(EX_DATAERR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (e instanceof StreamCorruptedException ||
+                    "Not in GZIP format".equals(e.getMessage()))
+                System.exit(EX_DATAERR);
+            else
+                System.exit(EX_IOERR);
+        }
+    }
+}
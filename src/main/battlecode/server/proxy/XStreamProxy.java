@@ -252,7 +252,7 @@ public class XStreamProxy extends Proxy {
 
     }
 
-    static protected void initXStream() {
+    static protected synchronized void initXStream() {
         if (xstream != null) return;
         xstream = new XStream() {
             public void reset() {
@@ -4,7 +4,11 @@ import battlecode.common.GameObject;
 import battlecode.common.Team;
 import battlecode.engine.GenericWorld;
 
-public abstract class BaseObject implements GameObject {
+import java.io.Serializable;
+
+public abstract class BaseObject implements GameObject, Serializable {
+
+    private static final long serialVersionUID = -5286427071370829962L;
 
     private final int myID;
     private Team myTeam;
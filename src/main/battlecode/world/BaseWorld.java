@@ -4,9 +4,12 @@ import battlecode.common.Team;
 import battlecode.engine.GenericRobot;
 import battlecode.engine.signal.Signal;
 
+import java.io.Serializable;
 import java.util.*;
 
-public class BaseWorld<WorldObject extends BaseObject> {
+public class BaseWorld<WorldObject extends BaseObject> implements Serializable {
+
+    private static final long serialVersionUID = 4417602911361468232L;
 
     protected int currentRound;  // do we need this here?? -- yes
     protected boolean running = true;  // do we need this here?? -- yes
@@ -7,6 +7,7 @@ import battlecode.common.RobotType;
 import battlecode.common.TerrainTile;
 import battlecode.serial.GenericGameMap;
 
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.Map;
@@ -204,10 +205,24 @@ public class GameMap implements GenericGameMap {
      *         off the map.
      */
     public TerrainTile getTerrainTile(MapLocation location) {
-        if (!onTheMap(location))
+        return getTerrainTile(location.x, location.y);
+    }
+
+    /**
+     * Determines the type of the terrain on the map at the
+     * given coordinates.
+     *
+     * @param x the x-coordinate of the location
+     * @param y the y-coordinate of the location
+     * @return the TerrainTile at the given location
+     *         of the map, and TerrainTile.OFF_MAP if the given location is
+     *         off the map.
+     */
+    public TerrainTile getTerrainTile(int x, int y) {
+        if (!onTheMap(x, y))
             return TerrainTile.OFF_MAP;
 
-        return mapTiles[location.x - mapOriginX][location.y - mapOriginY];
+        return mapTiles[x - mapOriginX][y - mapOriginY];
     }
 
     /**
@@ -252,7 +267,9 @@ public class GameMap implements GenericGameMap {
         return new MapLocation(mapOriginX, mapOriginY);
     }
 
-    public static class MapMemory {
+    public static class MapMemory implements Serializable {
+
+        private static final long serialVersionUID = 3373805296442216740L;
 
         // should be ge the max of all robot sensor ranges
         private final static int BUFFER;
@@ -1,5 +1,7 @@
 package battlecode.world;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumMap;
@@ -22,16 +24,20 @@ import battlecode.common.RobotType;
 import battlecode.common.Team;
 import battlecode.common.TerrainTile;
 import battlecode.common.Upgrade;
+import battlecode.engine.EngineContext;
 import battlecode.engine.ErrorReporter;
 import battlecode.engine.GenericWorld;
 import battlecode.engine.instrumenter.RobotDeathException;
 import battlecode.engine.instrumenter.RobotMonitor;
 import battlecode.engine.signal.AutoSignalHandler;
+import battlecode.engine.signal.GeneratedSignalHandler;
 import battlecode.engine.signal.Signal;
 import battlecode.engine.signal.SignalHandler;
 import battlecode.serial.DominationFactor;
 import battlecode.serial.GameStats;
 import battlecode.serial.RoundStats;
+import battlecode.serial.TimingStats;
+import battlecode.server.Config;
 import battlecode.world.signal.AttackSignal;
 import battlecode.world.signal.BroadcastSignal;
 import battlecode.world.signal.BytecodesUsedSignal;
@@ -47,9 +53,12 @@ import battlecode.world.signal.MineSignal;
 import battlecode.world.signal.MinelayerSignal;
 import battlecode.world.signal.MovementOverrideSignal;
 import battlecode.world.signal.MovementSignal;
+import battlecode.world.signal.NeutralsDensityDeltaSignal;
 import battlecode.world.signal.NeutralsDensitySignal;
+import battlecode.world.signal.NeutralsTeamDeltaSignal;
 import battlecode.world.signal.NeutralsTeamSignal;
 import battlecode.world.signal.NodeBirthSignal;
+import battlecode.world.signal.PastrScoreSignal;
 import battlecode.world.signal.RegenSignal;
 import battlecode.world.signal.ResearchSignal;
 import battlecode.world.signal.ResearchChangeSignal;
@@ -59,6 +68,8 @@ import battlecode.world.signal.SetDirectionSignal;
 import battlecode.world.signal.ShieldChangeSignal;
 import battlecode.world.signal.ShieldSignal;
 import battlecode.world.signal.SpawnSignal;
+import battlecode.world.signal.StateHash;
+import battlecode.world.signal.StateHashSignal;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
@@ -74,16 +85,38 @@ oODO:
  */
 public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld {
 
+    private static final long serialVersionUID = -4152398813437593004L;
+
     private final GameMap gameMap;
     private RoundStats roundStats = null;    // stats for each round; new object is created for each round
     private final GameStats gameStats = new GameStats();        // end-of-game stats
     private double[] teamRoundResources = new double[2];
     private double[] lastRoundResources = new double[2];
     private int[] teamKills = new int[2];
-    private final Map<MapLocation3D, InternalObject> gameObjectsByLoc = new HashMap<MapLocation3D, InternalObject>();
+    /**
+     * The object at each square of the map, one grid per RobotLevel, with
+     * square (x, y) at index (x - originX) + (y - originY) * width.
+     */
+    private final InternalObject[][] gameObjectsByLoc;
+    private final int mapOriginX, mapOriginY, mapWidth, mapHeight;
+    private final SpatialIndex spatialIndex;
     private double[] teamResources = new double[2];
     private double[] teamSpawnRate = new double[2];
+    // live counts of the robots in the game, kept up to date as robots are
+    // added and removed; robotCounts is weighted by RobotType.count
+    private final int[][] robotTypeCounts = new int[Team.values().length][RobotType.values().length];
+    private final int[] unitCounts = new int[Team.values().length];
+    private final int[] robotCounts = new int[Team.values().length];
+
+    // whether the neutrals grids are sent as keyframes and deltas rather
+    // than in full every round, and the grids sent last round
+    private final boolean neutralsDelta;
+    private final int neutralsKeyframeRounds;
+    private int[][] lastNeutralsAmounts, lastNeutralsTeams;
     private int[] teamCapturingNumber = new int[2];
+    // the rolling hashes of the world state, one for each of
+    // StateHashSignal.FIELDS, or null if bc.engine.state-hash is not set
+    private final long[] stateHashes;
 
     private List<MapLocation> encampments = new ArrayList<MapLocation>();
     private Map<MapLocation, Team> encampmentMap = new HashMap<MapLocation, Team>();
@@ -94,7 +127,8 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     private Map<Team, Map<Upgrade, Integer>> research = new EnumMap<Team, Map<Upgrade, Integer>>(Team.class);
     
     private Map<Team, Set<Upgrade>> upgrades = new EnumMap<Team, Set<Upgrade>>(Team.class);
-    private Map<Team, Map<Integer, Integer>> radio = new EnumMap<Team, Map<Integer, Integer>>(Team.class);
+    // each team's channels, indexed by channel number; unwritten channels hold 0
+    private Map<Team, int[]> radio = new EnumMap<Team, int[]>(Team.class);
 
     // robots to remove from the game at end of turn
     private List<InternalRobot> deadRobots = new ArrayList<InternalRobot>();
@@ -105,6 +139,13 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     public GameWorld(GameMap gm, String teamA, String teamB, long[][] oldArchonMemory) {
         super(gm.getSeed(), teamA, teamB, oldArchonMemory);
         gameMap = gm;
+        spatialIndex = new SpatialIndex(gm.getMapOrigin(), gm.getWidth(), gm.getHeight());
+        MapLocation origin = gm.getMapOrigin();
+        mapOriginX = origin.x;
+        mapOriginY = origin.y;
+        mapWidth = gm.getWidth();
+        mapHeight = gm.getHeight();
+        gameObjectsByLoc = new InternalObject[RobotLevel.values().length][mapWidth * mapHeight];
         mapMemory.put(Team.A, new GameMap.MapMemory(gameMap));
         mapMemory.put(Team.B, new GameMap.MapMemory(gameMap));
         mapMemory.put(Team.NEUTRAL, new GameMap.MapMemory(gameMap));
@@ -114,8 +155,12 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         knownMineLocations.put(Team.B, new HashSet<MapLocation>());
         research.put(Team.A, new EnumMap<Upgrade, Integer>(Upgrade.class));
         research.put(Team.B, new EnumMap<Upgrade, Integer>(Upgrade.class));
-        radio.put(Team.A, new HashMap<Integer, Integer>());
-        radio.put(Team.B, new HashMap<Integer, Integer>());
+        radio.put(Team.A, new int[GameConstants.BROADCAST_MAX_CHANNELS + 1]);
+        radio.put(Team.B, new int[GameConstants.BROADCAST_MAX_CHANNELS + 1]);
+        Config options = Config.getGlobalConfig();
+        neutralsDelta = "delta".equalsIgnoreCase(options.get("bc.engine.neutrals-encoding"));
+        neutralsKeyframeRounds = Math.max(1, options.getInt("bc.engine.neutrals-keyframe-rounds"));
+        stateHashes = options.getBoolean("bc.engine.state-hash") ? new long[StateHashSignal.FIELDS.length] : null;
     }
     
     public GameMap.MapMemory getMapMemory(Team t) {
@@ -152,6 +197,12 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
             gameObjects[i].processBeginningOfRound();
         }
 
+        // a team with no robots at all keeps the default spawn rate
+        for (Team t : new Team[]{Team.A, Team.B}) {
+            if (unitCounts[t.ordinal()] > 0)
+                adjustSpawnRate(t);
+        }
+
     }
 
     public double getEnergonDifference() {
@@ -181,6 +232,30 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     	return teamCapturingNumber[team.ordinal()];
     }
 
+    /**
+     * Adds the cow density and ownership grids for this round.  In delta
+     * mode only the cells that changed since last round are sent, except
+     * every neutralsKeyframeRounds rounds.
+     */
+    private void addNeutralsSignals(InternalObject[] gameObjects) {
+        NeutralsDensitySignal density = new NeutralsDensitySignal(gameMap.getNeutralsMap());
+        NeutralsTeamSignal teams = new NeutralsTeamSignal(gameObjects, gameMap.getWidth(), gameMap.getHeight());
+        if (!neutralsDelta) {
+            addSignal(density);
+            addSignal(teams);
+            return;
+        }
+        if (lastNeutralsAmounts == null || currentRound % neutralsKeyframeRounds == 0) {
+            addSignal(density);
+            addSignal(teams);
+        } else {
+            addSignal(new NeutralsDensityDeltaSignal(lastNeutralsAmounts, density.getAmounts()));
+            addSignal(new NeutralsTeamDeltaSignal(lastNeutralsTeams, teams.getTeams()));
+        }
+        lastNeutralsAmounts = density.getAmounts();
+        lastNeutralsTeams = teams.getTeams();
+    }
+
     public void processEndOfRound() {
         // process all gameobjects
         InternalObject[] gameObjects = new InternalObject[gameObjectsByID.size()];
@@ -193,12 +268,18 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         updateRevealedRobots();
 
         // update neutrals
+        TimingStats timings = EngineContext.current().getRoundTimings();
+        long neutralsStart = System.nanoTime();
         gameMap.getNeutralsMap().next(gameObjects);
+        NeutralsMap.Score milk = gameMap.getNeutralsMap().score(gameObjects);
+        if (timings != null)
+            timings.addPhase(TimingStats.Phase.NEUTRALS, System.nanoTime() - neutralsStart);
         
         addSignal(new FluxChangeSignal(teamResources));
 		addSignal(new ResearchChangeSignal(research));
-        addSignal(new NeutralsDensitySignal(gameMap.getNeutralsMap()));
-        addSignal(new NeutralsTeamSignal(gameObjects, gameMap.getWidth(), gameMap.getHeight()));
+        addNeutralsSignals(gameObjects);
+        if (milk.getPastrCount() > 0)
+            addSignal(new PastrScoreSignal(milk.copyOfPastrIDs(), milk.copyOfPastrMilk()));
 
         if (timeLimitReached() && winner == null) {
             // main tie breaker = milk
@@ -208,7 +289,7 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
             {
                 // first tie breaker - total # of cows in pastrs
                 // second tie breaker - total # of enemy robots killed 
-                double cowsDiff = gameMap.getNeutralsMap().getScoreChange(Team.A, gameObjects) - gameMap.getNeutralsMap().getScoreChange(Team.B, gameObjects);
+                double cowsDiff = milk.getScoreChange(Team.A) - milk.getScoreChange(Team.B);
                 double killDiff = teamKills[Team.A.ordinal()] - teamKills[Team.B.ordinal()];
                 
                 if (!(setWinnerIfNonzero(cowsDiff, DominationFactor.BARELY_BEAT) ||
@@ -236,8 +317,8 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         roundStats = new RoundStats(teamResources[0] * 100, teamResources[1] * 100, teamRoundResources[0] * 100, teamRoundResources[1] * 100);
         
         // MILK
-        teamResources[Team.A.ordinal()] += gameMap.getNeutralsMap().getScoreChange(Team.A, gameObjects);
-        teamResources[Team.B.ordinal()] += gameMap.getNeutralsMap().getScoreChange(Team.B, gameObjects);
+        teamResources[Team.A.ordinal()] += milk.getScoreChange(Team.A);
+        teamResources[Team.B.ordinal()] += milk.getScoreChange(Team.B);
         if (teamResources[Team.A.ordinal()] >= GameConstants.WIN_QTY || teamResources[Team.B.ordinal()] >= GameConstants.WIN_QTY) {
             setWinnerIfNonzero(teamResources[Team.A.ordinal()] - teamResources[Team.B.ordinal()], DominationFactor.OWNED);
         }
@@ -246,6 +327,35 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         teamRoundResources = new double[2];
 
         gameMap.getNeutralsMap().resetAfterTurn();
+
+        if (stateHashes != null) {
+            hashState(gameObjects);
+            addSignal(new StateHashSignal(stateHashes.clone()));
+        }
+    }
+
+    /**
+     * Folds this round's state into stateHashes.  Called every round when
+     * bc.engine.state-hash is set, so it doesn't allocate anything.
+     */
+    private void hashState(InternalObject[] gameObjects) {
+        long robots = stateHashes[0], energon = stateHashes[1], delay = stateHashes[2];
+        for (InternalObject obj : gameObjects) {
+            InternalRobot r = (InternalRobot) obj;
+            MapLocation loc = r.getLocation();
+            robots = StateHash.mix(StateHash.mix(StateHash.mix(robots, r.getID()), loc.x), loc.y);
+            energon = StateHash.mix(energon, Double.doubleToLongBits(r.getEnergonLevel()));
+            delay = StateHash.mix(delay, Double.doubleToLongBits(r.getActionDelay()));
+        }
+        stateHashes[0] = robots;
+        stateHashes[1] = energon;
+        stateHashes[2] = delay;
+        stateHashes[3] = gameMap.getNeutralsMap().hash(stateHashes[3]);
+        long resources = stateHashes[4];
+        for (double r : teamResources) {
+            resources = StateHash.mix(resources, Double.doubleToLongBits(r));
+        }
+        stateHashes[4] = resources;
     }
 
     public boolean setWinnerIfNonzero(double n, DominationFactor d) {
@@ -256,15 +366,27 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         return n != 0;
     }
 
+    /**
+     * Returns the number of robots that team t has, weighted by RobotType.count.
+     */
     public int countRobots(Team t) {
-        int total = 0;
-        for (InternalObject obj : allObjects()) {
-            InternalRobot ir = (InternalRobot) obj;
-            if (obj.getTeam() == t) {
-                total += ir.type.count;
-            }
-        }
-        return total;
+        return robotCounts[t.ordinal()];
+    }
+
+    public int countRobots(Team t, RobotType type) {
+        return robotTypeCounts[t.ordinal()][type.ordinal()];
+    }
+
+    // called by the InternalRobot constructor, since InternalObject's
+    // constructor adds the robot before its type is set
+    void updateRobotCounts(InternalObject o, int delta) {
+        if (!(o instanceof InternalRobot))
+            return;
+        InternalRobot ir = (InternalRobot) o;
+        int t = ir.getTeam().ordinal();
+        robotTypeCounts[t][ir.type.ordinal()] += delta;
+        unitCounts[t] += delta;
+        robotCounts[t] += delta * ir.type.count;
     }
     
     public int countEncampments(Team t) {
@@ -306,7 +428,30 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     }
 
     public InternalObject getObject(MapLocation loc, RobotLevel level) {
-        return gameObjectsByLoc.get(new MapLocation3D(loc, level));
+        return getObject(loc.x, loc.y, level);
+    }
+
+    public InternalObject getObject(int x, int y, RobotLevel level) {
+        int i = locationIndex(x, y);
+        return i < 0 ? null : gameObjectsByLoc[level.ordinal()][i];
+    }
+
+    /**
+     * Returns the index of (x, y) in the gameObjectsByLoc grids, or -1 if
+     * it is off the map.
+     */
+    private int locationIndex(int x, int y) {
+        x -= mapOriginX;
+        y -= mapOriginY;
+        if (x < 0 || y < 0 || x >= mapWidth || y >= mapHeight)
+            return -1;
+        return x + y * mapWidth;
+    }
+
+    private void setObject(MapLocation loc, RobotLevel level, InternalObject o) {
+        int i = locationIndex(loc.x, loc.y);
+        if (i >= 0)
+            gameObjectsByLoc[level.ordinal()][i] = o;
     }
 
     public <T extends InternalObject> T getObjectOfType(MapLocation loc, RobotLevel level, Class<T> cl) {
@@ -318,7 +463,11 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     }
 
     public InternalRobot getRobot(MapLocation loc, RobotLevel level) {
-        InternalObject obj = getObject(loc, level);
+        return getRobot(loc.x, loc.y, level);
+    }
+
+    public InternalRobot getRobot(int x, int y, RobotLevel level) {
+        InternalObject obj = getObject(x, y, level);
         if (obj instanceof InternalRobot)
             return (InternalRobot) obj;
         else
@@ -393,8 +542,9 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         if (gameObjectsByID.containsKey(o.getID()))
             return;
         gameObjectsByID.put(o.getID(), o);
+        spatialIndex.add(o);
         if (o.getLocation() != null) {
-            gameObjectsByLoc.put(new MapLocation3D(o.getLocation(), o.getRobotLevel()), o);
+            setObject(o.getLocation(), o.getRobotLevel(), o);
         }
 //        if (o instanceof InternalEncampment)
 //        {
@@ -435,27 +585,34 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         return gameObjectsByID.values();
     }
 
+    /**
+     * Returns the objects within radiusSquared of center, in the same order
+     * as allObjects().
+     */
+    public List<InternalObject> getObjectsWithinRadiusSq(MapLocation center, int radiusSquared) {
+        return spatialIndex.getObjectsWithinRadiusSq(center, radiusSquared);
+    }
+
     // TODO: move stuff to here
     // should only be called by InternalObject.setLocation
     public void notifyMovingObject(InternalObject o, MapLocation oldLoc, MapLocation newLoc) {
+        spatialIndex.move(o, newLoc);
         if (oldLoc != null) {
-            MapLocation3D oldLoc3D = new MapLocation3D(oldLoc, o.getRobotLevel());
-            if (gameObjectsByLoc.get(oldLoc3D) != o) {
+            if (getObject(oldLoc, o.getRobotLevel()) != o) {
                 ErrorReporter.report("Internal Error: invalid oldLoc in notifyMovingObject");
                 return;
             }
-            gameObjectsByLoc.remove(oldLoc3D);
+            setObject(oldLoc, o.getRobotLevel(), null);
         }
         if (newLoc != null) {
-            gameObjectsByLoc.put(new MapLocation3D(newLoc, o.getRobotLevel()), o);
+            setObject(newLoc, o.getRobotLevel(), o);
         }
     }
 
     public void removeObject(InternalObject o) {
         if (o.getLocation() != null) {
-            MapLocation3D loc3D = new MapLocation3D(o.getLocation(), o.getRobotLevel());
-            if (gameObjectsByLoc.get(loc3D) == o)
-                gameObjectsByLoc.remove(loc3D);
+            if (getObject(o.getLocation(), o.getRobotLevel()) == o)
+                setObject(o.getLocation(), o.getRobotLevel(), null);
             else
             	if (o instanceof InternalRobot) {
             		InternalRobot ir = (InternalRobot) o;
@@ -468,8 +625,11 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         } else
             System.out.println("Couldn't remove " + o + " from the game");
 
-        if (gameObjectsByID.get(o.getID()) == o)
+        if (gameObjectsByID.get(o.getID()) == o) {
             gameObjectsByID.remove(o.getID());
+            spatialIndex.remove(o);
+            updateRobotCounts(o, -1);
+        }
 
         if (o instanceof InternalRobot) {
             InternalRobot r = (InternalRobot) o;
@@ -488,16 +648,8 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         return gameMap.getTerrainTile(loc);
     }
 
-    // TODO: optimize this too
     public int getUnitCount(Team team) {
-        int result = 0;
-        for (InternalObject o : gameObjectsByID.values()) {
-            if (!(o instanceof InternalRobot))
-                continue;
-            if (((InternalRobot) o).getTeam() == team)
-                result++;
-        }
-        return result;
+        return unitCounts[team.ordinal()];
     }
     
     public double getSpawnRate(Team team) {
@@ -509,8 +661,11 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     }
 
     public boolean canMove(RobotLevel level, MapLocation loc) {
+        return canMove(level, loc.x, loc.y);
+    }
 
-        return gameMap.getTerrainTile(loc).isTraversableAtHeight(level) && (gameObjectsByLoc.get(new MapLocation3D(loc, level)) == null);
+    public boolean canMove(RobotLevel level, int x, int y) {
+        return gameMap.getTerrainTile(x, y).isTraversableAtHeight(level) && getObject(x, y, level) == null;
     }
 
     public void splashDamageGround(MapLocation loc, double damage, double falloutFraction) {
@@ -562,8 +717,7 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     }
     
     public int getMessage(Team t, int channel) {
-    	Integer val = radio.get(t).get(channel);
-    	return val == null ? 0 : val;
+    	return radio.get(t)[channel];
     }
     
     public boolean hasUpgrade(Team t, Upgrade upgrade) {
@@ -680,7 +834,17 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
     // ******************************
     // SIGNAL HANDLER METHODS
     // ******************************
-    SignalHandler signalHandler = new AutoSignalHandler(this);
+    transient SignalHandler signalHandler = createSignalHandler();
+
+    private SignalHandler createSignalHandler() {
+        return Config.getGlobalConfig().getBoolean("bc.engine.generated-signals")
+                ? GeneratedSignalHandler.create(this) : new AutoSignalHandler(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        signalHandler = createSignalHandler();
+    }
 
     public void visitSignal(Signal s) {
         signalHandler.visitSignal(s);
@@ -698,7 +862,7 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         InternalRobot target;
         for (int dx = -1; dx <= 1; dx++)
             for (int dy = -1; dy <= 1; dy++) {
-                target = getRobot(targetLoc.add(dx, dy), level);
+                target = getRobot(targetLoc.x + dx, targetLoc.y + dy, level);
 
                 if (target != null) {
                     if (!(dx == 0 && dy == 0)) {
@@ -736,7 +900,7 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
 			for (int dx = -1; dx <= 1; dx++)
 				for (int dy = -1; dy <= 1; dy++) {
 
-					target = getRobot(targetLoc.add(dx, dy), level);
+					target = getRobot(targetLoc.x + dx, targetLoc.y + dy, level);
 
 					if (target != null) {
 						if (dx == 0 && dy == 0)
@@ -795,8 +959,11 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
 
     public void visitBroadcastSignal(BroadcastSignal s) {        
         nextRevealedRobots.add((InternalRobot) getObjectByID(s.getRobotID()));
-    	radio.get(s.getRobotTeam()).putAll(s.broadcastMap);
-    	s.broadcastMap = null;
+    	// later writes to a channel overwrite earlier ones, as they did in the robot's turn
+    	int[] channels = radio.get(s.getRobotTeam());
+    	for (int i = 0; i < s.numBroadcasts; i++)
+    		channels[s.broadcastChannels[i]] = s.broadcastData[i];
+    	s.broadcastChannels = s.broadcastData = null;
         addSignal(s);
     }
 
@@ -971,7 +1138,7 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         	for (int dy=-dist; dy<=dist; dy++)
         	{
         		if (dx*dx+dy*dy > medbay.type.attackRadiusMaxSquared) continue;
-        		target = getRobot(targetLoc.add(dx, dy), level);
+        		target = getRobot(targetLoc.x + dx, targetLoc.y + dy, level);
         		if (target != null)
         			if (target.getTeam() == medbay.getTeam() && target.type != RobotType.HQ)
         				target.takeDamage(-medbay.type.attackPower, medbay);
@@ -991,7 +1158,7 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
         	for (int dy=-dist; dy<=dist; dy++)
         	{
         		if (dx*dx+dy*dy > shields.type.attackRadiusMaxSquared) continue;
-        		target = getRobot(targetLoc.add(dx, dy), level);
+        		target = getRobot(targetLoc.x + dx, targetLoc.y + dy, level);
         		if (target != null)
         			if (target.getTeam() == shields.getTeam())
         				target.takeShieldedDamage(-shields.type.attackPower);
@@ -1044,42 +1211,43 @@ public class GameWorld extends BaseWorld<InternalObject> implements GenericWorld
             return (dotProduct * dotProduct >= rhs - 0.00001d);
     }
 
-    // TODO: make a faster implementation of this
     protected InternalRobot[] getAllRobotsWithinRadiusDonutSq(MapLocation center, int outerRadiusSquared, int innerRadiusSquared) {
         ArrayList<InternalRobot> robots = new ArrayList<InternalRobot>();
 
-        for (InternalObject o : gameObjectsByID.values()) {
+        for (InternalObject o : spatialIndex.getObjectsWithinRadiusSq(center, outerRadiusSquared)) {
             if (!(o instanceof InternalRobot))
                 continue;
-            if (o.getLocation() != null && o.getLocation().distanceSquaredTo(center) <= outerRadiusSquared
-                    && o.getLocation().distanceSquaredTo(center) > innerRadiusSquared)
+            if (o.getLocation().distanceSquaredTo(center) > innerRadiusSquared)
                 robots.add((InternalRobot) o);
         }
 
         return robots.toArray(new InternalRobot[robots.size()]);
     }
 
-    // TODO: make a faster implementation of this
+    /**
+     * Returns the locations on the map that are strictly closer than
+     * radiusSquared to center.  Unlike
+     * MapLocation.getAllMapLocationsWithinRadiusSq, the boundary is excluded.
+     */
     public MapLocation[] getAllMapLocationsWithinRadiusSq(MapLocation center, int radiusSquared) {
-        ArrayList<MapLocation> locations = new ArrayList<MapLocation>();
-
-        int radius = (int) Math.sqrt(radiusSquared);
-
-        int minXPos = center.x - radius;
-        int maxXPos = center.x + radius;
-        int minYPos = center.y - radius;
-        int maxYPos = center.y + radius;
-
-        for (int x = minXPos; x <= maxXPos; x++) {
-            for (int y = minYPos; y <= maxYPos; y++) {
-                MapLocation loc = new MapLocation(x, y);
-                TerrainTile tile = gameMap.getTerrainTile(loc);
-                if (!tile.equals(TerrainTile.OFF_MAP) && loc.distanceSquaredTo(center) < radiusSquared)
-                    locations.add(loc);
-            }
+        RadiusOffsets disk = RadiusOffsets.get(radiusSquared - 1);
+        MapLocation mapOrigin = gameMap.getMapOrigin();
+        int minX = Math.max(center.x - disk.radius, mapOrigin.x);
+        int maxX = Math.min(center.x + disk.radius, mapOrigin.x + gameMap.getWidth() - 1);
+        int count = 0;
+        for (int x = minX; x <= maxX; x++) {
+            int h = disk.columnHeight(x - center.x);
+            count += Math.max(Math.min(center.y + h, mapOrigin.y + gameMap.getHeight() - 1) - Math.max(center.y - h, mapOrigin.y) + 1, 0);
         }
-
-        return locations.toArray(new MapLocation[locations.size()]);
+        MapLocation[] locations = new MapLocation[count];
+        int i = 0;
+        for (int x = minX; x <= maxX; x++) {
+            int h = disk.columnHeight(x - center.x);
+            int maxY = Math.min(center.y + h, mapOrigin.y + gameMap.getHeight() - 1);
+            for (int y = Math.max(center.y - h, mapOrigin.y); y <= maxY; y++)
+                locations[i++] = new MapLocation(x, y);
+        }
+        return locations;
     }
 
     public double resources(Team t) {
@@ -6,6 +6,8 @@ import battlecode.common.Team;
 
 public abstract class InternalObject extends BaseObject {
 
+    private static final long serialVersionUID = 7960372284512006371L;
+
     protected volatile MapLocation myLocation;
     protected final RobotLevel myHeight;
     protected final GameWorld myGameWorld;
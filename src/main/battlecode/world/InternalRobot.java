@@ -1,6 +1,6 @@
 package battlecode.world;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 
 import battlecode.common.Direction;
@@ -26,6 +26,8 @@ import battlecode.world.signal.SpawnSignal;
 
 public class InternalRobot extends InternalObject implements Robot, GenericRobot {
 
+    private static final long serialVersionUID = -1583026154785240913L;
+
     protected volatile double myEnergonLevel;
     protected volatile double myShieldLevel;
     protected volatile Direction myDirection;
@@ -50,7 +52,10 @@ public class InternalRobot extends InternalObject implements Robot, GenericRobot
 
     private volatile int turnsUntilMovementIdle;
     private volatile int turnsUntilAttackIdle;
-    private volatile HashMap<Integer, Integer> broadcastMap = new HashMap<Integer, Integer>();
+    // the channels written this turn and what was written to them, in the order they were written
+    private int[] broadcastChannels = new int[0];
+    private int[] broadcastData = new int[0];
+    private int numBroadcasts;
     private boolean broadcasted = false;
     
     protected volatile boolean regen;
@@ -80,6 +85,7 @@ public class InternalRobot extends InternalObject implements Robot, GenericRobot
         super(gw, loc, type.level, t);
 //        myDirection = Direction.values()[gw.getRandGen().nextInt(8)];
         this.type = type;
+        gw.updateRobotCounts(this, 1);
 
         myEnergonLevel = getMaxEnergon();
         myShieldLevel = 0.0;
@@ -176,7 +182,7 @@ public class InternalRobot extends InternalObject implements Robot, GenericRobot
         //else if (type == RobotType.GENERATOR)
         //	myGameWorld.adjustResources(getTeam(), GameConstants.GENERATOR_POWER_PRODUCTION);
         //else if (type == RobotType.SUPPLIER)
-        myGameWorld.adjustSpawnRate(getTeam());
+        // the spawn rate is updated once per team by GameWorld
     }
 
     public void processBeginningOfTurn() {
@@ -220,10 +226,12 @@ public class InternalRobot extends InternalObject implements Robot, GenericRobot
         super.processEndOfTurn();
         
         // autosend aggregated broadcast
-        if (broadcasted) myGameWorld.visitSignal(new BroadcastSignal(this, broadcastMap));
-        
-    	broadcastMap = new HashMap<Integer, Integer>();
-        broadcasted = false;
+        // (the world copies the writes into the radio, so the buffer can be reused)
+        if (broadcasted) {
+            myGameWorld.visitSignal(new BroadcastSignal(this, broadcastChannels, broadcastData, numBroadcasts));
+            numBroadcasts = 0;
+            broadcasted = false;
+        }
 
         if (type != RobotType.HQ) {
             int bytecodesPenalty = getBytecodesUsed() - GameConstants.FREE_BYTECODES;
@@ -477,7 +485,14 @@ public class InternalRobot extends InternalObject implements Robot, GenericRobot
     }
 
     public void addBroadcast(int channel, int data) {
-    	broadcastMap.put(channel, data);
+        if (numBroadcasts == broadcastChannels.length) {
+            int length = Math.max(16, 2 * numBroadcasts);
+            broadcastChannels = Arrays.copyOf(broadcastChannels, length);
+            broadcastData = Arrays.copyOf(broadcastData, length);
+        }
+        broadcastChannels[numBroadcasts] = channel;
+        broadcastData[numBroadcasts] = data;
+        numBroadcasts++;
         broadcasted = true;
     }
     
@@ -0,0 +1,107 @@
+package battlecode.world;
+
+import battlecode.server.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compiles .xml maps into the binary form that XMLMapHandler.loadMap reads
+ * instead of parsing the XML, and times loading maps each way.
+ * <p/>
+ * A map can be given by name, in which case it is looked for in
+ * bc.game.map-path, or as the path of its .xml file.  The compiled map is
+ * written next to the .xml file, and has to be compiled again whenever the
+ * .xml file changes; until then the .xml file is used.
+ */
+public class MapCompiler {
+
+    public static void usage() {
+        System.out.println("usage: MapCompiler [-bench n] map...");
+        System.out.println("  -bench n  after compiling each map, load it n times each way and print the average times");
+    }
+
+    private static File xmlFile(String map) {
+        if (map.endsWith(".xml"))
+            return new File(map);
+        String mapPath = Config.getGlobalConfig().get("bc.game.map-path");
+        return new File(mapPath, map + ".xml");
+    }
+
+    /**
+     * Compiles the given .xml map and returns the compiled file.
+     */
+    public static File compile(File xml) throws IOException {
+        long length = xml.length();
+        long lastModified = xml.lastModified();
+        XMLMapHandler handler = XMLMapHandler.parseXML(xml);
+        if (handler == null)
+            throw new IOException("couldn't parse " + xml);
+        String path = xml.getPath();
+        File compiled = new File(path.substring(0, path.length() - ".xml".length()) + XMLMapHandler.COMPILED_SUFFIX);
+        handler.writeCompiled(compiled, length, lastModified);
+        return compiled;
+    }
+
+    /**
+     * Returns the average time in milliseconds of n loads of the given map
+     * from its .xml file, from its compiled file, and from a handler that
+     * has already been loaded, which is what a cached map costs.  Each is
+     * run n times first to warm up.
+     */
+    private static double[] bench(File xml, File compiled, int n) {
+        double[] millis = new double[3];
+        XMLMapHandler handler = XMLMapHandler.parseXML(xml);
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                XMLMapHandler.parseXML(xml).createGameMap();
+            millis[0] = (System.nanoTime() - start) / 1e6 / n;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                XMLMapHandler.readCompiled(compiled).createGameMap();
+            millis[1] = (System.nanoTime() - start) / 1e6 / n;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                handler.createGameMap();
+            millis[2] = (System.nanoTime() - start) / 1e6 / n;
+        }
+        return millis;
+    }
+
+    public static void main(String[] args) {
+        int benchRuns = 0;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("-bench")) {
+            benchRuns = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first >= args.length) {
+            usage();
+            return;
+        }
+        boolean failed = false;
+        for (int i = first; i < args.length; i++) {
+            File xml = xmlFile(args[i]);
+            File compiled;
+            try {
+                compiled = compile(xml);
+            } catch (IOException e) {
+                System.out.println(xml + ": " + e.getMessage());
+                failed = true;
+                continue;
+            } catch (IllegalArgumentException e) {
+                // the reason has already been reported
+                failed = true;
+                continue;
+            }
+            System.out.printf("%s -> %s, %d bytes%n", xml, compiled, compiled.length());
+            if (benchRuns > 0) {
+                double[] millis = bench(xml, compiled, benchRuns);
+                System.out.printf("  xml %.3f ms, compiled %.3f ms, cached %.3f ms%n", millis[0], millis[1], millis[2]);
+            }
+        }
+        if (failed)
+            System.exit(1);
+    }
+}
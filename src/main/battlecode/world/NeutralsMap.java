@@ -1,8 +1,11 @@
 package battlecode.world;
 
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import battlecode.common.GameActionException;
 import battlecode.common.GameActionExceptionType;
@@ -16,26 +19,138 @@ import battlecode.world.signal.AttackSignal;
 import battlecode.world.InternalObject;
 import battlecode.world.InternalRobot;
 import battlecode.world.signal.MovementSignal;
+import battlecode.world.signal.StateHash;
 
 /**
  * Represents a map (scalar field) of a neutral AI.
  */
-public class NeutralsMap {
+public class NeutralsMap implements Serializable {
+
+    private static final long serialVersionUID = 3127985446713020398L;
+
     /**
      * The width and height of the map.
      */
     private final int mapWidth, mapHeight;
     /**
-     * The integer scalar field showing the distribution of the neutral AI.
+     * The scalar field showing the distribution of the neutral AI.  The
+     * per-cell arrays are flattened, with cell (x, y) at index
+     * x * mapHeight + y.  The field is double buffered: next() writes the
+     * new amounts into buffer and then swaps it with currentAmount.
      */
-    private boolean[][] passable;
-    private double[][] currentAmount;
+    private boolean[] passable;
+    private double[] currentAmount;
+    private double[] buffer;
     private double[][] growthFactor;
-    private double[][] dX, dY;
-    private boolean[][] hasNoise;
-    private int[][] nPastrs;
+    /**
+     * The decay and growth applied to each cell at the end of a round.
+     * Impassable cells get a decay of 1 and a growth of 0 so that the whole
+     * field can be updated in one sweep.
+     */
+    private double[] decay, growth;
+    private double[] dX, dY;
+    private boolean[] hasNoise;
+    /**
+     * The bounding box of the cells that have noise this round, or an empty
+     * box (noiseMaxX < 0) if there is none.  Cows outside of this box (and
+     * its neighbours) do not move.
+     */
+    private int noiseMinX, noiseMaxX, noiseMinY, noiseMaxY;
+    /**
+     * How many PASTRs' capture regions each cell is in.  PASTRs don't move,
+     * so this is only updated when a PASTR first shows up in next() and
+     * when it stops showing up.
+     */
+    private int[] nPastrs;
+    /**
+     * The capture region of each PASTR in nPastrs, by robot ID.
+     */
+    private Map<Integer, PastrRegion> pastrRegions = new HashMap<Integer, PastrRegion>();
+    private int pastrRound;
+    /**
+     * Which capture regions each cell is in this round.  Every PASTR and
+     * soldier passed to updateIds in a round gets the next bit, and the bits
+     * of cell k are members[k * memberWords] to
+     * members[(k + 1) * memberWords - 1].  Only the cells listed in
+     * touchedCells can be in any region, so only they are reset after the
+     * round.
+     */
+    private long[] members;
+    private int memberWords;
+    private int nCapturing;
+    private int[] touchedCells;
+    private int nTouched;
     private ArrayList<MapLocation> attacks;
-    private Set[][] ids;
+    private transient Score score;
+
+    private static class PastrRegion implements Serializable {
+
+        private static final long serialVersionUID = -3585237471938815526L;
+
+        /**
+         * The passable cells within PASTR_RANGE of the PASTR, in the order
+         * that RadiusOffsets visits them.
+         */
+        final int[] cells;
+        /**
+         * The last value of pastrRound in which the PASTR was seen.
+         */
+        int seen;
+
+        PastrRegion(int[] cells) {
+            this.cells = cells;
+        }
+    }
+
+    /**
+     * The milk that each team, and each PASTR, collects in a round.  Worked
+     * out by score() in one pass over the robots, and reused by the next
+     * call.
+     */
+    public static class Score {
+        private final double[] teamMilk = new double[Team.values().length];
+        private int nPastrs;
+        private int[] pastrIDs = new int[8];
+        private double[] pastrMilk = new double[8];
+
+        private void clear() {
+            Arrays.fill(teamMilk, 0.0);
+            nPastrs = 0;
+        }
+
+        private void addPastr(int id, double milk) {
+            if (nPastrs == pastrIDs.length) {
+                pastrIDs = Arrays.copyOf(pastrIDs, 2 * nPastrs);
+                pastrMilk = Arrays.copyOf(pastrMilk, 2 * nPastrs);
+            }
+            pastrIDs[nPastrs] = id;
+            pastrMilk[nPastrs] = milk;
+            nPastrs++;
+        }
+
+        /**
+         * Returns how much milk the given team collects this round.
+         */
+        public double getScoreChange(Team t) {
+            return teamMilk[t.ordinal()];
+        }
+
+        public int getPastrCount() {
+            return nPastrs;
+        }
+
+        public int[] copyOfPastrIDs() {
+            return Arrays.copyOf(pastrIDs, nPastrs);
+        }
+
+        /**
+         * Returns how much milk each PASTR collects this round, in the same
+         * order as copyOfPastrIDs().
+         */
+        public double[] copyOfPastrMilk() {
+            return Arrays.copyOf(pastrMilk, nPastrs);
+        }
+    }
 
     public NeutralsMap() {
 	    attacks = new ArrayList<MapLocation>();
@@ -44,12 +159,7 @@ public class NeutralsMap {
         this.mapHeight = 0;
 
         this.growthFactor = new double[0][0];
-        this.currentAmount = new double[0][0];
-        dX = new double[0][0];
-        dY = new double[0][0];
-        hasNoise = new boolean[0][0];
-        passable = new boolean[0][0];
-        ids = new Set[0][0];
+        allocate();
     }
 
     public NeutralsMap(double[][] growthFactor, TerrainTile[][] mapTiles) {
@@ -58,66 +168,96 @@ public class NeutralsMap {
         this.mapWidth = growthFactor.length;
         int tempMapHeight = 0;
         for (int i = 0; i < this.mapWidth; i++) {
-            tempMapHeight = Math.max(this.mapHeight, growthFactor[i].length);
+            tempMapHeight = Math.max(tempMapHeight, growthFactor[i].length);
         }
         this.mapHeight = tempMapHeight;
 
         this.growthFactor = new double[this.mapWidth][this.mapHeight];
-        this.currentAmount = new double[this.mapWidth][this.mapHeight];
         for (int i = 0; i < this.mapWidth; i++) {
             System.arraycopy(growthFactor[i], 0, this.growthFactor[i], 0,
-                this.mapHeight);
+                growthFactor[i].length);
         }
 
-        dX = new double[this.mapWidth][this.mapHeight];
-        dY = new double[this.mapWidth][this.mapHeight];
-        hasNoise = new boolean[this.mapWidth][this.mapHeight];
-        nPastrs = new int[this.mapWidth][this.mapHeight];
-        passable = new boolean[this.mapWidth][this.mapHeight];
+        allocate();
         for (int i = 0; i < this.mapWidth; i++) {
             for (int j = 0; j < this.mapHeight; j++) {
-                passable[i][j] = mapTiles[i][j] != TerrainTile.VOID;
-            }
-        }
-        ids = new Set[this.mapWidth][this.mapHeight];
-        for (int i = 0; i < this.mapWidth; i++) {
-            for (int j = 0; j < this.mapHeight; j++) {
-                ids[i][j] = new TreeSet<Integer>();
+                passable[index(i, j)] = mapTiles[i][j] != TerrainTile.VOID;
             }
         }
+        initGrowth();
     }
 
     public NeutralsMap(NeutralsMap nm) {
+        attacks = new ArrayList<MapLocation>();
+
         this.mapWidth = nm.mapWidth;
         this.mapHeight = nm.mapHeight;
-        this.currentAmount = new double[this.mapWidth][this.mapHeight];
-        for (int i = 0; i < this.mapWidth; i++) {
-            System.arraycopy(nm.currentAmount[i], 0, this.currentAmount[i], 0,
-                this.mapHeight);
-        }
         this.growthFactor = new double[mapWidth][mapHeight];
         for (int i = 0; i < this.mapWidth; i++) {
             System.arraycopy(nm.growthFactor[i], 0, this.growthFactor[i], 0,
                 this.mapHeight);
         }
-        this.dX = new double[this.mapWidth][this.mapHeight];
-        this.dY = new double[this.mapWidth][this.mapHeight];
-        this.hasNoise = new boolean[this.mapWidth][this.mapHeight];
-        this.nPastrs = new int[this.mapWidth][this.mapHeight];
-        this.passable = new boolean[this.mapWidth][this.mapHeight];
+        allocate();
+        System.arraycopy(nm.currentAmount, 0, this.currentAmount, 0, this.currentAmount.length);
+        System.arraycopy(nm.passable, 0, this.passable, 0, this.passable.length);
+        initGrowth();
+    }
+
+    private void allocate() {
+        int size = this.mapWidth * this.mapHeight;
+        currentAmount = new double[size];
+        buffer = new double[size];
+        decay = new double[size];
+        growth = new double[size];
+        dX = new double[size];
+        dY = new double[size];
+        hasNoise = new boolean[size];
+        passable = new boolean[size];
+        nPastrs = new int[size];
+        memberWords = 1;
+        members = new long[size];
+        touchedCells = new int[size];
+        noiseMaxX = noiseMaxY = -1;
+        noiseMinX = noiseMinY = Integer.MAX_VALUE;
+    }
+
+    private void initGrowth() {
         for (int i = 0; i < this.mapWidth; i++) {
-            System.arraycopy(nm.passable[i], 0, this.passable[i], 0, this.mapHeight);
+            for (int j = 0; j < this.mapHeight; j++) {
+                int k = index(i, j);
+                if (passable[k]) {
+                    decay[k] = GameConstants.NEUTRALS_TURN_DECAY;
+                    growth[k] = this.growthFactor[i][j];
+                } else {
+                    decay[k] = 1.0;
+                    growth[k] = 0.0;
+                }
+            }
         }
     }
 
+    private int index(int x, int y) {
+        return x * this.mapHeight + y;
+    }
+
     public double get(MapLocation m) {
         if (isValid(m.x, m.y)) {
-            return currentAmount[m.x][m.y];
+            return currentAmount[index(m.x, m.y)];
         } else {
             return 0;
         }
     }
 
+    /**
+     * Folds the amount of cows on every square into the given hash.
+     */
+    public long hash(long h) {
+        for (double amount : currentAmount) {
+            h = StateHash.mix(h, Double.doubleToLongBits(amount));
+        }
+        return h;
+    }
+
     public double[][] copyOfData() {
         double[][] cowsCopy = new double[this.mapWidth][this.mapHeight];
         for (int i = 0; i < this.mapWidth; i++) {
@@ -130,7 +270,7 @@ public class NeutralsMap {
     public double[][] copyOfCurrentAmounts() {
         double[][] cowsCopy = new double[this.mapWidth][this.mapHeight];
         for (int i = 0; i < this.mapWidth; i++) {
-            System.arraycopy(this.currentAmount[i], 0, cowsCopy[i], 0,
+            System.arraycopy(this.currentAmount, index(i, 0), cowsCopy[i], 0,
                 this.mapHeight);
         }
         return cowsCopy;
@@ -140,90 +280,231 @@ public class NeutralsMap {
         int[][] cowsCopy = new int[this.mapWidth][this.mapHeight];
         for (int i = 0; i < this.mapWidth; i++) {
             for (int j = 0; j < this.mapHeight; j++) {
-                cowsCopy[i][j] = (int) Math.round(this.currentAmount[i][j]);
+                cowsCopy[i][j] = (int) Math.round(this.currentAmount[index(i, j)]);
             }
         }
         return cowsCopy;
     }
 
     public boolean isValid(int x, int y) {
-        return x >= 0 && x < this.mapWidth && y >= 0 && y < this.mapHeight && passable[x][y];
+        return x >= 0 && x < this.mapWidth && y >= 0 && y < this.mapHeight && passable[index(x, y)];
     }
 
-    @SuppressWarnings("unchecked")
     public boolean isValid(int x, int y, int fromX, int fromY) {
-        // valid if ids of from is a subset of ids of to
+        // valid if the capture regions that from is in are a subset of those that to is in
         if (!isValid(x, y)) return false;
-        return ids[x][y].containsAll(ids[fromX][fromY]);
+        int to = index(x, y) * memberWords;
+        int from = index(fromX, fromY) * memberWords;
+        for (int w = 0; w < memberWords; w++) {
+            if ((members[from + w] & ~members[to + w]) != 0) return false;
+        }
+        return true;
     }
 
     public void print() {
         System.out.println("Neutrals Map!");
         for (int j = 0; j < this.mapHeight; j++) {
             for (int i = 0; i < this.mapWidth; i++) {
-                System.out.print(Double.toString(this.currentAmount[i][j]).substring(0, 3) + " (" + this.growthFactor[i][j] + ")\t");
+                System.out.print(Double.toString(this.currentAmount[index(i, j)]).substring(0, 3) + " (" + this.growthFactor[i][j] + ")\t");
             }
             System.out.println();
         }
         System.out.println("END Neutrals Map");
     }
 
-    public double getScoreChange(Team t, InternalObject[] objs) {
-        double delta = 0.0;
+    /**
+     * Works out how much milk each team and each PASTR collects this round,
+     * from the cows and capture regions left by next().  Each team's total is
+     * summed in the same order as it always has been, robot by robot and cell
+     * by cell, so that it comes out exactly the same.
+     *
+     * @return the result, which is reused by the next call
+     */
+    public Score score(InternalObject[] objs) {
+        if (score == null) {
+            score = new Score();
+        }
+        score.clear();
         for (InternalObject obj : objs) {
             InternalRobot ir = (InternalRobot) obj;
-            if (ir.getTeam() != t) {
-                continue;
-            }
-            if (ir.type != RobotType.PASTR && ir.type != RobotType.SOLDIER) continue;
-            if (ir.type == RobotType.SOLDIER && nPastrs[ir.getLocation().x][ir.getLocation().y] > 0) continue; // soldiers do not milk when in pastr range
-
-            int captureRange = 0;
-            double capturePercentage = GameConstants.ROBOT_MILK_PERCENTAGE;
+            int t = ir.getTeam().ordinal();
+            MapLocation loc = ir.getLocation();
             if (ir.type == RobotType.PASTR) {
-                captureRange = GameConstants.PASTR_RANGE;
-                capturePercentage = 1.0;
-            }
-            MapLocation[] affected = MapLocation.getAllMapLocationsWithinRadiusSq(ir.getLocation(), captureRange);
-            for (MapLocation ml : affected) {
-                if (isValid(ml.x, ml.y)) {
-                    if (ir.type == RobotType.PASTR) {
-                        delta += this.currentAmount[ml.x][ml.y] * capturePercentage / nPastrs[ml.x][ml.y];
-                    } else {
-                        delta += this.currentAmount[ml.x][ml.y] * capturePercentage;
-                    }
+                PastrRegion region = pastrRegions.get(ir.getID());
+                double milk = 0.0;
+                for (int k : region.cells) {
+                    double d = this.currentAmount[k] * 1.0 / nPastrs[k];
+                    score.teamMilk[t] += d;
+                    milk += d;
                 }
+                score.addPastr(ir.getID(), milk);
+            } else if (ir.type == RobotType.SOLDIER) {
+                int k = index(loc.x, loc.y);
+                if (!passable[k] || nPastrs[k] > 0) continue; // soldiers do not milk when in pastr range
+                score.teamMilk[t] += this.currentAmount[k] * GameConstants.ROBOT_MILK_PERCENTAGE;
             }
         }
-        return delta;
+        return score;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Adds the capture region of the given robot, if it has one, to the
+     * cells in it.  Each robot should be passed at most once a round.
+     */
     public void updateIds(InternalObject obj) {
         InternalRobot ir = (InternalRobot) obj;
         if (ir.type != RobotType.PASTR && ir.type != RobotType.SOLDIER) return;
 
-        int captureRange = 0;
-        if (ir.type == RobotType.PASTR) captureRange = GameConstants.PASTR_RANGE;
-        MapLocation[] affected = MapLocation.getAllMapLocationsWithinRadiusSq(ir.getLocation(), captureRange);
-        for (MapLocation ml : affected) {
-            if (isValid(ml.x, ml.y)) {
-                this.ids[ml.x][ml.y].add(ir.getID());
-                if (ir.type == RobotType.PASTR) {
-                    nPastrs[ml.x][ml.y]++;
+        if (nCapturing == 64 * memberWords) {
+            growMembers();
+        }
+        int word = nCapturing >> 6;
+        long bit = 1L << (nCapturing & 63);
+        nCapturing++;
+
+        if (ir.type == RobotType.PASTR) {
+            PastrRegion region = pastrRegions.get(ir.getID());
+            if (region == null) {
+                region = new PastrRegion(captureRegion(ir.getLocation(), GameConstants.PASTR_RANGE));
+                pastrRegions.put(ir.getID(), region);
+                for (int k : region.cells) {
+                    nPastrs[k]++;
                 }
             }
+            region.seen = pastrRound;
+            for (int k : region.cells) {
+                addToRegion(k, word, bit);
+            }
+        } else {
+            MapLocation loc = ir.getLocation();
+            if (isValid(loc.x, loc.y)) {
+                addToRegion(index(loc.x, loc.y), word, bit);
+            }
         }
     }
 
-    final double PI4 = Math.PI / 4;
-    final double EPSILON = 1.0e-6;
-    final int[][] dirs = {{-1, 0}, {-1, -1}, {0, -1}, {1, -1},
+    private void addToRegion(int k, int word, long bit) {
+        int start = k * memberWords;
+        if (!inAnyRegion(start)) {
+            touchedCells[nTouched++] = k;
+        }
+        members[start + word] |= bit;
+    }
+
+    /**
+     * Returns the passable cells within radiusSquared of center.
+     */
+    private int[] captureRegion(MapLocation center, int radiusSquared) {
+        RadiusOffsets disk = RadiusOffsets.get(radiusSquared);
+        int[] cells = new int[disk.size];
+        int n = 0;
+        int minX = Math.max(center.x - disk.radius, 0);
+        int maxX = Math.min(center.x + disk.radius, this.mapWidth - 1);
+        for (int x = minX; x <= maxX; x++) {
+            int h = disk.columnHeight(x - center.x);
+            int minY = Math.max(center.y - h, 0);
+            int maxY = Math.min(center.y + h, this.mapHeight - 1);
+            for (int y = minY; y <= maxY; y++) {
+                int k = index(x, y);
+                if (passable[k]) {
+                    cells[n++] = k;
+                }
+            }
+        }
+        // only a PASTR near the edge of the map or next to void has fewer
+        return n == cells.length ? cells : Arrays.copyOf(cells, n);
+    }
+
+    /**
+     * Takes the PASTRs that weren't passed to updateIds since pastrRound
+     * last changed out of nPastrs.
+     */
+    private void removeMissingPastrs() {
+        for (Iterator<PastrRegion> it = pastrRegions.values().iterator(); it.hasNext(); ) {
+            PastrRegion region = it.next();
+            if (region.seen != pastrRound) {
+                for (int k : region.cells) {
+                    nPastrs[k]--;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private boolean inAnyRegion(int start) {
+        for (int w = 0; w < memberWords; w++) {
+            if (members[start + w] != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes room for 64 more capture regions in every cell.
+     */
+    private void growMembers() {
+        int words = memberWords + 1;
+        long[] bigger = new long[this.mapWidth * this.mapHeight * words];
+        for (int i = 0; i < nTouched; i++) {
+            int k = touchedCells[i];
+            System.arraycopy(members, k * memberWords, bigger, k * words, memberWords);
+        }
+        members = bigger;
+        memberWords = words;
+    }
+
+    static final double PI4 = Math.PI / 4;
+    static final double EPSILON = 1.0e-6;
+    static final int[][] dirs = {{-1, 0}, {-1, -1}, {0, -1}, {1, -1},
                              {1, 0}, {1, 1}, {0, 1}, {-1, 1}};
+
+    /**
+     * The noise vectors of a cell are sums of integer offsets, so they are
+     * almost always small integers.  For those the angular distance to each
+     * of the eight directions is looked up here instead of being computed
+     * with atan2 every round.
+     */
+    static final int DIRECTION_TABLE_RADIUS = 32;
+    private static final double[][] directionDiffTable;
+
+    static {
+        int side = 2 * DIRECTION_TABLE_RADIUS + 1;
+        directionDiffTable = new double[side * side][];
+        for (int x = -DIRECTION_TABLE_RADIUS; x <= DIRECTION_TABLE_RADIUS; x++) {
+            for (int y = -DIRECTION_TABLE_RADIUS; y <= DIRECTION_TABLE_RADIUS; y++) {
+                directionDiffTable[(x + DIRECTION_TABLE_RADIUS) * side + y + DIRECTION_TABLE_RADIUS] = computeDirectionDiffs(x, y);
+            }
+        }
+    }
+
+    /**
+     * Returns, for each direction in dirs, the angle between that direction
+     * and the direction the cows want to move in.
+     */
+    private static double[] computeDirectionDiffs(double dX, double dY) {
+        double theta = Math.atan2(dY, dX); // angle the cows want to move in
+        double[] diffs = new double[8];
+        for (int k = -4; k < 4; k++) {
+            double theta0 = k * PI4;
+            diffs[k + 4] = Math.min(Math.abs(theta - theta0), 2 * Math.PI - Math.abs(theta - theta0));
+        }
+        return diffs;
+    }
+
+    private static double[] directionDiffs(double dX, double dY) {
+        int x = (int) dX;
+        int y = (int) dY;
+        if (x == dX && y == dY && Math.abs(x) <= DIRECTION_TABLE_RADIUS && Math.abs(y) <= DIRECTION_TABLE_RADIUS) {
+            return directionDiffTable[(x + DIRECTION_TABLE_RADIUS) * (2 * DIRECTION_TABLE_RADIUS + 1) + y + DIRECTION_TABLE_RADIUS];
+        }
+        return computeDirectionDiffs(dX, dY);
+    }
+
     public void next(InternalObject[] objs) {
+        pastrRound++;
         for (InternalObject obj : objs) {
             updateIds(obj);
         }
+        removeMissingPastrs();
 
         // Current order:
         // 1) cows are destroyed due to attack
@@ -233,109 +514,143 @@ public class NeutralsMap {
             MapLocation target = attacks.get(i);
             if (target.x >= 0 && target.x < this.mapWidth &&
                 target.y >= 0 && target.y < this.mapHeight) {
-                this.currentAmount[target.x][target.y] = 0;
+                this.currentAmount[index(target.x, target.y)] = 0;
             }
         }
 
-        double[][] temp = new double[this.mapWidth][this.mapHeight];
-        for (int i = 0; i < this.mapWidth; i++) {
-            for (int j = 0; j < this.mapHeight; j++) {
-                if (this.hasNoise[i][j]) {
-                    if (this.dX[i][j] != 0 || this.dY[i][j] != 0) {
-                        double theta = Math.atan2(this.dY[i][j], this.dX[i][j]); // angle the cows want to move in
-                        double closestThetaDiff = Math.PI / 2;
-                        int movesCount = 0;
-                        for (int k = -4; k < 4; k++) {
-                            double theta0 = k * PI4;
-                            int x = i + dirs[k + 4][0];
-                            int y = j + dirs[k + 4][1];
-                            boolean valid = isValid(x, y, i, j);
-
-                            if (valid) {
-                                double diff = Math.min(Math.abs(theta - theta0), 2 * Math.PI - Math.abs(theta - theta0));
-                                if (diff < closestThetaDiff - EPSILON) {
-                                    closestThetaDiff = diff;
-                                    movesCount = 1;
-                                } else if (diff <= closestThetaDiff + EPSILON) {
-                                    movesCount++;
-                                }
-                            }
-                        }
-                        if (movesCount > 0) {
-                            for (int k = -4; k < 4; k++) {
-                                double theta0 = k * PI4;
-                                int x = i + dirs[k + 4][0];
-                                int y = j + dirs[k + 4][1];
-                                boolean valid = isValid(x, y, i, j);
-
-                                if (valid) {
-                                    double diff = Math.min(Math.abs(theta - theta0), 2 * Math.PI - Math.abs(theta - theta0));
-                                    if (diff <= closestThetaDiff + EPSILON) {
-                                        temp[x][y] += this.currentAmount[i][j] / movesCount;
-                                    }
-                                }
-                            }
-                        } else {
-                            temp[i][j] += this.currentAmount[i][j];
-                        }
-                    } else {
-                        // scatter
-                        int nScatter = 0;
-                        for (int di = -1; di <= 1; di++) {
-                            for (int dj = -1; dj <= 1; dj++) {
-                                if (!(di == 0 && dj == 0) && isValid(i + di, j + dj, i, j)) {
-                                    nScatter++;
-                                }
-                            }
-                        }
-                        if (nScatter == 0) {
-                            temp[i][j] += this.currentAmount[i][j];
-                        } else {
-                            for (int di = -1; di <= 1; di++) {
-                                for (int dj = -1; dj <= 1; dj++) {
-                                    if (!(di == 0 && dj == 0) && isValid(i + di, j + dj, i, j)) {
-                                        temp[i + di][j + dj] += this.currentAmount[i][j] / nScatter;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } else {
-                    temp[i][j] += this.currentAmount[i][j];
-                }
-            }
+        // Only cows on noisy cells move, and they move at most one cell, so
+        // only the noise bounding box grown by one cell can change.  Cells
+        // in that region are recomputed in the same order as a full pass
+        // would, so the sums come out exactly the same.
+        int minX = 0, maxX = -1, minY = 0, maxY = -1;
+        if (noiseMaxX >= 0) {
+            minX = Math.max(noiseMinX - 1, 0);
+            maxX = Math.min(noiseMaxX + 1, this.mapWidth - 1);
+            minY = Math.max(noiseMinY - 1, 0);
+            maxY = Math.min(noiseMaxY + 1, this.mapHeight - 1);
         }
-        for (int i = 0; i < this.mapWidth; i++) {
-            for (int j = 0; j < this.mapHeight; j++) {
-                this.currentAmount[i][j] = temp[i][j];
+
+        double[] temp = this.buffer;
+        for (int i = minX; i <= maxX; i++) {
+            Arrays.fill(temp, index(i, minY), index(i, maxY) + 1, 0.0);
+        }
+        for (int i = minX; i <= maxX; i++) {
+            for (int j = minY; j <= maxY; j++) {
+                moveCows(i, j, temp);
             }
         }
 
+        // cows outside of the active region stay where they are, so their
+        // decay and growth can be read straight from the current amounts
         for (int i = 0; i < this.mapWidth; i++) {
-            for (int j = 0; j < this.mapHeight; j++) {
-                if (this.isValid(i, j)) {
-                    this.currentAmount[i][j] = GameConstants.NEUTRALS_TURN_DECAY * this.currentAmount[i][j] + this.growthFactor[i][j];
-                }
+            int start = index(i, 0);
+            int end = start + this.mapHeight;
+            if (i < minX || i > maxX) {
+                decayAndGrow(this.currentAmount, temp, start, end);
+            } else {
+                decayAndGrow(this.currentAmount, temp, start, start + minY);
+                decayAndGrow(temp, temp, start + minY, start + maxY + 1);
+                decayAndGrow(this.currentAmount, temp, start + maxY + 1, end);
             }
         }
 
+        this.buffer = this.currentAmount;
+        this.currentAmount = temp;
+
         //this.print();
     }
 
+    private void decayAndGrow(double[] from, double[] to, int start, int end) {
+        for (int k = start; k < end; k++) {
+            to[k] = this.decay[k] * from[k] + this.growth[k];
+        }
+    }
+
+    /**
+     * Adds the cows that are on cell (i, j) at the start of the round to
+     * the cells of temp that they move to.
+     */
+    private void moveCows(int i, int j, double[] temp) {
+        int k0 = index(i, j);
+        double amount = this.currentAmount[k0];
+        if (!this.hasNoise[k0]) {
+            temp[k0] += amount;
+        } else if (this.dX[k0] != 0 || this.dY[k0] != 0) {
+            double[] diffs = directionDiffs(this.dX[k0], this.dY[k0]);
+            double closestThetaDiff = Math.PI / 2;
+            int movesCount = 0;
+            for (int k = 0; k < 8; k++) {
+                int x = i + dirs[k][0];
+                int y = j + dirs[k][1];
+                if (isValid(x, y, i, j)) {
+                    double diff = diffs[k];
+                    if (diff < closestThetaDiff - EPSILON) {
+                        closestThetaDiff = diff;
+                        movesCount = 1;
+                    } else if (diff <= closestThetaDiff + EPSILON) {
+                        movesCount++;
+                    }
+                }
+            }
+            if (movesCount > 0) {
+                for (int k = 0; k < 8; k++) {
+                    int x = i + dirs[k][0];
+                    int y = j + dirs[k][1];
+                    if (isValid(x, y, i, j) && diffs[k] <= closestThetaDiff + EPSILON) {
+                        temp[index(x, y)] += amount / movesCount;
+                    }
+                }
+            } else {
+                temp[k0] += amount;
+            }
+        } else {
+            // scatter
+            int nScatter = 0;
+            for (int di = -1; di <= 1; di++) {
+                for (int dj = -1; dj <= 1; dj++) {
+                    if (!(di == 0 && dj == 0) && isValid(i + di, j + dj, i, j)) {
+                        nScatter++;
+                    }
+                }
+            }
+            if (nScatter == 0) {
+                temp[k0] += amount;
+            } else {
+                for (int di = -1; di <= 1; di++) {
+                    for (int dj = -1; dj <= 1; dj++) {
+                        if (!(di == 0 && dj == 0) && isValid(i + di, j + dj, i, j)) {
+                            temp[index(i + di, j + dj)] += amount / nScatter;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     // for when an attack doesn't generate noise
     public void updateWithQuietAttack(MapLocation source) {
         attacks.add(source);
     }
 
     public void updateWithNoiseSource(MapLocation source, int radiusSquared) {
-        MapLocation[] affected = MapLocation.getAllMapLocationsWithinRadiusSq(source, radiusSquared);
-        for (int i = 0; i < affected.length; i++) {
-            if (isValid(affected[i].x, affected[i].y)) {
-                hasNoise[affected[i].x][affected[i].y] = true;
-                int curdX = affected[i].x - source.x;
-                int curdY = affected[i].y - source.y;
-                dX[affected[i].x][affected[i].y] += curdX;
-                dY[affected[i].x][affected[i].y] += curdY;
+        RadiusOffsets disk = RadiusOffsets.get(radiusSquared);
+        int minX = Math.max(source.x - disk.radius, 0);
+        int maxX = Math.min(source.x + disk.radius, this.mapWidth - 1);
+        for (int x = minX; x <= maxX; x++) {
+            int h = disk.columnHeight(x - source.x);
+            int minY = Math.max(source.y - h, 0);
+            int maxY = Math.min(source.y + h, this.mapHeight - 1);
+            for (int y = minY; y <= maxY; y++) {
+                int k = index(x, y);
+                if (passable[k]) {
+                    hasNoise[k] = true;
+                    dX[k] += x - source.x;
+                    dY[k] += y - source.y;
+                    noiseMinX = Math.min(noiseMinX, x);
+                    noiseMaxX = Math.max(noiseMaxX, x);
+                    noiseMinY = Math.min(noiseMinY, y);
+                    noiseMaxY = Math.max(noiseMaxY, y);
+                }
             }
         }
     }
@@ -353,15 +668,21 @@ public class NeutralsMap {
     }
 
     public void resetAfterTurn() {
-        for (int i = 0; i < this.mapWidth; i++) {
-            for (int j = 0; j < this.mapHeight; j++) {
-                this.dX[i][j] = 0;
-                this.dY[i][j] = 0;
-                this.ids[i][j].clear();
-                this.hasNoise[i][j] = false;
-                this.nPastrs[i][j] = 0;
-            }
+        for (int i = noiseMinX; i <= noiseMaxX; i++) {
+            int start = index(i, noiseMinY);
+            int end = index(i, noiseMaxY) + 1;
+            Arrays.fill(this.dX, start, end, 0);
+            Arrays.fill(this.dY, start, end, 0);
+            Arrays.fill(this.hasNoise, start, end, false);
+        }
+        noiseMaxX = noiseMaxY = -1;
+        noiseMinX = noiseMinY = Integer.MAX_VALUE;
+        for (int i = 0; i < nTouched; i++) {
+            int k = touchedCells[i];
+            Arrays.fill(this.members, k * memberWords, (k + 1) * memberWords, 0L);
         }
+        nTouched = 0;
+        nCapturing = 0;
         attacks.clear();
     }
 }
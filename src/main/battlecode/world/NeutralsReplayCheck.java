@@ -0,0 +1,366 @@
+package battlecode.world;
+
+import battlecode.common.GameConstants;
+import battlecode.common.MapLocation;
+import battlecode.common.RobotType;
+import battlecode.common.Team;
+import battlecode.common.TerrainTile;
+import battlecode.engine.EngineContext;
+import battlecode.server.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Checks that the incremental NeutralsMap.next leaves exactly the same cows
+ * as the full recompute it replaced, which is kept below as
+ * ReferenceNeutralsMap.  Each map in bc.game.map-path is run
+ * for some rounds twice over, once with each update, with the same random
+ * movement noise, attacks, soldiers and PASTRs (which come and go), and the
+ * cow fields are compared bit for bit after every round.  Exits with 0 if
+ * they were the same on every map and 1 if they weren't.
+ */
+public class NeutralsReplayCheck {
+
+    static private final int EX_DIFFERENT = 1;
+    static private final int EX_USAGE = 64;
+
+    public static void usage() {
+        System.err.println("Usage: NeutralsReplayCheck [-rounds n] map...");
+        System.exit(EX_USAGE);
+    }
+
+    /**
+     * Returns the first round, counting from 1, after which the two updates
+     * left different cows, or 0 if they never did.
+     */
+    static int check(GameMap gm, int rounds, long seed) {
+        NeutralsMap incremental = new NeutralsMap(gm.getNeutralsMap());
+        ReferenceNeutralsMap full = new ReferenceNeutralsMap(gm.getNeutralsMap().copyOfData(), gm.getTerrainMatrix());
+        int width = gm.getWidth(), height = gm.getHeight();
+
+        // the robots only need a world to belong to; they never run
+        GameWorld world = new GameWorld(gm, "A", "B", new long[2][GameConstants.TEAM_MEMORY_LENGTH]);
+        Random rand = new Random(seed);
+        List<InternalRobot> robots = new ArrayList<InternalRobot>();
+        for (int i = 0; i < 40; i++) {
+            RobotType type = i % 4 == 0 ? RobotType.PASTR : RobotType.SOLDIER;
+            Team team = i % 2 == 0 ? Team.A : Team.B;
+            MapLocation loc = new MapLocation(rand.nextInt(width), rand.nextInt(height));
+            if (world.getObject(loc, type.level) == null)
+                robots.add(new InternalRobot(world, type, loc, team, false));
+        }
+
+        for (int round = 1; round <= rounds; round++) {
+            // most robots show up every round; the others drop out now and then
+            List<InternalObject> present = new ArrayList<InternalObject>();
+            for (InternalRobot r : robots) {
+                if (rand.nextInt(10) != 0)
+                    present.add(r);
+            }
+            InternalObject[] objs = present.toArray(new InternalObject[present.size()]);
+
+            int noises = rand.nextInt(12);
+            for (int i = 0; i < noises; i++) {
+                MapLocation loc = new MapLocation(rand.nextInt(width), rand.nextInt(height));
+                switch (rand.nextInt(3)) {
+                    case 0:
+                        incremental.updateWithNoiseSource(loc, GameConstants.MOVEMENT_SCARE_RANGE);
+                        full.updateWithNoiseSource(loc, GameConstants.MOVEMENT_SCARE_RANGE);
+                        break;
+                    case 1:
+                        incremental.updateWithNoiseSource(loc, GameConstants.ATTACK_SCARE_RANGE);
+                        full.updateWithNoiseSource(loc, GameConstants.ATTACK_SCARE_RANGE);
+                        incremental.updateWithQuietAttack(loc);
+                        full.updateWithQuietAttack(loc);
+                        break;
+                    default:
+                        incremental.updateWithQuietAttack(loc);
+                        full.updateWithQuietAttack(loc);
+                }
+            }
+
+            incremental.next(objs);
+            full.next(objs);
+            double[][] a = incremental.copyOfCurrentAmounts(), b = full.copyOfCurrentAmounts();
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    if (Double.doubleToLongBits(a[x][y]) != Double.doubleToLongBits(b[x][y])) {
+                        System.out.println(String.format("round %d, %d,%d: incremental %s, full %s",
+                                round, x, y, a[x][y], b[x][y]));
+                        return round;
+                    }
+                }
+            }
+            incremental.resetAfterTurn();
+            full.resetAfterTurn();
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) {
+        int rounds = 2000;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("-rounds")) {
+            rounds = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first >= args.length) {
+            usage();
+            return;
+        }
+        String mapPath = Config.getGlobalConfig().get("bc.game.map-path");
+        new EngineContext().bind();
+        boolean different = false;
+        for (int i = first; i < args.length; i++) {
+            XMLMapHandler handler = XMLMapHandler.loadMap(args[i], mapPath);
+            if (handler == null)
+                continue;
+            int round = check(handler.createGameMap(), rounds, args[i].hashCode());
+            if (round == 0) {
+                System.out.println(String.format("%s: %d rounds, no differences", args[i], rounds));
+            } else {
+                System.out.println(String.format("%s: first difference in round %d", args[i], round));
+                different = true;
+            }
+        }
+        if (different)
+            System.exit(EX_DIFFERENT);
+    }
+
+    /**
+     * The parts of NeutralsMap that move the cows, as they were before
+     * next() was made incremental, over the original data structures: every
+     * cell is recomputed into a fresh grid each round, with atan2 for each
+     * noisy cell and a set of robot IDs per cell.  Don't change this to
+     * match NeutralsMap; it is what NeutralsMap is checked against.
+     */
+    static class ReferenceNeutralsMap {
+        /**
+         * The width and height of the map.
+         */
+        private final int mapWidth, mapHeight;
+        /**
+         * The integer scalar field showing the distribution of the neutral AI.
+         */
+        private boolean[][] passable;
+        private double[][] currentAmount;
+        private double[][] growthFactor;
+        private double[][] dX, dY;
+        private boolean[][] hasNoise;
+        private int[][] nPastrs;
+        private ArrayList<MapLocation> attacks;
+        private Set[][] ids;
+
+        public ReferenceNeutralsMap(double[][] growthFactor, TerrainTile[][] mapTiles) {
+            attacks = new ArrayList<MapLocation>();
+
+            this.mapWidth = growthFactor.length;
+            int tempMapHeight = 0;
+            for (int i = 0; i < this.mapWidth; i++) {
+                tempMapHeight = Math.max(tempMapHeight, growthFactor[i].length);
+            }
+            this.mapHeight = tempMapHeight;
+
+            this.growthFactor = new double[this.mapWidth][this.mapHeight];
+            this.currentAmount = new double[this.mapWidth][this.mapHeight];
+            for (int i = 0; i < this.mapWidth; i++) {
+                System.arraycopy(growthFactor[i], 0, this.growthFactor[i], 0,
+                    this.mapHeight);
+            }
+
+            dX = new double[this.mapWidth][this.mapHeight];
+            dY = new double[this.mapWidth][this.mapHeight];
+            hasNoise = new boolean[this.mapWidth][this.mapHeight];
+            nPastrs = new int[this.mapWidth][this.mapHeight];
+            passable = new boolean[this.mapWidth][this.mapHeight];
+            for (int i = 0; i < this.mapWidth; i++) {
+                for (int j = 0; j < this.mapHeight; j++) {
+                    passable[i][j] = mapTiles[i][j] != TerrainTile.VOID;
+                }
+            }
+            ids = new Set[this.mapWidth][this.mapHeight];
+            for (int i = 0; i < this.mapWidth; i++) {
+                for (int j = 0; j < this.mapHeight; j++) {
+                    ids[i][j] = new TreeSet<Integer>();
+                }
+            }
+        }
+
+        public double[][] copyOfCurrentAmounts() {
+            double[][] cowsCopy = new double[this.mapWidth][this.mapHeight];
+            for (int i = 0; i < this.mapWidth; i++) {
+                System.arraycopy(this.currentAmount[i], 0, cowsCopy[i], 0,
+                    this.mapHeight);
+            }
+            return cowsCopy;
+        }
+
+        public boolean isValid(int x, int y) {
+            return x >= 0 && x < this.mapWidth && y >= 0 && y < this.mapHeight && passable[x][y];
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean isValid(int x, int y, int fromX, int fromY) {
+            // valid if ids of from is a subset of ids of to
+            if (!isValid(x, y)) return false;
+            return ids[x][y].containsAll(ids[fromX][fromY]);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void updateIds(InternalObject obj) {
+            InternalRobot ir = (InternalRobot) obj;
+            if (ir.type != RobotType.PASTR && ir.type != RobotType.SOLDIER) return;
+
+            int captureRange = 0;
+            if (ir.type == RobotType.PASTR) captureRange = GameConstants.PASTR_RANGE;
+            MapLocation[] affected = MapLocation.getAllMapLocationsWithinRadiusSq(ir.getLocation(), captureRange);
+            for (MapLocation ml : affected) {
+                if (isValid(ml.x, ml.y)) {
+                    this.ids[ml.x][ml.y].add(ir.getID());
+                    if (ir.type == RobotType.PASTR) {
+                        nPastrs[ml.x][ml.y]++;
+                    }
+                }
+            }
+        }
+
+        final double PI4 = Math.PI / 4;
+        final double EPSILON = 1.0e-6;
+        final int[][] dirs = {{-1, 0}, {-1, -1}, {0, -1}, {1, -1},
+                                 {1, 0}, {1, 1}, {0, 1}, {-1, 1}};
+        public void next(InternalObject[] objs) {
+            for (InternalObject obj : objs) {
+                updateIds(obj);
+            }
+
+            // Current order:
+            // 1) cows are destroyed due to attack
+            // 2) cows move
+            // 3) cow growth and decay happens
+            for (int i = 0; i < attacks.size(); i++) {
+                MapLocation target = attacks.get(i);
+                if (target.x >= 0 && target.x < this.mapWidth &&
+                    target.y >= 0 && target.y < this.mapHeight) {
+                    this.currentAmount[target.x][target.y] = 0;
+                }
+            }
+
+            double[][] temp = new double[this.mapWidth][this.mapHeight];
+            for (int i = 0; i < this.mapWidth; i++) {
+                for (int j = 0; j < this.mapHeight; j++) {
+                    if (this.hasNoise[i][j]) {
+                        if (this.dX[i][j] != 0 || this.dY[i][j] != 0) {
+                            double theta = Math.atan2(this.dY[i][j], this.dX[i][j]); // angle the cows want to move in
+                            double closestThetaDiff = Math.PI / 2;
+                            int movesCount = 0;
+                            for (int k = -4; k < 4; k++) {
+                                double theta0 = k * PI4;
+                                int x = i + dirs[k + 4][0];
+                                int y = j + dirs[k + 4][1];
+                                boolean valid = isValid(x, y, i, j);
+
+                                if (valid) {
+                                    double diff = Math.min(Math.abs(theta - theta0), 2 * Math.PI - Math.abs(theta - theta0));
+                                    if (diff < closestThetaDiff - EPSILON) {
+                                        closestThetaDiff = diff;
+                                        movesCount = 1;
+                                    } else if (diff <= closestThetaDiff + EPSILON) {
+                                        movesCount++;
+                                    }
+                                }
+                            }
+                            if (movesCount > 0) {
+                                for (int k = -4; k < 4; k++) {
+                                    double theta0 = k * PI4;
+                                    int x = i + dirs[k + 4][0];
+                                    int y = j + dirs[k + 4][1];
+                                    boolean valid = isValid(x, y, i, j);
+
+                                    if (valid) {
+                                        double diff = Math.min(Math.abs(theta - theta0), 2 * Math.PI - Math.abs(theta - theta0));
+                                        if (diff <= closestThetaDiff + EPSILON) {
+                                            temp[x][y] += this.currentAmount[i][j] / movesCount;
+                                        }
+                                    }
+                                }
+                            } else {
+                                temp[i][j] += this.currentAmount[i][j];
+                            }
+                        } else {
+                            // scatter
+                            int nScatter = 0;
+                            for (int di = -1; di <= 1; di++) {
+                                for (int dj = -1; dj <= 1; dj++) {
+                                    if (!(di == 0 && dj == 0) && isValid(i + di, j + dj, i, j)) {
+                                        nScatter++;
+                                    }
+                                }
+                            }
+                            if (nScatter == 0) {
+                                temp[i][j] += this.currentAmount[i][j];
+                            } else {
+                                for (int di = -1; di <= 1; di++) {
+                                    for (int dj = -1; dj <= 1; dj++) {
+                                        if (!(di == 0 && dj == 0) && isValid(i + di, j + dj, i, j)) {
+                                            temp[i + di][j + dj] += this.currentAmount[i][j] / nScatter;
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    } else {
+                        temp[i][j] += this.currentAmount[i][j];
+                    }
+                }
+            }
+            for (int i = 0; i < this.mapWidth; i++) {
+                for (int j = 0; j < this.mapHeight; j++) {
+                    this.currentAmount[i][j] = temp[i][j];
+                }
+            }
+
+            for (int i = 0; i < this.mapWidth; i++) {
+                for (int j = 0; j < this.mapHeight; j++) {
+                    if (this.isValid(i, j)) {
+                        this.currentAmount[i][j] = GameConstants.NEUTRALS_TURN_DECAY * this.currentAmount[i][j] + this.growthFactor[i][j];
+                    }
+                }
+            }
+        }
+
+        // for when an attack doesn't generate noise
+        public void updateWithQuietAttack(MapLocation source) {
+            attacks.add(source);
+        }
+
+        public void updateWithNoiseSource(MapLocation source, int radiusSquared) {
+            MapLocation[] affected = MapLocation.getAllMapLocationsWithinRadiusSq(source, radiusSquared);
+            for (int i = 0; i < affected.length; i++) {
+                if (isValid(affected[i].x, affected[i].y)) {
+                    hasNoise[affected[i].x][affected[i].y] = true;
+                    int curdX = affected[i].x - source.x;
+                    int curdY = affected[i].y - source.y;
+                    dX[affected[i].x][affected[i].y] += curdX;
+                    dY[affected[i].x][affected[i].y] += curdY;
+                }
+            }
+        }
+
+        public void resetAfterTurn() {
+            for (int i = 0; i < this.mapWidth; i++) {
+                for (int j = 0; j < this.mapHeight; j++) {
+                    this.dX[i][j] = 0;
+                    this.dY[i][j] = 0;
+                    this.ids[i][j].clear();
+                    this.hasNoise[i][j] = false;
+                    this.nPastrs[i][j] = 0;
+                }
+            }
+            attacks.clear();
+        }
+    }
+}
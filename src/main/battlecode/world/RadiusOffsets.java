@@ -0,0 +1,92 @@
+package battlecode.world;
+
+/**
+ * The offsets (dx, dy) with dx * dx + dy * dy <= radiusSquared, for code
+ * that has to visit every tile within some distance of a location without
+ * allocating a MapLocation for each one.  Such a disk is contiguous in each
+ * column, so the table just holds how far column dx reaches, and the tiles
+ * of a disk that are on a map can be visited with
+ * <pre>
+ * RadiusOffsets disk = RadiusOffsets.get(radiusSquared);
+ * int minX = Math.max(center.x - disk.radius, 0);
+ * int maxX = Math.min(center.x + disk.radius, width - 1);
+ * for (int x = minX; x <= maxX; x++) {
+ *     int h = disk.columnHeight(x - center.x);
+ *     int minY = Math.max(center.y - h, 0);
+ *     int maxY = Math.min(center.y + h, height - 1);
+ *     for (int y = minY; y <= maxY; y++)
+ *         ...
+ * }
+ * </pre>
+ * which visits them in the same order as
+ * MapLocation.getAllMapLocationsWithinRadiusSq lists them.
+ * <p/>
+ * Tables never change once they are made, so they are cached for the life
+ * of the JVM and shared by all matches.
+ */
+public final class RadiusOffsets {
+
+    /**
+     * The largest |dx| (and |dy|) in the disk, or -1 if the disk is empty.
+     */
+    public final int radius;
+    /**
+     * The number of offsets in the disk.
+     */
+    public final int size;
+    // column dx holds -columnHeights[dx + radius] <= dy <= columnHeights[dx + radius]
+    private final int[] columnHeights;
+
+    // indexed by radiusSquared; replaced with a longer copy when a bigger disk is asked for
+    private static volatile RadiusOffsets[] cache = new RadiusOffsets[0];
+
+    private RadiusOffsets(int radiusSquared) {
+        int r = -1;
+        while ((r + 1) * (r + 1) <= radiusSquared)
+            r++;
+        radius = r;
+        columnHeights = new int[Math.max(2 * r + 1, 0)];
+        int n = 0;
+        for (int dx = -r; dx <= r; dx++) {
+            int h = 0;
+            while (dx * dx + (h + 1) * (h + 1) <= radiusSquared)
+                h++;
+            columnHeights[dx + r] = h;
+            n += 2 * h + 1;
+        }
+        size = n;
+    }
+
+    /**
+     * Returns the disk of tiles within the given squared distance of a
+     * location.  The disk is empty if radiusSquared is negative.
+     */
+    public static RadiusOffsets get(int radiusSquared) {
+        if (radiusSquared < 0)
+            radiusSquared = -1;
+        RadiusOffsets[] disks = cache;
+        if (radiusSquared + 1 < disks.length)
+            return disks[radiusSquared + 1];
+        return grow(radiusSquared);
+    }
+
+    private static synchronized RadiusOffsets grow(int radiusSquared) {
+        RadiusOffsets[] disks = cache;
+        if (radiusSquared + 1 >= disks.length) {
+            RadiusOffsets[] bigger = new RadiusOffsets[radiusSquared + 2];
+            System.arraycopy(disks, 0, bigger, 0, disks.length);
+            for (int i = disks.length; i < bigger.length; i++)
+                bigger[i] = new RadiusOffsets(i - 1);
+            cache = disks = bigger;
+        }
+        return disks[radiusSquared + 1];
+    }
+
+    /**
+     * Returns the largest |dy| in column dx of the disk, where
+     * -radius <= dx <= radius.
+     */
+    public int columnHeight(int dx) {
+        return columnHeights[dx + radius];
+    }
+}
@@ -391,7 +391,7 @@ public class RobotControllerImpl extends ControllerShared implements RobotContro
                 		&& checkCanSense(o) && (type.isInstance(o)) && (!o.equals(robot));
             }
         };
-        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.allObjects(), p), type);
+        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.getObjectsWithinRadiusSq(robot.myLocation, radiusSquared), p), type);
     }
 
     @SuppressWarnings("unchecked")
@@ -405,7 +405,7 @@ public class RobotControllerImpl extends ControllerShared implements RobotContro
                 		&& checkCanSense(o) && (type.isInstance(o)) && (!o.equals(robot));
             }
         };
-        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.allObjects(), p), type);
+        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.getObjectsWithinRadiusSq(robot.myLocation, radiusSquared), p), type);
     }
 
     @SuppressWarnings("unchecked")
@@ -418,7 +418,7 @@ public class RobotControllerImpl extends ControllerShared implements RobotContro
                     		&& checkCanSense(o) && (type.isInstance(o)) && (!o.equals(robot));
                 }
             };
-            return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.allObjects(), p), type);
+            return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.getObjectsWithinRadiusSq(center, radiusSquared), p), type);
     	}
         Predicate<InternalObject> p = new Predicate<InternalObject>() {
             public boolean apply(InternalObject o) {
@@ -427,7 +427,7 @@ public class RobotControllerImpl extends ControllerShared implements RobotContro
                 		&& checkCanSense(o) && (type.isInstance(o)) && (!o.equals(robot));
             }
         };
-        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.allObjects(), p), type);
+        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.getObjectsWithinRadiusSq(center, radiusSquared), p), type);
     }
 
     public Robot[] senseBroadcastingRobots() {
@@ -479,7 +479,7 @@ public class RobotControllerImpl extends ControllerShared implements RobotContro
                 		location.distanceSquaredTo(o.getLocation()) <= radiusSquared;
             }
         };
-        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.allObjects(), p), type);
+        return Iterables.toArray((Iterable<T>) Iterables.filter(gameWorld.getObjectsWithinRadiusSq(location, radiusSquared), p), type);
     }
     
     public RobotInfo senseRobotInfo(Robot r) throws GameActionException {
@@ -0,0 +1,156 @@
+package battlecode.world;
+
+import battlecode.common.MapLocation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid of buckets holding every object in the game world, used to
+ * answer "which objects are within this radius" queries by looking only at
+ * the buckets that the circle overlaps.
+ * <p/>
+ * Query results are returned in the order the objects were added to the
+ * world, which is the order GameWorld.allObjects() iterates them in, so
+ * routing a query through the index does not change what players see.
+ */
+public class SpatialIndex implements Serializable {
+
+    private static final long serialVersionUID = 2796473519620378212L;
+
+    /**
+     * The width and height of a bucket, in map squares.
+     */
+    public static final int BUCKET_SIZE = 4;
+
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = -6923013318522183405L;
+
+        final InternalObject object;
+        final long order;
+        int bucket = -1;
+
+        Entry(InternalObject object, long order) {
+            this.object = object;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Entry> byOrder = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    private final int originX, originY;
+    private final int bucketsX, bucketsY;
+    private final List<Entry>[] buckets;
+    private final Map<InternalObject, Entry> entries = new HashMap<InternalObject, Entry>();
+    private long nextOrder;
+
+    @SuppressWarnings("unchecked")
+    public SpatialIndex(MapLocation origin, int width, int height) {
+        originX = origin.x;
+        originY = origin.y;
+        bucketsX = Math.max(1, (width + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        bucketsY = Math.max(1, (height + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        buckets = new List[bucketsX * bucketsY];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new ArrayList<Entry>(4);
+    }
+
+    // Locations off the map are put in the nearest edge bucket.  Queries
+    // clamp their bucket range the same way, so they still find them.
+    private int bucketX(int x) {
+        int dx = x - originX;
+        if (dx < 0)
+            return 0;
+        return Math.min(dx / BUCKET_SIZE, bucketsX - 1);
+    }
+
+    private int bucketY(int y) {
+        int dy = y - originY;
+        if (dy < 0)
+            return 0;
+        return Math.min(dy / BUCKET_SIZE, bucketsY - 1);
+    }
+
+    private int bucket(MapLocation loc) {
+        return bucketX(loc.x) * bucketsY + bucketY(loc.y);
+    }
+
+    /**
+     * Adds an object to the index.  Should be called when the object is
+     * added to the world.
+     */
+    public void add(InternalObject o) {
+        if (entries.containsKey(o))
+            return;
+        Entry e = new Entry(o, nextOrder++);
+        entries.put(o, e);
+        place(e, o.getLocation());
+    }
+
+    /**
+     * Updates the bucket of an object that has moved to newLoc.
+     */
+    public void move(InternalObject o, MapLocation newLoc) {
+        Entry e = entries.get(o);
+        if (e == null)
+            return;
+        unplace(e);
+        place(e, newLoc);
+    }
+
+    public void remove(InternalObject o) {
+        Entry e = entries.remove(o);
+        if (e != null)
+            unplace(e);
+    }
+
+    private void place(Entry e, MapLocation loc) {
+        if (loc == null)
+            return;
+        e.bucket = bucket(loc);
+        buckets[e.bucket].add(e);
+    }
+
+    private void unplace(Entry e) {
+        if (e.bucket >= 0) {
+            buckets[e.bucket].remove(e);
+            e.bucket = -1;
+        }
+    }
+
+    /**
+     * Returns every object whose location is within radiusSquared of center,
+     * in the order the objects were added.
+     */
+    public List<InternalObject> getObjectsWithinRadiusSq(MapLocation center, int radiusSquared) {
+        if (radiusSquared < 0)
+            return new ArrayList<InternalObject>(0);
+        int radius = (int) Math.sqrt(radiusSquared);
+        int minX = bucketX(center.x - radius), maxX = bucketX(center.x + radius);
+        int minY = bucketY(center.y - radius), maxY = bucketY(center.y + radius);
+        ArrayList<Entry> found = new ArrayList<Entry>();
+        for (int bx = minX; bx <= maxX; bx++) {
+            for (int by = minY; by <= maxY; by++) {
+                for (Entry e : buckets[bx * bucketsY + by]) {
+                    if (e.object.getLocation().distanceSquaredTo(center) <= radiusSquared)
+                        found.add(e);
+                }
+            }
+        }
+        Collections.sort(found, byOrder);
+        ArrayList<InternalObject> result = new ArrayList<InternalObject>(found.size());
+        for (Entry e : found)
+            result.add(e.object);
+        return result;
+    }
+}
@@ -12,13 +12,33 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
  * This class is the actual SAX handler that responds
  * to element and character data events.
+ * <p/>
+ * A handler that has parsed a map doesn't change afterwards, so loadMap
+ * keeps the handlers for the last MAP_CACHE_SIZE maps it has loaded, when
+ * bc.game.map-cache is set, and gives the same one back for as long as the
+ * map file doesn't change.  Each game created from a handler gets its own
+ * copy of the terrain and growth arrays.
+ * <p/>
+ * Maps can also be compiled, with {@link MapCompiler}, into a binary file
+ * next to the .xml file.  The compiled file records the size and
+ * modification time of the .xml file it was made from, and loadMap reads it
+ * instead of the .xml file only while those still match.
  */
 class XMLMapHandler extends DefaultHandler {
 
@@ -564,9 +584,17 @@ class XMLMapHandler extends DefaultHandler {
 
     }
 
-    public GameWorld createGameWorld(String teamA, String teamB, long[][] archonMemory) {
+    /**
+     * The tiles and growth factors of the map, and the tiles that have
+     * objects on them in the order they are created, worked out from map
+     * the first time a game is created.
+     */
+    private TerrainTile[][] mapTiles;
+    private double[][] floatData;
 
-        System.out.println("Creating a game%%%%%%%%%");
+    private synchronized void prepare() {
+        if (mapTiles != null)
+            return;
 
         TerrainTile[][] mapTiles = new TerrainTile[map.length][];
         for (int i = 0; i < map.length; i++) {
@@ -582,9 +610,39 @@ class XMLMapHandler extends DefaultHandler {
                 floatData[i][j] = map[i][j].floatData();
             }
         }
-        NeutralsMap nm = new NeutralsMap(floatData, mapTiles);
 
-        GameMap gm = new GameMap(mapProperties, mapTiles, nm);
+        for (int i = 0; i < map.length; i++) {
+            for (int j = 0; j < map[i].length; j++) {
+                if (!(map[i][j] instanceof TerrainData))
+                    objectsToCreate.add(new SymbolTile(map[i][j], new MapLocation(i, j)));
+            }
+        }
+
+        this.floatData = floatData;
+        this.mapTiles = mapTiles;
+    }
+
+    /**
+     * Returns a new GameMap for a game on this map.
+     */
+    GameMap createGameMap() {
+        prepare();
+
+        TerrainTile[][] tiles = new TerrainTile[mapTiles.length][];
+        for (int i = 0; i < mapTiles.length; i++)
+            tiles[i] = mapTiles[i].clone();
+
+        // NeutralsMap makes its own copy of the growth factors
+        NeutralsMap nm = new NeutralsMap(floatData, tiles);
+
+        return new GameMap(mapProperties, tiles, nm);
+    }
+
+    public GameWorld createGameWorld(String teamA, String teamB, long[][] archonMemory) {
+
+        System.out.println("Creating a game%%%%%%%%%");
+
+        GameMap gm = createGameMap();
         //gm.setTheme(theme);
         GameWorld gw = new GameWorld(gm, teamA, teamB, archonMemory);
 
@@ -592,10 +650,8 @@ class XMLMapHandler extends DefaultHandler {
 
         MapLocation origin = gm.getMapOrigin();
 
-        for (int i = 0; i < map.length; i++) {
-            for (int j = 0; j < map[i].length; j++)
-                map[i][j].createGameObject(gw, new MapLocation(origin.x + i, origin.y + j));
-        }
+        for (SymbolTile t : objectsToCreate)
+            t.data.createGameObject(gw, new MapLocation(origin.x + t.loc.x, origin.y + t.loc.y));
         
         gw.endRandomIDs();
 
@@ -823,7 +879,88 @@ class XMLMapHandler extends DefaultHandler {
         return handler.isTournamentLegal();
     }
 
+    /**
+     * A handler in the cache, and the size and modification time of the
+     * file it was loaded from, as they were before it was loaded.
+     */
+    private static class CachedMap {
+        final long lastModified, length;
+        final XMLMapHandler handler;
+
+        CachedMap(long lastModified, long length, XMLMapHandler handler) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.handler = handler;
+        }
+
+        boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /**
+     * How many maps the cache holds.  A server that runs more maps than
+     * this drops the one it used longest ago, which only costs loading that
+     * map again if it comes round another time.
+     */
+    static final int MAP_CACHE_SIZE = 64;
+
+    // in the order the maps were last used
+    private static final Map<File, CachedMap> cache = new LinkedHashMap<File, CachedMap>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<File, CachedMap> eldest) {
+            return size() > MAP_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Loads the given map from its compiled file, if there is one that was
+     * compiled from the .xml file as it is now (or there is no .xml file),
+     * and from the .xml file otherwise.  When bc.game.map-cache is set, a
+     * map that was loaded before and hasn't changed since isn't loaded
+     * again.
+     */
     public static XMLMapHandler loadMap(String mapName, String mapPath) {
+        if (!mapPath.endsWith("/"))
+            mapPath += "/";
+        File xml = new File(mapPath + mapName + ".xml");
+        File compiled = new File(mapPath + mapName + COMPILED_SUFFIX);
+        File file = compiled.isFile() && (!xml.isFile() || isCompiledFrom(compiled, xml)) ? compiled : xml;
+
+        if (!Config.getGlobalConfig().getBoolean("bc.game.map-cache"))
+            return load(file);
+
+        File key = file.getAbsoluteFile();
+        synchronized (cache) {
+            CachedMap cached = cache.get(key);
+            if (cached != null && cached.isCurrent(file))
+                return cached.handler;
+        }
+        // if the file changes while it's being loaded, this stamp won't
+        // match it, so the next load reads it again instead of keeping a
+        // handler for the old contents under the new stamp
+        long lastModified = file.lastModified();
+        long length = file.length();
+        // parse outside the lock so that different maps can be loaded at once
+        CachedMap loaded = new CachedMap(lastModified, length, load(file));
+        if (loaded.handler != null) {
+            synchronized (cache) {
+                cache.put(key, loaded);
+            }
+        }
+        return loaded.handler;
+    }
+
+    private static XMLMapHandler load(File file) {
+        if (file.getName().endsWith(COMPILED_SUFFIX))
+            return readCompiled(file);
+        else
+            return parseXML(file);
+    }
+
+    /**
+     * Parses the given .xml map file.
+     */
+    static XMLMapHandler parseXML(File xml) {
         // Create a new XMLMapHandler.
         XMLMapHandler handler = new XMLMapHandler();
 
@@ -837,9 +974,7 @@ class XMLMapHandler extends DefaultHandler {
         }
 
         // Create an input stream from the file.
-        if (!mapPath.endsWith("/"))
-            mapPath += "/";
-        String fileName = mapPath + mapName + ".xml";
+        String fileName = xml.getPath();
         FileInputStream file;
         try {
             file = new FileInputStream(fileName);
@@ -859,6 +994,223 @@ class XMLMapHandler extends DefaultHandler {
         return handler;
     }
 
+    /**
+     * Compiled maps have this after the map name instead of .xml.
+     */
+    static final String COMPILED_SUFFIX = ".xml.bin";
+
+    /*
+     * A compiled map is, in big-endian order:
+     *   int COMPILED_MAGIC, int COMPILED_VERSION
+     *   long length, long lastModified of the .xml file it was compiled from
+     *   int width, int height
+     *   int count, then count map properties: string name, int value
+     *   int count, then count symbols: string kind, string... fields
+     *   width * height tiles, column by column: short symbol, double value
+     *   int count, then count node links: int fromX, fromY, toX, toY, byte oneway
+     * where a string is a short length and that many bytes of UTF-8.  The
+     * symbols are TERRAIN tile, MINE team, ROBOT type team mine and NODE
+     * team mine, with an empty mine for none.  COMPILED_VERSION has to be
+     * changed whenever any of this, or a name it uses, changes.
+     */
+    private static final int COMPILED_MAGIC = 0x42434d50; // "BCMP"
+    private static final int COMPILED_VERSION = 2;
+
+    private static String symbolFields(SymbolData data) {
+        if (data instanceof TerrainData)
+            return "TERRAIN " + data.tile();
+        if (data instanceof MineData)
+            return "MINE " + ((MineData) data).team;
+        if (data instanceof RobotData) {
+            RobotData r = (RobotData) data;
+            return "ROBOT " + r.type + " " + r.team + " " + (r.mine == null ? "" : r.mine);
+        }
+        NodeData n = (NodeData) data;
+        return "NODE " + n.team + " " + (n.mine == null ? "" : n.mine);
+    }
+
+    private static SymbolData symbolData(String[] fields) {
+        String kind = fields[0];
+        if (kind.equals("TERRAIN"))
+            return new TerrainData(TerrainTile.valueOf(fields[1]));
+        if (kind.equals("MINE"))
+            return new MineData(Team.valueOf(fields[1]));
+        if (kind.equals("ROBOT"))
+            return new RobotData(RobotType.valueOf(fields[1]), Team.valueOf(fields[2]), fields[3].length() == 0 ? null : Team.valueOf(fields[3]));
+        if (kind.equals("NODE"))
+            return new NodeData(Team.valueOf(fields[1]), fields[2].length() == 0 ? null : Team.valueOf(fields[2]));
+        throw new IllegalArgumentException("unknown symbol kind " + kind);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Returns true if the given compiled map was compiled from the given
+     * .xml file as it is now, judging by its size and modification time.
+     */
+    static boolean isCompiledFrom(File compiled, File xml) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(compiled));
+            try {
+                return in.readInt() == COMPILED_MAGIC && in.readInt() == COMPILED_VERSION
+                        && in.readLong() == xml.length() && in.readLong() == xml.lastModified();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // including EOFException; let the .xml file be used
+            return false;
+        }
+    }
+
+    /**
+     * Writes this map in compiled form, noting that it was compiled from
+     * an .xml file with the given size and modification time, which should
+     * be taken before the .xml file was parsed.
+     */
+    void writeCompiled(File file, long sourceLength, long sourceLastModified) throws IOException {
+        // number the distinct symbols in the order they first appear
+        Map<String, Integer> symbols = new LinkedHashMap<String, Integer>();
+        short[][] tileSymbols = new short[mapWidth][mapHeight];
+        for (int i = 0; i < mapWidth; i++) {
+            for (int j = 0; j < mapHeight; j++) {
+                String fields = symbolFields(map[i][j]);
+                Integer symbol = symbols.get(fields);
+                if (symbol == null) {
+                    symbol = symbols.size();
+                    symbols.put(fields, symbol);
+                }
+                tileSymbols[i][j] = symbol.shortValue();
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(COMPILED_MAGIC);
+            out.writeInt(COMPILED_VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceLastModified);
+            out.writeInt(mapWidth);
+            out.writeInt(mapHeight);
+            out.writeInt(mapProperties.size());
+            for (Map.Entry<MapProperties, Integer> e : mapProperties.entrySet()) {
+                writeString(out, e.getKey().name());
+                out.writeInt(e.getValue());
+            }
+            out.writeInt(symbols.size());
+            for (String fields : symbols.keySet()) {
+                String[] split = fields.split(" ", -1);
+                out.writeShort(split.length);
+                for (String field : split)
+                    writeString(out, field);
+            }
+            for (int i = 0; i < mapWidth; i++) {
+                for (int j = 0; j < mapHeight; j++) {
+                    out.writeShort(tileSymbols[i][j]);
+                    out.writeDouble(map[i][j].floatData());
+                }
+            }
+            out.writeInt(nodeLinks.size());
+            for (MapLocation[] link : nodeLinks) {
+                out.writeInt(link[0].x);
+                out.writeInt(link[0].y);
+                out.writeInt(link[1].x);
+                out.writeInt(link[1].y);
+                out.writeByte(link.length > 2 ? 1 : 0);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a map written by writeCompiled.  The file is memory-mapped, and
+     * the symbols and tiles are read straight out of it.
+     */
+    static XMLMapHandler readCompiled(File file) {
+        XMLMapHandler handler = new XMLMapHandler();
+        String fileName = file.getPath();
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                handler.readCompiled(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), fileName);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            fail("can't load '" + fileName + "' because of an exception:\n" + e.getMessage(), "Check that the map file isn't in use by another application.\n");
+            return null;
+        } catch (BufferUnderflowException e) {
+            fail("'" + fileName + "' ends too soon", "Compile the map again with MapCompiler.\n");
+            return null;
+        }
+        return handler;
+    }
+
+    private void readCompiled(ByteBuffer in, String fileName) throws IOException {
+        if (in.getInt() != COMPILED_MAGIC || in.getInt() != COMPILED_VERSION)
+            fail("'" + fileName + "' isn't a compiled map, or was compiled by a different version", "Compile the map again with MapCompiler.\n");
+        // the size and modification time of the .xml file are only for loadMap
+        in.getLong();
+        in.getLong();
+
+        mapWidth = in.getInt();
+        mapHeight = in.getInt();
+        SymbolData[] symbols;
+        try {
+            for (int n = in.getInt(); n > 0; n--) {
+                MapProperties property = MapProperties.valueOf(readString(in));
+                mapProperties.put(property, in.getInt());
+            }
+
+            symbols = new SymbolData[in.getInt()];
+            for (int s = 0; s < symbols.length; s++) {
+                String[] fields = new String[in.getShort()];
+                for (int f = 0; f < fields.length; f++)
+                    fields[f] = readString(in);
+                symbols[s] = symbolData(fields);
+            }
+        } catch (IllegalArgumentException e) {
+            fail("'" + fileName + "' names something that doesn't exist: " + e.getMessage(), "Compile the map again with MapCompiler.\n");
+            return;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            fail("'" + fileName + "' has a symbol with too few fields", "Compile the map again with MapCompiler.\n");
+            return;
+        }
+
+        map = new SymbolData[mapWidth][mapHeight];
+        for (int i = 0; i < mapWidth; i++) {
+            for (int j = 0; j < mapHeight; j++) {
+                int symbol = in.getShort();
+                if (symbol < 0 || symbol >= symbols.length)
+                    fail("'" + fileName + "' has an unknown symbol at " + i + "," + j, "Compile the map again with MapCompiler.\n");
+                map[i][j] = symbols[symbol].copy();
+                map[i][j].setValue(in.getDouble());
+            }
+        }
+
+        for (int n = in.getInt(); n > 0; n--) {
+            MapLocation from = new MapLocation(in.getInt(), in.getInt());
+            MapLocation to = new MapLocation(in.getInt(), in.getInt());
+            if (in.get() != 0)
+                nodeLinks.add(new MapLocation[]{from, to, null});
+            else
+                nodeLinks.add(new MapLocation[]{from, to});
+        }
+        typesHaveBeenSet = true;
+    }
+
     public static void main(String[] s) {
         String mapPath = Config.getGlobalConfig().get("bc.game.map-path");
         for (String str : s) {
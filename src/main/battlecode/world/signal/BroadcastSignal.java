@@ -1,7 +1,5 @@
 package battlecode.world.signal;
 
-import java.util.HashMap;
-
 import battlecode.common.Team;
 import battlecode.engine.signal.Signal;
 import battlecode.world.InternalRobot;
@@ -23,17 +21,29 @@ public class BroadcastSignal extends Signal {
      * The team of the robot that broadcasted the message.
      */
     public final Team robotTeam;
-    public transient HashMap<Integer, Integer> broadcastMap;
+    /**
+     * The channels the robot wrote to, in the order it wrote them, and what
+     * it wrote.  Only the first numBroadcasts entries are used, and a channel
+     * may appear more than once.  These belong to the robot and are only
+     * valid until the world has copied them into the team's radio.
+     */
+    public transient int[] broadcastChannels, broadcastData;
+    public transient int numBroadcasts;
 
     /**
      * Creates a signal for a robot broadcast.
      *
      * @param robot the robot that broadcast the message
+     * @param broadcastChannels the channels it wrote to this turn
+     * @param broadcastData what it wrote to each of them
+     * @param numBroadcasts how many writes it made
      */
-    public BroadcastSignal(InternalRobot robot, HashMap<Integer, Integer> broadcastMap) {
+    public BroadcastSignal(InternalRobot robot, int[] broadcastChannels, int[] broadcastData, int numBroadcasts) {
         this.robotID = robot.getID();
         this.robotTeam = robot.getTeam();
-        this.broadcastMap = broadcastMap;
+        this.broadcastChannels = broadcastChannels;
+        this.broadcastData = broadcastData;
+        this.numBroadcasts = numBroadcasts;
     }
 
     /**
@@ -0,0 +1,55 @@
+package battlecode.world.signal;
+
+import battlecode.engine.signal.Signal;
+
+/**
+ * Describes the cells of an int[width][height] grid that changed since the
+ * previous round.  Cell (x, y) is packed as the index x * height + y, and
+ * indices[i] took the new value values[i].
+ *
+ * @see NeutralsTracker
+ */
+public abstract class GridDeltaSignal extends Signal {
+
+    private static final long serialVersionUID = -1781639996566757947L;
+
+    private final int[] indices;
+    private final int[] values;
+
+    protected GridDeltaSignal(int[][] previous, int[][] current) {
+        int height = current.length == 0 ? 0 : current[0].length;
+        int changed = 0;
+        for (int x = 0; x < current.length; x++)
+            for (int y = 0; y < height; y++)
+                if (previous[x][y] != current[x][y])
+                    changed++;
+        indices = new int[changed];
+        values = new int[changed];
+        int i = 0;
+        for (int x = 0; x < current.length; x++)
+            for (int y = 0; y < height; y++)
+                if (previous[x][y] != current[x][y]) {
+                    indices[i] = x * height + y;
+                    values[i] = current[x][y];
+                    i++;
+                }
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int[] getValues() {
+        return values;
+    }
+
+    /**
+     * Writes the changed cells into grid, which should hold the values of
+     * the previous round.
+     */
+    public void applyTo(int[][] grid) {
+        int height = grid.length == 0 ? 0 : grid[0].length;
+        for (int i = 0; i < indices.length; i++)
+            grid[indices[i] / height][indices[i] % height] = values[i];
+    }
+}
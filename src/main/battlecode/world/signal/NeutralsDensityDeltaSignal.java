@@ -0,0 +1,17 @@
+package battlecode.world.signal;
+
+/**
+ * The cells of the cow density grid that changed since the previous round.
+ * Sent instead of a NeutralsDensitySignal between keyframes when
+ * bc.engine.neutrals-encoding is "delta".
+ *
+ * @see NeutralsDensitySignal
+ */
+public class NeutralsDensityDeltaSignal extends GridDeltaSignal {
+
+    private static final long serialVersionUID = 7926738969407164177L;
+
+    public NeutralsDensityDeltaSignal(int[][] previous, int[][] current) {
+        super(previous, current);
+    }
+}
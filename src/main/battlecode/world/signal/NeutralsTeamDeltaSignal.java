@@ -0,0 +1,17 @@
+package battlecode.world.signal;
+
+/**
+ * The cells of the cow ownership grid that changed since the previous round.
+ * Sent instead of a NeutralsTeamSignal between keyframes when
+ * bc.engine.neutrals-encoding is "delta".
+ *
+ * @see NeutralsTeamSignal
+ */
+public class NeutralsTeamDeltaSignal extends GridDeltaSignal {
+
+    private static final long serialVersionUID = 1312408700240815650L;
+
+    public NeutralsTeamDeltaSignal(int[][] previous, int[][] current) {
+        super(previous, current);
+    }
+}
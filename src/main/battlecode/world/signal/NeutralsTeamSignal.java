@@ -8,6 +8,7 @@ import battlecode.common.RobotType;
 import battlecode.engine.signal.Signal;
 import battlecode.world.InternalObject;
 import battlecode.world.InternalRobot;
+import battlecode.world.RadiusOffsets;
 
 /**
  * TODO: describes which cow tiles are owned by which team
@@ -27,10 +28,17 @@ public class NeutralsTeamSignal extends Signal {
             if (ir.type == RobotType.PASTR) {
                 captureRange = GameConstants.PASTR_RANGE;
             }
-            MapLocation[] affected = MapLocation.getAllMapLocationsWithinRadiusSq(ir.getLocation(), captureRange);
-            for (MapLocation ml : affected) {
-                if (ml.x >= 0 && ml.x < width && ml.y >= 0 && ml.y < height) {
-                    teams[ml.x][ml.y] |= (1 << ir.getTeam().ordinal());
+            MapLocation center = ir.getLocation();
+            int bit = 1 << ir.getTeam().ordinal();
+            RadiusOffsets disk = RadiusOffsets.get(captureRange);
+            int minX = Math.max(center.x - disk.radius, 0);
+            int maxX = Math.min(center.x + disk.radius, width - 1);
+            for (int x = minX; x <= maxX; x++) {
+                int h = disk.columnHeight(x - center.x);
+                int minY = Math.max(center.y - h, 0);
+                int maxY = Math.min(center.y + h, height - 1);
+                for (int y = minY; y <= maxY; y++) {
+                    teams[x][y] |= bit;
                 }
             }
         }
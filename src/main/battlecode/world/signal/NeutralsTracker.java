@@ -0,0 +1,67 @@
+package battlecode.world.signal;
+
+import battlecode.engine.signal.Signal;
+
+/**
+ * Rebuilds the full cow density and ownership grids from a match's signals,
+ * whether they were written as full grids every round or as keyframes and
+ * deltas.  Feed it every signal of every round, in order, and read the
+ * grids back after each round.
+ */
+public class NeutralsTracker {
+
+    private int[][] amounts;
+    private int[][] teams;
+
+    /**
+     * Updates the grids with the given signal.  Signals that are not about
+     * the neutrals are ignored.
+     *
+     * @return true if the signal was a neutrals signal
+     */
+    public boolean visit(Signal s) {
+        if (s instanceof NeutralsDensitySignal) {
+            amounts = copy(((NeutralsDensitySignal) s).getAmounts());
+        } else if (s instanceof NeutralsTeamSignal) {
+            teams = copy(((NeutralsTeamSignal) s).getTeams());
+        } else if (s instanceof NeutralsDensityDeltaSignal) {
+            if (amounts == null)
+                throw new IllegalStateException("density delta before the first keyframe");
+            ((NeutralsDensityDeltaSignal) s).applyTo(amounts);
+        } else if (s instanceof NeutralsTeamDeltaSignal) {
+            if (teams == null)
+                throw new IllegalStateException("team delta before the first keyframe");
+            ((NeutralsTeamDeltaSignal) s).applyTo(teams);
+        } else
+            return false;
+        return true;
+    }
+
+    public void visitAll(Signal[] signals) {
+        for (Signal s : signals)
+            visit(s);
+    }
+
+    /**
+     * Returns the current cow density grid, or null if no keyframe has been
+     * seen yet.  The grid is updated in place by later signals.
+     */
+    public int[][] getAmounts() {
+        return amounts;
+    }
+
+    /**
+     * Returns the current cow ownership grid, or null if no keyframe has
+     * been seen yet.  The grid is updated in place by later signals.
+     */
+    public int[][] getTeams() {
+        return teams;
+    }
+
+    private static int[][] copy(int[][] grid) {
+        int[][] result = new int[grid.length][];
+        for (int i = 0; i < grid.length; i++)
+            result[i] = grid[i].clone();
+        return result;
+    }
+}
@@ -0,0 +1,34 @@
+package battlecode.world.signal;
+
+import battlecode.engine.signal.Signal;
+
+/**
+ * Signifies how much milk each PASTR collected this round
+ */
+public class PastrScoreSignal extends Signal {
+
+    private static final long serialVersionUID = -4720916388410257386L;
+
+    /**
+     * The IDs of the PASTRs.
+     */
+    private final int[] robotIDs;
+
+    /**
+     * The milk each PASTR collected this round
+     */
+    private final double[] milk;
+
+    public PastrScoreSignal(int[] robotIDs, double[] milk) {
+        this.robotIDs = robotIDs;
+        this.milk = milk;
+    }
+
+    public int[] getRobotIDs() {
+        return robotIDs;
+    }
+
+    public double[] getMilk() {
+        return milk;
+    }
+}
@@ -0,0 +1,20 @@
+package battlecode.world.signal;
+
+/**
+ * The mixing step of the rolling hashes that StateHashSignal carries.  The
+ * world and the neutrals map fold their state in with this, so that hashes
+ * from two runs of a match can be compared field by field.
+ */
+public final class StateHash {
+
+    private StateHash() {
+    }
+
+    /**
+     * Returns h with v folded into it.
+     */
+    public static long mix(long h, long v) {
+        h = (h ^ v) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+}
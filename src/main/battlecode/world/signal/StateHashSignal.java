@@ -0,0 +1,32 @@
+package battlecode.world.signal;
+
+import battlecode.engine.signal.Signal;
+
+/**
+ * Carries a fingerprint of the world at the end of a round, when
+ * bc.engine.state-hash is set, so that two runs of a match can be checked
+ * for having done exactly the same thing.
+ */
+public class StateHashSignal extends Signal {
+
+    private static final long serialVersionUID = 2950383744195638251L;
+
+    /**
+     * What each of the hashes covers.
+     */
+    public static final String[] FIELDS = {"robots", "energon", "action delay", "cows", "resources"};
+
+    /**
+     * One rolling hash for each of FIELDS, covering that part of the world
+     * in this round and every round before it.
+     */
+    private final long[] hashes;
+
+    public StateHashSignal(long[] hashes) {
+        this.hashes = hashes;
+    }
+
+    public long[] getHashes() {
+        return hashes;
+    }
+}